@@ -29,7 +29,6 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.Serializable;
 import java.util.Iterator;
-import java.util.TreeSet;
 
 import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.util.Bits;
@@ -69,15 +68,14 @@ public class AdaKMV implements ICardinality, Serializable {
      * Create a new non-adaptative KMV (non-growing)
      */
     public AdaKMV(int threshold) {
-        this.recordSet = new RecordSet(threshold, 0, threshold, new TreeSet<Long>(), new TreeSet<Long>());
+        this.recordSet = new RecordSet(threshold, threshold);
     }
 
     /**
      * Create a new adaptative KMV TODO: not done
      */
     public AdaKMV(int threshold, int maxSize) {
-        this.recordSet = new RecordSet(threshold, 0, maxSize, new TreeSet<Long>(), new TreeSet<Long>
-                ());
+        this.recordSet = new RecordSet(threshold, maxSize);
     }
 
 
@@ -102,6 +100,22 @@ public class AdaKMV implements ICardinality, Serializable {
         return recordSet.offer(value);
     }
 
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        boolean modified = false;
+        // once the record set is saturated, values above its bound cannot enter it,
+        // so most of a large batch is rejected without touching the record set
+        long bound = recordSet.admissionBound();
+        for (int i = offset; i < offset + length; i++) {
+            final long value = Math.abs(hashes[i]);
+            if (value <= bound && recordSet.offer(value)) {
+                modified = true;
+                bound = recordSet.admissionBound();
+            }
+        }
+        return modified;
+    }
+
     @Override
     public boolean offerHashed(int hashedInt) {
         throw new UnsupportedOperationException();
@@ -142,11 +156,19 @@ public class AdaKMV implements ICardinality, Serializable {
 
     private void writeBytes(DataOutput serializedByteStream) throws IOException {
         serializedByteStream.writeInt(recordSet.currentSize() * 8); // TODO: check if 8 for long
-        for (Long record : recordSet.records()){
+        for (long record : recordSet.sortedRecords()){
             serializedByteStream.writeLong(record);
         }
     }
 
+    /**
+     * @return the retained hashes as a sample for set operations with other samples,
+     * see {@link CompactKMV#intersect(CompactKMV, CompactKMV)}
+     */
+    public CompactKMV compact() {
+        return new CompactKMV(recordSet.admissionBound(), recordSet.sortedValues());
+    }
+
     /**
      * Add all the elements of the other set to this set.
      * <p/>
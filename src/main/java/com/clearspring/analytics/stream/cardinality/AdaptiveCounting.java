@@ -18,9 +18,12 @@ package com.clearspring.analytics.stream.cardinality;
 
 import java.io.Serializable;
 
+import java.nio.CharBuffer;
+
 import java.util.Arrays;
 
 import com.clearspring.analytics.hash.Lookup3Hash;
+import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.util.IBuilder;
 
 /**
@@ -45,6 +48,12 @@ public class AdaptiveCounting extends LogLog {
      */
     protected final double B_s = 0.051;
 
+    /**
+     * Reused to hash the decimal digits of longs, allocated on first use
+     */
+    private char[] digits;
+    private CharBuffer decimal;
+
     public AdaptiveCounting(int k) {
         super(k);
         b_e = m;
@@ -60,23 +69,67 @@ public class AdaptiveCounting extends LogLog {
         }
     }
 
+    /**
+     * Offers the lookup3ycs64 hash of o.toString(), without calling toString() for
+     * character sequences and boxed longs and ints.
+     */
     @Override
     public boolean offer(Object o) {
-        boolean modified = false;
-
-        long x = Lookup3Hash.lookup3ycs64(o.toString());
-        int j = (int) (x >>> (Long.SIZE - k));
-        byte r = (byte) (Long.numberOfLeadingZeros((x << k) | (1 << (k - 1))) + 1);
-        if (M[j] < r) {
-            Rsum += r - M[j];
-            if (M[j] == 0) {
+        if (o instanceof CharSequence) {
+            return offer((CharSequence) o);
+        }
+        if (o instanceof Long || o instanceof Integer) {
+            return offer(((Number) o).longValue());
+        }
+        return offer(o.toString());
+    }
+
+    public boolean offer(CharSequence o) {
+        return offerHashed(Lookup3Hash.lookup3ycs64(o));
+    }
+
+    /**
+     * Equivalent to offer(Long.toString(o)), hashing the decimal digits in place
+     */
+    @Override
+    public boolean offer(long o) {
+        if (digits == null) {
+            digits = new char[20];
+            decimal = CharBuffer.wrap(digits);
+        }
+        // built from the negative value so that Long.MIN_VALUE needs no special case
+        int start = digits.length;
+        long v = o < 0 ? o : -o;
+        do {
+            digits[--start] = (char) ('0' - (v % 10));
+            v /= 10;
+        } while (v != 0);
+        if (o < 0) {
+            digits[--start] = '-';
+        }
+        decimal.limit(digits.length).position(start);
+        return offerHashed(Lookup3Hash.lookup3ycs64(decimal));
+    }
+
+    /**
+     * Offers the 64 bit MurmurHash of the bytes, the hash {@link CountThenEstimate}
+     * offers them with.  Unlike offer((Object) o) it depends on the contents of the array.
+     */
+    @Override
+    public boolean offer(byte[] o) {
+        return offerHashed(MurmurHash.hash64(o, o.length));
+    }
+
+    @Override
+    protected boolean updateRegister(int j, byte r) {
+        byte previous = M[j];
+        if (super.updateRegister(j, r)) {
+            if (previous == 0) {
                 b_e--;
             }
-            M[j] = r;
-            modified = true;
+            return true;
         }
-
-        return modified;
+        return false;
     }
 
     @Override
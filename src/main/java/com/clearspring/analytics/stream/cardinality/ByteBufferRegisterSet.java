@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+/**
+ * {@link RegisterSet} whose words live in a {@link ByteBuffer} rather than on the heap.
+ * <p/>
+ * Words are accessed with absolute big-endian reads and writes starting at a fixed offset, so
+ * the buffer's own position is left alone and a mapped buffer keeps the file descriptor that
+ * {@link #flush()} needs.
+ */
+class ByteBufferRegisterSet extends RegisterSet {
+
+    private final ByteBuffer buffer;
+    private final int offset;
+
+    /**
+     * @param offset index of the first byte of the first word
+     */
+    ByteBufferRegisterSet(int count, ByteBuffer buffer, int offset) {
+        super(count, getSizeForCount(count));
+        if (buffer.order() != ByteOrder.BIG_ENDIAN) {
+            throw new IllegalArgumentException("buffer must be big-endian");
+        }
+        if (buffer.limit() - offset < size * 4) {
+            throw new IllegalArgumentException("buffer has " + (buffer.limit() - offset)
+                                               + " bytes after offset " + offset + ", " + (size * 4)
+                                               + " needed for " + count + " registers");
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        countRanks();
+    }
+
+    @Override
+    int word(int bucket) {
+        return buffer.getInt(offset + (bucket << 2));
+    }
+
+    @Override
+    void setWord(int bucket, int word) {
+        buffer.putInt(offset + (bucket << 2), word);
+    }
+
+    @Override
+    public void flush() {
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    @Override
+    int[] readOnlyBits() {
+        return bits();
+    }
+
+    @Override
+    public int[] bits() {
+        int[] copy = new int[size];
+        for (int i = 0; i < size; i++) {
+            copy[i] = word(i);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.Closeable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Merges large numbers of estimators in parallel on a {@link ForkJoinPool}.
+ * <p/>
+ * The estimators are reduced in a balanced tree rather than folded one at a time, and the
+ * result is identical to calling {@code estimators.get(0).merge(rest)}:
+ * <ul>
+ * <li>{@link HyperLogLog} registers are unioned as raw words.  Each subtree produces one word
+ * array and the union of two subtrees is split by word range across workers.</li>
+ * <li>{@link HyperLogLogPlus} normal mode inputs are unioned the same way, while the sparse
+ * inputs are first merged with each other in their own tree, so they are only applied to the
+ * registers once, as a single sparse set or as a normal estimator if their union outgrew the
+ * sparse representation.</li>
+ * <li>Any other estimator is reduced with its own merge method at every node of the tree.</li>
+ * </ul>
+ * All merge operations are associative and commutative, which is what makes the result
+ * independent of the shape of the tree.
+ * <p/>
+ * A merger created without a pool owns the pool it creates and shuts it down on {@link #close()};
+ * a pool passed in is left to the caller.
+ */
+public class CardinalityMerger implements Closeable {
+
+    /**
+     * Number of estimators a leaf of the reduction tree folds sequentially.
+     */
+    static final int LEAF_SIZE = 16;
+
+    /**
+     * Number of register words below which a union of two word arrays is not split further.
+     */
+    static final int WORD_RANGE_GRAIN = 4096;
+
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+
+    /**
+     * Merges on a new pool with one worker per available processor, shut down by {@link #close()}.
+     */
+    public CardinalityMerger() {
+        this(new ForkJoinPool(), true);
+    }
+
+    /**
+     * Merges on the given pool, which {@link #close()} leaves running.
+     */
+    public CardinalityMerger(ForkJoinPool pool) {
+        this(pool, false);
+    }
+
+    private CardinalityMerger(ForkJoinPool pool, boolean ownsPool) {
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * Shuts down the pool if this merger created it.
+     */
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.shutdown();
+        }
+    }
+
+    public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException {
+        return merge(Arrays.asList(estimators));
+    }
+
+    /**
+     * @param estimators one or more compatible estimators, none of which are modified
+     * @return a new estimator for the combined streams of all estimators
+     * @throws CardinalityMergeException if the estimators are not compatible with each other
+     */
+    public ICardinality merge(List<? extends ICardinality> estimators) throws CardinalityMergeException {
+        if (estimators.isEmpty()) {
+            throw new IllegalArgumentException("No estimators to merge");
+        }
+        try {
+            ICardinality first = estimators.get(0);
+            if (first instanceof HyperLogLog && all(estimators, HyperLogLog.class)) {
+                return mergeHyperLogLogs(estimators);
+            }
+            if (first instanceof HyperLogLogPlus && all(estimators, HyperLogLogPlus.class)) {
+                return mergeHyperLogLogPluses(estimators);
+            }
+            return pool.invoke(new MergeTask(estimators, 0, estimators.size()));
+        } catch (MergeFailure e) {
+            throw e.unwrap();
+        }
+    }
+
+    private static boolean all(List<? extends ICardinality> estimators, Class<?> type) {
+        for (ICardinality estimator : estimators) {
+            if (!type.isInstance(estimator)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ICardinality mergeHyperLogLogs(List<? extends ICardinality> estimators) {
+        // estimators of higher precision are folded to the lowest, as HyperLogLog.merge does
+        int count = Integer.MAX_VALUE;
+        for (ICardinality estimator : estimators) {
+            count = Math.min(count, ((HyperLogLog) estimator).registerSet().count);
+        }
+        int log2m = Integer.numberOfTrailingZeros(count);
+
+        List<int[]> words = new ArrayList<int[]>(estimators.size());
+        for (ICardinality estimator : estimators) {
+            RegisterSet registers = ((HyperLogLog) estimator).registerSet();
+            if (registers.count != count) {
+                registers = registers.fold(Integer.numberOfTrailingZeros(registers.count), log2m);
+            }
+            words.add(registers.readOnlyBits());
+        }
+
+        int[] union = pool.invoke(new WordUnionTask(words, 0, words.size(), RegisterSet.getSizeForCount(count)));
+        RegisterSet merged = new RegisterSet(count, union);
+        if (((HyperLogLog) estimators.get(0)).registerSet() instanceof CompactRegisterSet) {
+            RegisterSet compact = RegisterSet.compact(count);
+            compact.merge(merged);
+            merged = compact;
+        }
+        return HyperLogLog.withRegisters(log2m, merged);
+    }
+
+    private ICardinality mergeHyperLogLogPluses(List<? extends ICardinality> estimators) throws CardinalityMergeException {
+        // estimators of higher precision are folded to the lowest, as HyperLogLogPlus.merge does
+        int p = Integer.MAX_VALUE;
+        for (ICardinality estimator : estimators) {
+            p = Math.min(p, ((HyperLogLogPlus) estimator).getP());
+        }
+
+        HyperLogLogPlus first = null;
+        List<int[]> normal = new ArrayList<int[]>();
+        List<HyperLogLogPlus> sparse = new ArrayList<HyperLogLogPlus>();
+        for (ICardinality estimator : estimators) {
+            HyperLogLogPlus hllp = (HyperLogLogPlus) estimator;
+            if (hllp.getP() != p) {
+                hllp = hllp.fold(p);
+            }
+            if (first == null) {
+                first = hllp;
+            }
+            // flush the temp sets here rather than concurrently in the workers
+            if (hllp.format == HyperLogLogPlus.Format.SPARSE) {
+                hllp.mergeTempList();
+            }
+            if (hllp.format == HyperLogLogPlus.Format.NORMAL) {
+                normal.add(hllp.getRegisterSet().readOnlyBits());
+            } else {
+                sparse.add(hllp);
+            }
+        }
+
+        // created as HyperLogLogPlus.merge creates it, so the result has the same p and sp
+        HyperLogLogPlus merged = first.emptyCopy();
+        if (!normal.isEmpty()) {
+            int count = 1 << p;
+            int[] union = pool.invoke(new WordUnionTask(normal, 0, normal.size(), RegisterSet.getSizeForCount(count)));
+            merged.addAll(HyperLogLogPlus.normal(p, new RegisterSet(count, union)));
+        }
+        if (!sparse.isEmpty()) {
+            merged.addAll((HyperLogLogPlus) pool.invoke(new MergeTask(sparse, 0, sparse.size())));
+        }
+        return merged;
+    }
+
+    /**
+     * Carries a merge exception out of a worker.
+     */
+    @SuppressWarnings("serial")
+    private static class MergeFailure extends RuntimeException {
+
+        MergeFailure(CardinalityMergeException cause) {
+            super(cause);
+        }
+
+        /**
+         * The pool may rethrow a copy of the exception thrown in the worker, with the
+         * original as its cause, so look for the merge exception down the chain.
+         */
+        CardinalityMergeException unwrap() {
+            Throwable t = this;
+            while (!(t instanceof CardinalityMergeException)) {
+                t = t.getCause();
+            }
+            return (CardinalityMergeException) t;
+        }
+    }
+
+    /**
+     * Reduces estimators[from, to) with their merge methods, keeping the estimators in order.
+     */
+    @SuppressWarnings("serial")
+    private static class MergeTask extends RecursiveTask<ICardinality> {
+
+        private final List<? extends ICardinality> estimators;
+        private final int from;
+        private final int to;
+
+        MergeTask(List<? extends ICardinality> estimators, int from, int to) {
+            this.estimators = estimators;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected ICardinality compute() {
+            try {
+                if (to - from <= LEAF_SIZE) {
+                    List<? extends ICardinality> rest = estimators.subList(from + 1, to);
+                    return estimators.get(from).merge(rest.toArray(new ICardinality[rest.size()]));
+                }
+                int mid = (from + to) >>> 1;
+                MergeTask left = new MergeTask(estimators, from, mid);
+                left.fork();
+                ICardinality right = new MergeTask(estimators, mid, to).compute();
+                return left.join().merge(right);
+            } catch (CardinalityMergeException e) {
+                throw new MergeFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Unions the register words of words[from, to) into a new array.
+     */
+    @SuppressWarnings("serial")
+    private static class WordUnionTask extends RecursiveTask<int[]> {
+
+        private final List<int[]> words;
+        private final int from;
+        private final int to;
+        private final int size;
+
+        WordUnionTask(List<int[]> words, int from, int to, int size) {
+            this.words = words;
+            this.from = from;
+            this.to = to;
+            this.size = size;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= LEAF_SIZE) {
+                int[] union = new int[size];
+                for (int i = from; i < to; i++) {
+                    RegisterSet.mergeWords(union, words.get(i), 0, size);
+                }
+                return union;
+            }
+            int mid = (from + to) >>> 1;
+            WordUnionTask left = new WordUnionTask(words, from, mid, size);
+            left.fork();
+            int[] right = new WordUnionTask(words, mid, to, size).compute();
+            int[] union = left.join();
+            new WordRangeTask(union, right, 0, size).invoke();
+            return union;
+        }
+    }
+
+    /**
+     * Merges source[from, to) into target[from, to), splitting the range across workers.
+     */
+    @SuppressWarnings("serial")
+    private static class WordRangeTask extends RecursiveAction {
+
+        private final int[] target;
+        private final int[] source;
+        private final int from;
+        private final int to;
+
+        WordRangeTask(int[] target, int[] source, int from, int to) {
+            this.target = target;
+            this.source = source;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= WORD_RANGE_GRAIN) {
+                RegisterSet.mergeWords(target, source, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new WordRangeTask(target, source, from, mid), new WordRangeTask(target, source, mid, to));
+        }
+    }
+}
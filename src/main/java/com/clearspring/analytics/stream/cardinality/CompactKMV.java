@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+import com.clearspring.analytics.util.Varint;
+
+/**
+ * Read-only KMV sample, the sorted hashes an {@link AdaKMV} retained and the theta bounding
+ * them, on which sets of streams can be combined the way theta sketches combine them.
+ * <p/>
+ * Every hash at or below theta that any of the streams produced is in the sample, so the
+ * number of retained hashes over theta / Long.MAX_VALUE estimates the number of distinct
+ * elements.  A theta of Long.MAX_VALUE means the sample holds every hash and counts exactly.
+ * <p/>
+ * {@link #union}, {@link #intersect} and {@link #aNotB} cut their inputs to the smallest
+ * theta among them and combine the hashes with a single linear pass over the sorted arrays,
+ * so the result is again a sample that can be estimated, combined further and serialized
+ * with {@link #getBytes()} as delta encoded varints.
+ */
+public class CompactKMV implements ICardinality {
+
+    private final long theta;
+
+    /**
+     * Ascending, none above theta
+     */
+    private final long[] values;
+
+    CompactKMV(long theta, long[] values) {
+        this.theta = theta;
+        this.values = values;
+    }
+
+    /**
+     * @return a sample of nothing, the identity of {@link #union}
+     */
+    public static CompactKMV empty() {
+        return new CompactKMV(Long.MAX_VALUE, new long[0]);
+    }
+
+    public long theta() {
+        return theta;
+    }
+
+    /**
+     * @return the number of retained hashes
+     */
+    public int retained() {
+        return values.length;
+    }
+
+    /**
+     * @return the retained hashes in ascending order
+     */
+    public long[] values() {
+        return values.clone();
+    }
+
+    @Override
+    public long cardinality() {
+        if (theta == Long.MAX_VALUE) {
+            return values.length;
+        }
+        // the same estimate AdaKMV makes from its records
+        final double distance = (1.0 * theta) / Long.MAX_VALUE;
+        return (long) Math.floor(1.0 / distance * values.length);
+    }
+
+    /**
+     * @return a sample of the union of the streams
+     */
+    public static CompactKMV union(CompactKMV... sketches) {
+        long theta = minTheta(sketches);
+        long[] union = new long[0];
+        int n = 0;
+        for (CompactKMV sketch : sketches) {
+            long[] merged = new long[n + sketch.values.length];
+            n = union(union, n, sketch.values, theta, merged);
+            union = merged;
+        }
+        return new CompactKMV(theta, Arrays.copyOf(union, n));
+    }
+
+    /**
+     * @return a sample of the elements found in both streams
+     */
+    public static CompactKMV intersect(CompactKMV a, CompactKMV b) {
+        long theta = Math.min(a.theta, b.theta);
+        long[] x = a.values;
+        long[] y = b.values;
+        long[] both = new long[Math.min(x.length, y.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < x.length && j < y.length && x[i] <= theta && y[j] <= theta) {
+            if (x[i] < y[j]) {
+                i++;
+            } else if (x[i] > y[j]) {
+                j++;
+            } else {
+                both[n++] = x[i];
+                i++;
+                j++;
+            }
+        }
+        return new CompactKMV(theta, Arrays.copyOf(both, n));
+    }
+
+    /**
+     * @return a sample of the elements of stream a not found in stream b
+     */
+    public static CompactKMV aNotB(CompactKMV a, CompactKMV b) {
+        long theta = Math.min(a.theta, b.theta);
+        long[] x = a.values;
+        long[] y = b.values;
+        long[] difference = new long[x.length];
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < x.length && x[i] <= theta; i++) {
+            while (j < y.length && y[j] < x[i]) {
+                j++;
+            }
+            if (j == y.length || y[j] != x[i]) {
+                difference[n++] = x[i];
+            }
+        }
+        return new CompactKMV(theta, Arrays.copyOf(difference, n));
+    }
+
+    private static long minTheta(CompactKMV... sketches) {
+        long theta = Long.MAX_VALUE;
+        for (CompactKMV sketch : sketches) {
+            theta = Math.min(theta, sketch.theta);
+        }
+        return theta;
+    }
+
+    /**
+     * Merges x[0, xLength) and y, leaving out duplicates and values above theta.
+     *
+     * @return the number of values written to target
+     */
+    private static int union(long[] x, int xLength, long[] y, long theta, long[] target) {
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < xLength || j < y.length) {
+            long value;
+            if (j == y.length || (i < xLength && x[i] < y[j])) {
+                value = x[i++];
+            } else if (i == xLength || y[j] < x[i]) {
+                value = y[j++];
+            } else {
+                value = x[i++];
+                j++;
+            }
+            if (value > theta) {
+                break;
+            }
+            target[n++] = value;
+        }
+        return n;
+    }
+
+    @Override
+    public boolean offer(Object o) {
+        throw new UnsupportedOperationException("CompactKMV is read-only");
+    }
+
+    @Override
+    public boolean offerHashed(long hashedLong) {
+        throw new UnsupportedOperationException("CompactKMV is read-only");
+    }
+
+    @Override
+    public boolean offerHashed(int hashedInt) {
+        throw new UnsupportedOperationException("CompactKMV is read-only");
+    }
+
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        throw new UnsupportedOperationException("CompactKMV is read-only");
+    }
+
+    @Override
+    public int sizeof() {
+        return 8 * values.length;
+    }
+
+    /**
+     * Theta as a long, the number of hashes as a varint, then the hashes as varint deltas
+     * from the previous one.
+     */
+    @Override
+    public byte[] getBytes() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(12 + 3 * values.length);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeLong(theta);
+        Varint.writeUnsignedVarInt(values.length, dos);
+        long previous = 0;
+        for (long value : values) {
+            Varint.writeUnsignedVarLong(value - previous, dos);
+            previous = value;
+        }
+        return baos.toByteArray();
+    }
+
+    public static CompactKMV readFrom(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        long theta = in.readLong();
+        int count = Varint.readUnsignedVarInt(in);
+        if (count < 0 || count > bytes.length) {
+            throw new IOException("Invalid number of hashes " + count);
+        }
+        long[] values = new long[count];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            values[i] = previous + Varint.readUnsignedVarLong(in);
+            if ((i > 0 && values[i] <= previous) || values[i] > theta) {
+                throw new IOException("Hashes out of order or above theta");
+            }
+            previous = values[i];
+        }
+        return new CompactKMV(theta, values);
+    }
+
+    /**
+     * @return the union of this sample and the given samples or AdaKMV instances
+     */
+    @Override
+    public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException {
+        if (estimators == null) {
+            return this;
+        }
+        CompactKMV[] sketches = new CompactKMV[estimators.length + 1];
+        sketches[0] = this;
+        for (int i = 0; i < estimators.length; i++) {
+            if (estimators[i] instanceof CompactKMV) {
+                sketches[i + 1] = (CompactKMV) estimators[i];
+            } else if (estimators[i] instanceof AdaKMV) {
+                sketches[i + 1] = ((AdaKMV) estimators[i]).compact();
+            } else {
+                throw new AdaKMV.AdaKMVMergeException("Cannot merge estimators of different class");
+            }
+        }
+        return union(sketches);
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.clearspring.analytics.util.Varint;
+
+/**
+ * {@link RegisterSet} that stores each register as a 4 bit offset from a shared base value,
+ * the value of the smallest register.
+ * <p/>
+ * Once an estimator has seen a few times more elements than it has registers, the registers
+ * sit in a narrow band, so 4 bits cover almost all of them.  A register 15 or more above the
+ * base holds the escape nibble and its value is kept in a small sorted exception table.  The
+ * base is raised whenever the last register holding it grows, which also moves registers out
+ * of the exception table again.
+ * <p/>
+ * Nibbles are packed 16 to a long, so merging two sets with the same base takes the nibble
+ * wise maximum a long at a time.  The serialized form, {@link #writeTo(DataOutput)}, is the
+ * base, the nibbles two to a byte and the exceptions as delta coded positions with their values.
+ */
+class CompactRegisterSet extends RegisterSet {
+
+    static final int NIBBLE_BITS = 4;
+    static final int ESCAPE = (1 << NIBBLE_BITS) - 1;
+
+    private static final long LOW_NIBBLES = 0x0F0F0F0F0F0F0F0FL;
+    private static final long BYTE_CARRIES = 0x1010101010101010L;
+    private static final long BYTE_ONES = 0x0101010101010101L;
+
+    private final long[] nibbles;
+    private int base;
+
+    private int[] exceptionPositions = new int[4];
+    private byte[] exceptionValues = new byte[4];
+    private int exceptions;
+
+    CompactRegisterSet(int count) {
+        super(count, getSizeForCount(count));
+        this.nibbles = new long[(count + 15) >>> 4];
+        countRanks();
+    }
+
+    private CompactRegisterSet(int count, int base, long[] nibbles) {
+        super(count, getSizeForCount(count));
+        this.base = base;
+        this.nibbles = nibbles;
+    }
+
+    private int nibble(int position) {
+        return (int) (nibbles[position >>> 4] >>> ((position & 15) << 2)) & ESCAPE;
+    }
+
+    @Override
+    public int get(int position) {
+        int nibble = nibble(position);
+        return nibble == ESCAPE ? exceptionValue(position) : base + nibble;
+    }
+
+    @Override
+    public void set(int position, int value) {
+        value = Math.min(value, REGISTER_MAX);
+        int old = get(position);
+        rankChanged(old, value);
+        if (value < base) {
+            rebase(value);
+        }
+        store(position, value);
+        if (old == base) {
+            raiseBase();
+        }
+    }
+
+    @Override
+    public boolean updateIfGreater(int position, int value) {
+        value = Math.min(value, REGISTER_MAX);
+        int old = get(position);
+        if (old >= value) {
+            return false;
+        }
+        rankChanged(old, value);
+        store(position, value);
+        if (old == base) {
+            raiseBase();
+        }
+        return true;
+    }
+
+    /**
+     * Writes the value without touching the rank counts, it must not be below the base.
+     */
+    private void store(int position, int value) {
+        int index = position >>> 4;
+        int shift = (position & 15) << 2;
+        long word = nibbles[index];
+        int old = (int) (word >>> shift) & ESCAPE;
+        int offset = value - base;
+        if (offset >= ESCAPE) {
+            putException(position, value);
+            offset = ESCAPE;
+        } else if (old == ESCAPE) {
+            removeException(position);
+        }
+        nibbles[index] = (word & ~((long) ESCAPE << shift)) | ((long) offset << shift);
+    }
+
+    private void raiseBase() {
+        int newBase = base;
+        while (rankCount(newBase) == 0) {
+            newBase++;
+        }
+        if (newBase != base) {
+            rebase(newBase);
+        }
+    }
+
+    /**
+     * Re-encodes every register against a new base.  The new base must not be above the
+     * smallest register.
+     */
+    private void rebase(int newBase) {
+        int oldBase = base;
+        base = newBase;
+        for (int j = 0; j < count; j++) {
+            int nibble = nibble(j);
+            store(j, nibble == ESCAPE ? exceptionValue(j) : oldBase + nibble);
+        }
+    }
+
+    private int exceptionValue(int position) {
+        return exceptionValues[Arrays.binarySearch(exceptionPositions, 0, exceptions, position)];
+    }
+
+    private void putException(int position, int value) {
+        int i = Arrays.binarySearch(exceptionPositions, 0, exceptions, position);
+        if (i >= 0) {
+            exceptionValues[i] = (byte) value;
+            return;
+        }
+        i = -(i + 1);
+        if (exceptions == exceptionPositions.length) {
+            exceptionPositions = Arrays.copyOf(exceptionPositions, exceptions * 2);
+            exceptionValues = Arrays.copyOf(exceptionValues, exceptions * 2);
+        }
+        System.arraycopy(exceptionPositions, i, exceptionPositions, i + 1, exceptions - i);
+        System.arraycopy(exceptionValues, i, exceptionValues, i + 1, exceptions - i);
+        exceptionPositions[i] = position;
+        exceptionValues[i] = (byte) value;
+        exceptions++;
+    }
+
+    private void removeException(int position) {
+        int i = Arrays.binarySearch(exceptionPositions, 0, exceptions, position);
+        System.arraycopy(exceptionPositions, i + 1, exceptionPositions, i, exceptions - i - 1);
+        System.arraycopy(exceptionValues, i + 1, exceptionValues, i, exceptions - i - 1);
+        exceptions--;
+    }
+
+    /**
+     * The 5 bit word the base class would hold for the bucket, so that the word based merges
+     * and {@link #bits()} work unchanged.
+     */
+    @Override
+    int word(int bucket) {
+        int word = 0;
+        int first = bucket * LOG2_BITS_PER_WORD;
+        int last = Math.min(first + LOG2_BITS_PER_WORD, count);
+        for (int j = first; j < last; j++) {
+            word |= get(j) << (REGISTER_SIZE * (j - first));
+        }
+        return word;
+    }
+
+    /**
+     * Only called by the word based merges, which have already counted the changes and never
+     * lower a register.
+     */
+    @Override
+    void setWord(int bucket, int word) {
+        int first = bucket * LOG2_BITS_PER_WORD;
+        int last = Math.min(first + LOG2_BITS_PER_WORD, count);
+        for (int j = first; j < last; j++) {
+            store(j, (word >>> (REGISTER_SIZE * (j - first))) & REGISTER_MAX);
+        }
+    }
+
+    @Override
+    public void merge(RegisterSet that) {
+        if (that instanceof CompactRegisterSet && ((CompactRegisterSet) that).base == base
+            && that.count == count) {
+            mergeNibbles((CompactRegisterSet) that);
+        } else {
+            super.merge(that);
+        }
+        raiseBase();
+    }
+
+    @Override
+    void merge(ByteBuffer buffer, int offset) {
+        super.merge(buffer, offset);
+        raiseBase();
+    }
+
+    private void mergeNibbles(CompactRegisterSet that) {
+        for (int i = 0; i < nibbles.length; i++) {
+            nibbles[i] = maxOfNibbles(nibbles[i], that.nibbles[i]);
+        }
+        // the escape nibble is the largest, so wherever either side had an exception the
+        // merged nibble is an escape and only the table needs updating
+        for (int i = 0; i < that.exceptions; i++) {
+            int position = that.exceptionPositions[i];
+            int value = that.exceptionValues[i];
+            int j = Arrays.binarySearch(exceptionPositions, 0, exceptions, position);
+            if (j < 0 || exceptionValues[j] < value) {
+                putException(position, value);
+            }
+        }
+        recountRanks();
+    }
+
+    /**
+     * @return the larger of each pair of nibbles packed in the two longs
+     */
+    static long maxOfNibbles(long a, long b) {
+        return maxOfLowNibbles(a & LOW_NIBBLES, b & LOW_NIBBLES)
+               | (maxOfLowNibbles((a >>> 4) & LOW_NIBBLES, (b >>> 4) & LOW_NIBBLES) << 4);
+    }
+
+    /**
+     * Both arguments hold one nibble in the low half of each byte.  Subtracting them from a
+     * value with bit 4 of each byte set cannot borrow across bytes, and leaves bit 4 set
+     * exactly where the nibble of a is the larger or equal one.
+     */
+    private static long maxOfLowNibbles(long a, long b) {
+        long aWins = ((((a | BYTE_CARRIES) - b) >>> 4) & BYTE_ONES) * ESCAPE;
+        return (a & aWins) | (b & ~aWins);
+    }
+
+    @Override
+    int[] readOnlyBits() {
+        return bits();
+    }
+
+    @Override
+    public int[] bits() {
+        int[] copy = new int[size];
+        for (int i = 0; i < size; i++) {
+            copy[i] = word(i);
+        }
+        return copy;
+    }
+
+    /**
+     * @return the bytes held on the heap for the registers
+     */
+    int sizeof() {
+        return nibbles.length * 8 + exceptionPositions.length * 5;
+    }
+
+    /**
+     * Writes the base, the nibbles two to a byte with the lower position in the low half, and
+     * the exception table as varint position deltas each followed by the register value.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeByte(base);
+        int bytes = (count + 1) >>> 1;
+        for (int i = 0; i < bytes; i++) {
+            out.writeByte((int) (nibbles[i >>> 3] >>> ((i & 7) << 3)));
+        }
+        Varint.writeUnsignedVarInt(exceptions, out);
+        int previous = 0;
+        for (int i = 0; i < exceptions; i++) {
+            Varint.writeUnsignedVarInt(exceptionPositions[i] - previous, out);
+            out.writeByte(exceptionValues[i]);
+            previous = exceptionPositions[i];
+        }
+    }
+
+    /**
+     * Writes the layout of {@link #writeTo(DataOutput)} at the buffer's position.
+     */
+    void writeTo(ByteBuffer out) {
+        out.put((byte) base);
+        int bytes = (count + 1) >>> 1;
+        for (int i = 0; i < bytes; i++) {
+            out.put((byte) (nibbles[i >>> 3] >>> ((i & 7) << 3)));
+        }
+        Varint.writeUnsignedVarInt(exceptions, out);
+        int previous = 0;
+        for (int i = 0; i < exceptions; i++) {
+            Varint.writeUnsignedVarInt(exceptionPositions[i] - previous, out);
+            out.put(exceptionValues[i]);
+            previous = exceptionPositions[i];
+        }
+    }
+
+    /**
+     * @return the number of bytes {@link #writeTo(DataOutput)} writes
+     */
+    int serializedSize() {
+        int size = 1 + ((count + 1) >>> 1) + Varint.sizeOfUnsignedVarInt(exceptions);
+        int previous = 0;
+        for (int i = 0; i < exceptions; i++) {
+            size += Varint.sizeOfUnsignedVarInt(exceptionPositions[i] - previous) + 1;
+            previous = exceptionPositions[i];
+        }
+        return size;
+    }
+
+    static CompactRegisterSet readFrom(int count, DataInput in) throws IOException {
+        int base = in.readUnsignedByte();
+        byte[] bytes = new byte[(count + 1) >>> 1];
+        in.readFully(bytes);
+        CompactRegisterSet registers = fromNibbles(count, base, bytes);
+
+        int exceptions = Varint.readUnsignedVarInt(in);
+        registers.checkEscapes(exceptions);
+        for (int i = 0; i < exceptions; i++) {
+            int delta = Varint.readUnsignedVarInt(in);
+            registers.readException(delta, in.readUnsignedByte());
+        }
+        registers.countRanks();
+        return registers;
+    }
+
+    /**
+     * Reads the layout of {@link #writeTo(DataOutput)} from the buffer's position and
+     * advances the position past it.
+     *
+     * @throws java.nio.BufferUnderflowException if the buffer ends first
+     */
+    static CompactRegisterSet readFrom(int count, ByteBuffer in) throws IOException {
+        int base = in.get() & 0xff;
+        byte[] bytes = new byte[(count + 1) >>> 1];
+        in.get(bytes);
+        CompactRegisterSet registers = fromNibbles(count, base, bytes);
+
+        int exceptions = Varint.readUnsignedVarInt(in);
+        registers.checkEscapes(exceptions);
+        for (int i = 0; i < exceptions; i++) {
+            int delta = Varint.readUnsignedVarInt(in);
+            registers.readException(delta, in.get() & 0xff);
+        }
+        registers.countRanks();
+        return registers;
+    }
+
+    private static CompactRegisterSet fromNibbles(int count, int base, byte[] bytes) throws IOException {
+        if (base > REGISTER_MAX) {
+            throw new IOException("Register base " + base + " is larger than " + REGISTER_MAX);
+        }
+        long[] nibbles = new long[(count + 15) >>> 4];
+        for (int i = 0; i < bytes.length; i++) {
+            nibbles[i >>> 3] |= (long) (bytes[i] & 0xff) << ((i & 7) << 3);
+        }
+        if ((count & 1) != 0) {
+            // the high half of the last byte is padding
+            nibbles[(count - 1) >>> 4] &= ~((long) ESCAPE << ((count & 15) << 2));
+        }
+        return new CompactRegisterSet(count, base, nibbles);
+    }
+
+    private void checkEscapes(int expected) throws IOException {
+        int escapes = 0;
+        for (int j = 0; j < count; j++) {
+            if (nibble(j) == ESCAPE) {
+                escapes++;
+            }
+        }
+        if (expected != escapes) {
+            throw new IOException(escapes + " escaped registers but " + expected + " exceptions");
+        }
+    }
+
+    /**
+     * Appends a deserialized exception, checking it belongs to an escaped register.
+     */
+    private void readException(int delta, int value) throws IOException {
+        int position = exceptions == 0 ? delta : exceptionPositions[exceptions - 1] + delta;
+        if ((delta == 0 && exceptions > 0) || position < 0 || position >= count
+            || nibble(position) != ESCAPE || value < base + ESCAPE || value > REGISTER_MAX) {
+            throw new IOException("Invalid exception " + value + " for register " + position);
+        }
+        putException(position, value);
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.clearspring.analytics.hash.MurmurHash;
+import com.clearspring.analytics.util.Bits;
+import com.clearspring.analytics.util.IBuilder;
+
+import static com.clearspring.analytics.stream.cardinality.RegisterSet.LOG2_BITS_PER_WORD;
+import static com.clearspring.analytics.stream.cardinality.RegisterSet.REGISTER_SIZE;
+
+/**
+ * {@link HyperLogLog} that can be offered to from many threads at once without external locking.
+ * <p/>
+ * Registers are kept in a {@link ConcurrentRegisterSet} and updated with compare-and-set, so
+ * concurrent offers never lose an update. Hashes are mapped to registers exactly as HyperLogLog
+ * maps them, and the estimate is computed with the same estimator, so a ConcurrentHyperLogLog
+ * and a HyperLogLog offered the same values hold the same registers and report the same
+ * cardinality. The serialized form is that of HyperLogLog and can be read with
+ * {@link HyperLogLog.Builder#build(byte[])}.
+ * <p/>
+ * Unlike HyperLogLog the estimate is not cached: cardinality() scans all registers, and when
+ * writers are active it reflects some interleaving of their updates.
+ */
+public class ConcurrentHyperLogLog implements ICardinality {
+
+    private final ConcurrentRegisterSet registerSet;
+    private final int log2m;
+    private final double alphaMM;
+
+    /**
+     * Create a new ConcurrentHyperLogLog instance.
+     *
+     * @param log2m - the number of bits to use as the basis for the HLL instance
+     */
+    public ConcurrentHyperLogLog(int log2m) {
+        this(log2m, new ConcurrentRegisterSet(1 << log2m));
+    }
+
+    private ConcurrentHyperLogLog(int log2m, ConcurrentRegisterSet registerSet) {
+        HyperLogLog.validateLog2m(log2m);
+        this.registerSet = registerSet;
+        this.log2m = log2m;
+        int m = 1 << this.log2m;
+
+        alphaMM = HyperLogLog.getAlphaMM(log2m, m);
+    }
+
+    @Override
+    public boolean offerHashed(long hashedValue) {
+        // j becomes the binary address determined by the first b log2m of x
+        // j will be between 0 and 2^log2m
+        final int j = (int) (hashedValue >>> (Long.SIZE - log2m));
+        final int r = Long.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+        return registerSet.updateIfGreater(j, r);
+    }
+
+    @Override
+    public boolean offerHashed(int hashedValue) {
+        // j becomes the binary address determined by the first b log2m of x
+        // j will be between 0 and 2^log2m
+        final int j = hashedValue >>> (Integer.SIZE - log2m);
+        final int r = Integer.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+        return registerSet.updateIfGreater(j, r);
+    }
+
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++) {
+            modified |= offerHashed(hashes[i]);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean offer(Object o) {
+        final int x = MurmurHash.hash(o);
+        return offerHashed(x);
+    }
+
+    @Override
+    public long cardinality() {
+        int count = registerSet.count;
+        double registerSum = 0;
+        int zeros = 0;
+
+        // one volatile read per word rather than one per register
+        for (int bucket = 0; bucket < registerSet.size; bucket++) {
+            int word = registerSet.word(bucket);
+            int registers = Math.min(LOG2_BITS_PER_WORD, count - bucket * LOG2_BITS_PER_WORD);
+            for (int i = 0; i < registers; i++) {
+                int val = (word >>> (REGISTER_SIZE * i)) & 0x1f;
+                registerSum += Math.scalb(1d, -val);
+                if (val == 0) {
+                    zeros++;
+                }
+            }
+        }
+
+        return HyperLogLog.estimate(alphaMM, count, registerSum, zeros);
+    }
+
+    @Override
+    public int sizeof() {
+        return registerSet.size * 4;
+    }
+
+    @Override
+    public byte[] getBytes() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+
+        dos.writeInt(log2m);
+        dos.writeInt(registerSet.size * 4);
+        for (int x : registerSet.bits()) {
+            dos.writeInt(x);
+        }
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return a HyperLogLog holding a copy of the current registers
+     */
+    public HyperLogLog toHyperLogLog() {
+        return HyperLogLog.withRegisters(log2m, new RegisterSet(registerSet.count, registerSet.bits()));
+    }
+
+    /**
+     * Add all the elements of the other set to this set. Safe to call while other threads
+     * are offering to this instance.
+     *
+     * @param other A compatible HyperLogLog instance (same log2m)
+     * @throws CardinalityMergeException if other is not compatible
+     */
+    public void addAll(HyperLogLog other) throws CardinalityMergeException {
+        if (registerSet.count != other.registerSet().count) {
+            throw new HyperLogLog.HyperLogLogMergeException("Cannot merge estimators of different sizes");
+        }
+
+        registerSet.merge(other.registerSet());
+    }
+
+    /**
+     * Add all the elements of the other set to this set. Safe to call while other threads
+     * are offering to either instance.
+     *
+     * @param other A compatible ConcurrentHyperLogLog instance (same log2m)
+     * @throws CardinalityMergeException if other is not compatible
+     */
+    public void addAll(ConcurrentHyperLogLog other) throws CardinalityMergeException {
+        if (this.sizeof() != other.sizeof()) {
+            throw new HyperLogLog.HyperLogLogMergeException("Cannot merge estimators of different sizes");
+        }
+
+        registerSet.merge(other.registerSet);
+    }
+
+    /**
+     * Merges estimators to produce a new ConcurrentHyperLogLog. Accepts both HyperLogLog and
+     * ConcurrentHyperLogLog instances of the same size.
+     */
+    @Override
+    public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException {
+        ConcurrentHyperLogLog merged = new ConcurrentHyperLogLog(log2m);
+        merged.addAll(this);
+
+        if (estimators == null) {
+            return merged;
+        }
+
+        for (ICardinality estimator : estimators) {
+            if (estimator instanceof ConcurrentHyperLogLog) {
+                merged.addAll((ConcurrentHyperLogLog) estimator);
+            } else if (estimator instanceof HyperLogLog) {
+                merged.addAll((HyperLogLog) estimator);
+            } else {
+                throw new HyperLogLog.HyperLogLogMergeException("Cannot merge estimators of different class");
+            }
+        }
+
+        return merged;
+    }
+
+    public static class Builder implements IBuilder<ICardinality> {
+
+        private final int log2m;
+
+        public Builder(int log2m) {
+            HyperLogLog.validateLog2m(log2m);
+            this.log2m = log2m;
+        }
+
+        @Override
+        public ConcurrentHyperLogLog build() {
+            return new ConcurrentHyperLogLog(log2m);
+        }
+
+        @Override
+        public int sizeof() {
+            return RegisterSet.getBits(1 << log2m) * 4;
+        }
+
+        public static ConcurrentHyperLogLog build(byte[] bytes) throws IOException {
+            ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+            return build(new DataInputStream(bais));
+        }
+
+        /**
+         * Reads the serialized form written by either HyperLogLog or ConcurrentHyperLogLog.
+         * Compact HyperLogLog registers are decoded and copied into packed registers.
+         */
+        public static ConcurrentHyperLogLog build(DataInput serializedByteStream) throws IOException {
+            int log2m = serializedByteStream.readInt();
+            if (log2m == HyperLogLog.COMPACT_REGISTERS) {
+                log2m = serializedByteStream.readInt();
+                HyperLogLog.validateLog2m(log2m);
+                int[] bits = CompactRegisterSet.readFrom(1 << log2m, serializedByteStream).bits();
+                return new ConcurrentHyperLogLog(log2m, new ConcurrentRegisterSet(1 << log2m, bits));
+            }
+            int byteArraySize = serializedByteStream.readInt();
+            return new ConcurrentHyperLogLog(log2m,
+                    new ConcurrentRegisterSet(1 << log2m, Bits.getBits(serializedByteStream, byteArraySize)));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static com.clearspring.analytics.stream.cardinality.RegisterSet.LOG2_BITS_PER_WORD;
+import static com.clearspring.analytics.stream.cardinality.RegisterSet.REGISTER_MAX;
+import static com.clearspring.analytics.stream.cardinality.RegisterSet.REGISTER_SIZE;
+
+/**
+ * Thread safe variant of {@link RegisterSet}.
+ * <p/>
+ * Registers are packed into the same 5 bit layout, six per word, but the words live in an
+ * {@link AtomicIntegerArray} and every write is a compare-and-set loop on the containing word.
+ * Since registers only ever grow, a writer that finds the register already at or above its
+ * value returns without writing, which keeps skewed workloads mostly read-only once warm.
+ */
+public class ConcurrentRegisterSet {
+
+    public final int count;
+    public final int size;
+
+    private final AtomicIntegerArray M;
+
+    public ConcurrentRegisterSet(int count) {
+        this(count, null);
+    }
+
+    public ConcurrentRegisterSet(int count, int[] initialValues) {
+        this.count = count;
+
+        if (initialValues == null) {
+            this.M = new AtomicIntegerArray(RegisterSet.getSizeForCount(count));
+        } else {
+            this.M = new AtomicIntegerArray(initialValues);
+        }
+        this.size = this.M.length();
+    }
+
+    public void set(int position, int value) {
+        value = Math.min(value, REGISTER_MAX);
+        int bucketPos = position / LOG2_BITS_PER_WORD;
+        int shift = REGISTER_SIZE * (position - (bucketPos * LOG2_BITS_PER_WORD));
+        int mask = 0x1f << shift;
+        while (true) {
+            int word = M.get(bucketPos);
+            if (M.compareAndSet(bucketPos, word, (word & ~mask) | (value << shift))) {
+                return;
+            }
+        }
+    }
+
+    public int get(int position) {
+        int bucketPos = position / LOG2_BITS_PER_WORD;
+        int shift = REGISTER_SIZE * (position - (bucketPos * LOG2_BITS_PER_WORD));
+        return (M.get(bucketPos) >>> shift) & 0x1f;
+    }
+
+    public boolean updateIfGreater(int position, int value) {
+        value = Math.min(value, REGISTER_MAX);
+        int bucket = position / LOG2_BITS_PER_WORD;
+        int shift = REGISTER_SIZE * (position - (bucket * LOG2_BITS_PER_WORD));
+        int mask = 0x1f << shift;
+        // the highest register ends at bit 29, so the masked values compare correctly as ints
+        int newVal = value << shift;
+
+        while (true) {
+            int word = M.get(bucket);
+            if ((word & mask) >= newVal) {
+                return false;
+            }
+            if (M.compareAndSet(bucket, word, (word & ~mask) | newVal)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Raises every register to the matching register of the given words.
+     */
+    private void merge(int[] words) {
+        for (int bucket = 0; bucket < size; bucket++) {
+            while (true) {
+                int word = M.get(bucket);
+                int merged = RegisterSet.maxOfRegisters(word, words[bucket]);
+                if ((merged == word) || M.compareAndSet(bucket, word, merged)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public void merge(RegisterSet that) {
+        merge(that.readOnlyBits());
+    }
+
+    public void merge(ConcurrentRegisterSet that) {
+        merge(that.bits());
+    }
+
+    /**
+     * @return the packed word at the given index, for readers that scan the registers word by word
+     */
+    int word(int bucket) {
+        return M.get(bucket);
+    }
+
+    /**
+     * @return a copy of the packed words. Each word is read atomically but the copy as a whole
+     * is not a snapshot if writers are active.
+     */
+    public int[] bits() {
+        int[] copy = new int[size];
+        for (int i = 0; i < size; i++) {
+            copy[i] = M.get(i);
+        }
+        return copy;
+    }
+}
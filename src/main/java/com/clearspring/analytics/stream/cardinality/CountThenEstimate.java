@@ -25,13 +25,15 @@ import java.io.ObjectOutput;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
+import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.util.ExternalizableUtil;
 import com.clearspring.analytics.util.IBuilder;
 
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
 /**
  * Exact -> Estimator cardinality counting
  * <p/>
@@ -39,6 +41,13 @@ import com.clearspring.analytics.util.IBuilder;
  * Avoids allocating a large block of memory for cardinality estimation until
  * a specified "tipping point" cardinality is reached.
  * </p>
+ * <p>
+ * Until then the 64 bit {@link MurmurHash#hash64(Object)} of each element is kept
+ * in a primitive hash set.  At the tipping point the hashes are replayed into the
+ * estimator with {@link ICardinality#offerHashed(long[], int, int)}, and later
+ * elements are offered to it hashed the same way, so the estimator must support
+ * {@link ICardinality#offerHashed(long)}.
+ * </p>
  */
 public class CountThenEstimate implements ICardinality, Externalizable {
 
@@ -48,6 +57,16 @@ public class CountThenEstimate implements ICardinality, Externalizable {
     protected final static byte LLC = 4;
     protected final static byte HLPC = 5;
 
+    /**
+     * First byte of the serialized form.  Earlier versions wrote a boolean, tipped or not,
+     * and kept the elements themselves: their elements are hashed as they are read back,
+     * and an estimator they tipped into keeps being offered elements rather than hashes.
+     */
+    private final static byte UNTIPPED_OBJECTS = 0;
+    private final static byte TIPPED_OBJECTS = 1;
+    private final static byte UNTIPPED_HASHES = 2;
+    private final static byte TIPPED_HASHES = 3;
+
     /**
      * Cardinality after which exact counting gives way to estimation
      */
@@ -70,10 +89,15 @@ public class CountThenEstimate implements ICardinality, Externalizable {
     protected ICardinality estimator;
 
     /**
-     * Cardinality counter
+     * Hashes of the elements offered so far
      * Null after tipping point is reached
      */
-    protected Set<Object> counter;
+    protected LongOpenHashSet counter;
+
+    /**
+     * True if the estimator was tipped, by an earlier version, with elements rather than hashes
+     */
+    private boolean offersObjects = false;
 
     /**
      * Default constructor
@@ -90,7 +114,7 @@ public class CountThenEstimate implements ICardinality, Externalizable {
     public CountThenEstimate(int tippingPoint, IBuilder<ICardinality> builder) {
         this.tippingPoint = tippingPoint;
         this.builder = builder;
-        this.counter = new HashSet<Object>();
+        this.counter = new LongOpenHashSet();
     }
 
     /**
@@ -103,7 +127,8 @@ public class CountThenEstimate implements ICardinality, Externalizable {
     public CountThenEstimate(byte[] bytes) throws IOException, ClassNotFoundException {
         readExternal(new ObjectInputStream(new ByteArrayInputStream(bytes)));
 
-        if (!tipped && builder.sizeof() <= bytes.length) {
+        // tip once the hashes take more room than the estimator would
+        if (!tipped && builder.sizeof() < counter.size() * (Long.SIZE / Byte.SIZE)) {
             tip();
         }
     }
@@ -116,24 +141,18 @@ public class CountThenEstimate implements ICardinality, Externalizable {
         return counter.size();
     }
 
+    /**
+     * @param hashedLong a hash of the element the way {@link #offer(Object)} computes it,
+     *                   {@link MurmurHash#hash64(Object)}, to count elements offered both ways
+     */
     @Override
     public boolean offerHashed(long hashedLong) {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean offerHashed(int hashedInt) {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean offer(Object o) {
         boolean modified = false;
 
         if (tipped) {
-            modified = estimator.offer(o);
+            modified = estimator.offerHashed(hashedLong);
         } else {
-            if (counter.add(o)) {
+            if (counter.add(hashedLong)) {
                 modified = true;
                 if (counter.size() > tippingPoint) {
                     tip();
@@ -144,6 +163,28 @@ public class CountThenEstimate implements ICardinality, Externalizable {
         return modified;
     }
 
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++) {
+            modified |= offerHashed(hashes[i]);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean offerHashed(int hashedInt) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean offer(Object o) {
+        if (offersObjects) {
+            return estimator.offer(o);
+        }
+        return offerHashed(MurmurHash.hash64(o));
+    }
+
     @Override
     public int sizeof() {
         if (tipped) {
@@ -158,9 +199,8 @@ public class CountThenEstimate implements ICardinality, Externalizable {
     private void tip() {
         estimator = builder.build();
 
-        for (Object o : counter) {
-            estimator.offer(o);
-        }
+        long[] hashes = counter.toLongArray();
+        estimator.offerHashed(hashes, 0, hashes.length);
 
         counter = null;
         builder = null;
@@ -179,7 +219,9 @@ public class CountThenEstimate implements ICardinality, Externalizable {
     @SuppressWarnings("unchecked")
     @Override
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-        tipped = in.readBoolean();
+        byte state = in.readByte();
+        tipped = state == TIPPED_OBJECTS || state == TIPPED_HASHES;
+        offersObjects = state == TIPPED_OBJECTS;
         if (tipped) {
             byte type = in.readByte();
             byte[] bytes = new byte[in.readInt()];
@@ -211,17 +253,17 @@ public class CountThenEstimate implements ICardinality, Externalizable {
 
             assert (count <= tippingPoint) : String.format("Invalid serialization: count (%d) > tippingPoint (%d)", count, tippingPoint);
 
-            counter = new HashSet<Object>(count);
+            counter = new LongOpenHashSet(count);
             for (int i = 0; i < count; i++) {
-                counter.add(in.readObject());
+                counter.add(state == UNTIPPED_OBJECTS ? MurmurHash.hash64(in.readObject()) : in.readLong());
             }
         }
     }
 
     @Override
     public void writeExternal(ObjectOutput out) throws IOException {
-        out.writeBoolean(tipped);
         if (tipped) {
+            out.writeByte(offersObjects ? TIPPED_OBJECTS : TIPPED_HASHES);
             if (estimator instanceof LinearCounting) {
                 out.writeByte(LC);
             } else if (estimator instanceof AdaptiveCounting) {
@@ -240,11 +282,12 @@ public class CountThenEstimate implements ICardinality, Externalizable {
             out.writeInt(bytes.length);
             out.write(bytes);
         } else {
+            out.writeByte(UNTIPPED_HASHES);
             out.writeInt(tippingPoint);
             out.writeObject(builder);
             out.writeInt(counter.size());
-            for (Object o : counter) {
-                out.writeObject(o);
+            for (LongIterator it = counter.iterator(); it.hasNext(); ) {
+                out.writeLong(it.nextLong());
             }
         }
     }
@@ -265,12 +308,22 @@ public class CountThenEstimate implements ICardinality, Externalizable {
      *
      * @param estimators
      * @return merged estimator or null if no estimators were provided
-     * @throws CountThenEstimateMergeException if estimators are not mergeable (all must be CountThenEstimate made with the same builder)
+     * @throws CountThenEstimateMergeException if estimators are not mergeable (all must be CountThenEstimate made with the same builder,
+     *                                         and estimators tipped by an earlier version only merge with each other)
      */
     public static CountThenEstimate mergeEstimators(CountThenEstimate... estimators) throws CardinalityMergeException {
         CountThenEstimate merged = null;
         int numEstimators = (estimators == null) ? 0 : estimators.length;
         if (numEstimators > 0) {
+            // estimators tipped by an earlier version count elements hashed their own way
+            boolean offersObjects = estimators[0].offersObjects;
+            for (CountThenEstimate estimator : estimators) {
+                if (estimator.offersObjects != offersObjects) {
+                    throw new CountThenEstimateMergeException(
+                            "Cannot merge estimators offered elements by an earlier version with estimators offered hashes");
+                }
+            }
+
             List<ICardinality> tipped = new ArrayList<ICardinality>(numEstimators);
             List<CountThenEstimate> untipped = new ArrayList<CountThenEstimate>(numEstimators);
 
@@ -286,14 +339,15 @@ public class CountThenEstimate implements ICardinality, Externalizable {
                 merged = new CountThenEstimate(untipped.get(0).tippingPoint, untipped.get(0).builder);
 
                 for (CountThenEstimate cte : untipped) {
-                    for (Object o : cte.counter) {
-                        merged.offer(o);
+                    for (LongIterator it = cte.counter.iterator(); it.hasNext(); ) {
+                        merged.offerHashed(it.nextLong());
                     }
                 }
             } else {
                 merged = new CountThenEstimate(0, new LinearCounting.Builder(1));
                 merged.tip();
                 merged.estimator = tipped.remove(0);
+                merged.offersObjects = offersObjects;
             }
 
             if (!tipped.isEmpty()) {
@@ -23,12 +23,17 @@ import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.Externalizable;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.util.Bits;
 import com.clearspring.analytics.util.IBuilder;
@@ -79,10 +84,33 @@ import com.clearspring.analytics.util.IBuilder;
  */
 public class HyperLogLog implements ICardinality, Serializable {
 
+    /**
+     * Written in place of log2m at the start of the serialized form when the registers follow
+     * in the layout of {@link RegisterSet#compact(int)}.
+     */
+    static final int COMPACT_REGISTERS = -1;
+
     private final RegisterSet registerSet;
     private final int log2m;
     private final double alphaMM;
 
+    /**
+     * Last estimate returned by cardinality(), valid until the registers change.
+     */
+    private long cachedCardinality;
+    private boolean dirty = true;
+
+    /**
+     * Historic inverse probability estimate, kept while hip is set, see {@link #withHipEstimator(int)}
+     */
+    private boolean hip;
+    private double hipEstimate;
+
+    /**
+     * Sum of 2^-register over all registers, times 2^-log2m the probability that a new
+     * element changes a register
+     */
+    private double hipMass;
 
     /**
      * Create a new HyperLogLog instance using the specified standard deviation.
@@ -102,7 +130,7 @@ public class HyperLogLog implements ICardinality, Serializable {
         return 1.106 / Math.sqrt(Math.exp(log2m * Math.log(2)));
     }
 
-    private static void validateLog2m(int log2m) {
+    static void validateLog2m(int log2m) {
         if (log2m < 0 || log2m > 30) {
             throw new IllegalArgumentException("log2m argument is "
                                                + log2m + " and is outside the range [0, 30]");
@@ -137,13 +165,55 @@ public class HyperLogLog implements ICardinality, Serializable {
         alphaMM = getAlphaMM(log2m, m);
     }
 
+    /**
+     * Creates a HyperLogLog around registers filled in elsewhere in this package, without
+     * going through the deprecated public constructor.
+     */
+    static HyperLogLog withRegisters(int log2m, RegisterSet registerSet) {
+        return new HyperLogLog(log2m, registerSet);
+    }
+
+    /**
+     * Creates a HyperLogLog that holds its registers as 4 bit offsets from the smallest
+     * register, see {@link RegisterSet#compact(int)}, and serializes them the same way.  The
+     * estimates are identical to those of {@link #HyperLogLog(int)}.
+     */
+    public static HyperLogLog withCompactRegisters(int log2m) {
+        validateLog2m(log2m);
+        return new HyperLogLog(log2m, RegisterSet.compact(1 << log2m));
+    }
+
+    /**
+     * Creates a HyperLogLog that also keeps the historic inverse probability (HIP) estimate:
+     * every offer that raises a register adds the inverse of the probability that a new
+     * element would raise one, so {@link #cardinality()} is a running sum, costs nothing to
+     * read, and has about 0.83/sqrt(2^log2m) rather than 1.04/sqrt(2^log2m) relative error.
+     * <p/>
+     * The estimate depends on the order registers were raised in, which merging and
+     * serializing lose: after {@link #addAll(HyperLogLog)} the estimator goes back to the
+     * usual estimate, and so do copies built from its bytes or merged from it.
+     */
+    public static HyperLogLog withHipEstimator(int log2m) {
+        HyperLogLog hyperLogLog = new HyperLogLog(log2m);
+        hyperLogLog.hip = true;
+        hyperLogLog.hipMass = 1 << log2m;
+        return hyperLogLog;
+    }
+
+    /**
+     * @return true while {@link #cardinality()} is the historic inverse probability estimate
+     */
+    public boolean isHip() {
+        return hip;
+    }
+
     @Override
     public boolean offerHashed(long hashedValue) {
         // j becomes the binary address determined by the first b log2m of x
         // j will be between 0 and 2^log2m
         final int j = (int) (hashedValue >>> (Long.SIZE - log2m));
         final int r = Long.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
-        return registerSet.updateIfGreater(j, r);
+        return update(j, r);
     }
 
     @Override
@@ -152,7 +222,43 @@ public class HyperLogLog implements ICardinality, Serializable {
         // j will be between 0 and 2^log2m
         final int j = hashedValue >>> (Integer.SIZE - log2m);
         final int r = Integer.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
-        return registerSet.updateIfGreater(j, r);
+        return update(j, r);
+    }
+
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++) {
+            final long hashedValue = hashes[i];
+            final int j = (int) (hashedValue >>> (Long.SIZE - log2m));
+            final int r = Long.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+            modified |= hip ? update(j, r) : registerSet.updateIfGreater(j, r);
+        }
+        if (modified) {
+            dirty = true;
+        }
+        return modified;
+    }
+
+    private boolean update(int j, int r) {
+        if (hip) {
+            return updateHip(j, r);
+        }
+        if (registerSet.updateIfGreater(j, r)) {
+            dirty = true;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean updateHip(int j, int r) {
+        int old = registerSet.get(j);
+        if (registerSet.updateIfGreater(j, r)) {
+            hipEstimate += (1 << log2m) / hipMass;
+            hipMass += Math.scalb(1d, -Math.min(r, RegisterSet.REGISTER_MAX)) - Math.scalb(1d, -old);
+            return true;
+        }
+        return false;
     }
 
     @Override
@@ -164,18 +270,26 @@ public class HyperLogLog implements ICardinality, Serializable {
 
     @Override
     public long cardinality() {
-        double registerSum = 0;
-        int count = registerSet.count;
-        double zeros = 0.0;
-        for (int j = 0; j < registerSet.count; j++) {
-            int val = registerSet.get(j);
-            registerSum += 1.0 / (1 << val);
-            if (val == 0) {
-                zeros++;
-            }
+        if (hip) {
+            return Math.round(hipEstimate);
+        }
+        if (dirty) {
+            cachedCardinality = estimate();
+            dirty = false;
         }
+        return cachedCardinality;
+    }
 
-        double estimate = alphaMM * (1 / registerSum);
+    private long estimate() {
+        return estimate(alphaMM, registerSet.count, registerSet.harmonicSum(), registerSet.zeros());
+    }
+
+    /**
+     * @param harmonicSum the sum of 2^-register over all registers
+     * @param zeros       the number of registers still at zero
+     */
+    static long estimate(double alphaMM, int count, double harmonicSum, int zeros) {
+        double estimate = alphaMM * (1 / harmonicSum);
 
         if (estimate <= (5.0 / 2.0) * count) {
             // Small Range Estimate
@@ -187,6 +301,9 @@ public class HyperLogLog implements ICardinality, Serializable {
 
     @Override
     public int sizeof() {
+        if (registerSet instanceof CompactRegisterSet) {
+            return ((CompactRegisterSet) registerSet).sizeof();
+        }
         return registerSet.size * 4;
     }
 
@@ -200,6 +317,12 @@ public class HyperLogLog implements ICardinality, Serializable {
     }
 
     private void writeBytes(DataOutput serializedByteStream) throws IOException {
+        if (registerSet instanceof CompactRegisterSet) {
+            serializedByteStream.writeInt(COMPACT_REGISTERS);
+            serializedByteStream.writeInt(log2m);
+            ((CompactRegisterSet) registerSet).writeTo(serializedByteStream);
+            return;
+        }
         serializedByteStream.writeInt(log2m);
         serializedByteStream.writeInt(registerSet.size * 4);
         for (int x : registerSet.readOnlyBits()) {
@@ -210,39 +333,84 @@ public class HyperLogLog implements ICardinality, Serializable {
     /**
      * Add all the elements of the other set to this set.
      * <p/>
-     * This operation does not imply a loss of precision.
+     * An estimator of higher precision is folded to this one's first, see {@link #fold(int)}.
      *
-     * @param other A compatible Hyperloglog instance (same log2m)
-     * @throws CardinalityMergeException if other is not compatible
+     * @param other A compatible Hyperloglog instance (same or higher log2m)
+     * @throws CardinalityMergeException if other has a lower log2m
      */
     public void addAll(HyperLogLog other) throws CardinalityMergeException {
-        if (this.sizeof() != other.sizeof()) {
+        if (other.log2m > this.log2m) {
+            other = other.fold(this.log2m);
+        } else if (this.log2m != other.log2m) {
             throw new HyperLogLogMergeException("Cannot merge estimators of different sizes");
         }
 
         registerSet.merge(other.registerSet);
+        dirty = true;
+        hip = false;
     }
 
+    /**
+     * Merges estimators of any precision into one of the lowest precision among them,
+     * folding the others to it.
+     */
     @Override
     public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException {
-        HyperLogLog merged = new HyperLogLog(log2m, new RegisterSet(this.registerSet.count));
-        merged.addAll(this);
+        int lowest = log2m;
+        if (estimators != null) {
+            for (ICardinality estimator : estimators) {
+                if (!(estimator instanceof HyperLogLog)) {
+                    throw new HyperLogLogMergeException("Cannot merge estimators of different class");
+                }
+                lowest = Math.min(lowest, ((HyperLogLog) estimator).log2m);
+            }
+        }
+
+        HyperLogLog merged;
+        if (lowest == log2m) {
+            merged = new HyperLogLog(log2m, registerSet instanceof CompactRegisterSet
+                                            ? RegisterSet.compact(registerSet.count)
+                                            : new RegisterSet(registerSet.count));
+            merged.addAll(this);
+        } else {
+            merged = fold(lowest);
+        }
 
         if (estimators == null) {
             return merged;
         }
 
         for (ICardinality estimator : estimators) {
-            if (!(estimator instanceof HyperLogLog)) {
-                throw new HyperLogLogMergeException("Cannot merge estimators of different class");
-            }
-            HyperLogLog hll = (HyperLogLog) estimator;
-            merged.addAll(hll);
+            merged.addAll((HyperLogLog) estimator);
         }
 
         return merged;
     }
 
+    /**
+     * Estimator of a lower precision holding the registers the same values would have set
+     * at it, see {@link RegisterSet#fold(int)}.  Folded estimators merge with ones offered
+     * at the lower precision, and take 2^(log2m - newLog2m) times less room.
+     *
+     * @param newLog2m the precision to fold to, at most this one's
+     * @return a new estimator, or a copy when the precision is unchanged
+     */
+    public HyperLogLog fold(int newLog2m) {
+        return new HyperLogLog(newLog2m, registerSet.fold(log2m, newLog2m));
+    }
+
+    /**
+     * Writes the registers through to the file of an estimator opened with
+     * {@link Builder#map(File)}. Does nothing for estimators held on the heap.
+     */
+    public void flush() {
+        registerSet.flush();
+    }
+
+    RegisterSet registerSet() {
+        return registerSet;
+    }
+
     private Object writeReplace() {
         return new SerializationHolder(this);
     }
@@ -351,10 +519,52 @@ public class HyperLogLog implements ICardinality, Serializable {
 
         public static HyperLogLog build(DataInput serializedByteStream) throws IOException {
             int log2m = serializedByteStream.readInt();
+            if (log2m == COMPACT_REGISTERS) {
+                log2m = serializedByteStream.readInt();
+                validateLog2m(log2m);
+                return new HyperLogLog(log2m, CompactRegisterSet.readFrom(1 << log2m, serializedByteStream));
+            }
             int byteArraySize = serializedByteStream.readInt();
             return new HyperLogLog(log2m,
                     new RegisterSet(1 << log2m, Bits.getBits(serializedByteStream, byteArraySize)));
         }
+
+        /**
+         * Opens an estimator over a buffer holding the output of {@link HyperLogLog#getBytes()},
+         * starting at the buffer's position.  The registers are not copied: offers and merges
+         * write straight to the buffer, which stays in the serialized format.
+         */
+        public static HyperLogLog wrap(ByteBuffer buffer) throws IOException {
+            int start = buffer.position();
+            if (buffer.limit() - start < 8) {
+                throw new IOException("Buffer too short to hold a HyperLogLog");
+            }
+            int log2m = buffer.getInt(start);
+            int byteArraySize = buffer.getInt(start + 4);
+            if (log2m == COMPACT_REGISTERS) {
+                throw new IOException("Only the packed register layout can be updated in place");
+            }
+            validateLog2m(log2m);
+            if (byteArraySize != RegisterSet.getSizeForCount(1 << log2m) * 4
+                || buffer.limit() - start - 8 < byteArraySize) {
+                throw new IOException("Buffer does not hold the registers of a HyperLogLog with log2m " + log2m);
+            }
+            return new HyperLogLog(log2m, new ByteBufferRegisterSet(1 << log2m, buffer, start + 8));
+        }
+
+        /**
+         * Maps a file written with {@link HyperLogLog#getBytes()} and opens an estimator over it,
+         * see {@link #wrap(ByteBuffer)}.  Changes reach the file when the mapping is written back
+         * by the operating system or when {@link HyperLogLog#flush()} is called.
+         */
+        public static HyperLogLog map(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                return wrap(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+            } finally {
+                raf.close();
+            }
+        }
     }
 
     @SuppressWarnings("serial")
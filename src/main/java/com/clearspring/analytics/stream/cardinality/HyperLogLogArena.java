@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.clearspring.analytics.hash.MurmurHash;
+
+import static com.clearspring.analytics.stream.cardinality.RegisterSet.LOG2_BITS_PER_WORD;
+import static com.clearspring.analytics.stream.cardinality.RegisterSet.REGISTER_MAX;
+import static com.clearspring.analytics.stream.cardinality.RegisterSet.REGISTER_SIZE;
+
+/**
+ * Many {@link HyperLogLog} estimators of the same precision, addressed by an int slot, with
+ * their registers packed back to back in direct buffers outside the heap.
+ * <p/>
+ * A slot holds the words a {@link RegisterSet} would hold and nothing else, so there is no
+ * estimator, register set or array object per slot.  The buffers are allocated a chunk of
+ * slots at a time as slots are handed out, and slots given back with {@link #free(int)}
+ * are cleared and handed out again before the arena grows.
+ * <p/>
+ * Every slot behaves as a HyperLogLog offered the same values: it holds the same registers,
+ * reports the same cardinality, and {@link #snapshot(int)} copies it into one.  The estimate
+ * is not cached, {@link #cardinality(int)} scans the slot's registers.  Freeing a slot twice
+ * throws, but any other use of a freed slot is not detected.  The arena is not thread-safe.
+ */
+public class HyperLogLogArena {
+
+    /**
+     * Slots per chunk when none is given, 4096 slots of 684 bytes for p = 10
+     */
+    public static final int DEFAULT_SLOTS_PER_CHUNK = 4096;
+
+    private static final double[] INVERSE_POWERS = new double[REGISTER_MAX + 1];
+
+    static {
+        for (int r = 0; r < INVERSE_POWERS.length; r++) {
+            INVERSE_POWERS[r] = Math.scalb(1d, -r);
+        }
+    }
+
+    private final int log2m;
+    private final int count;
+    private final double alphaMM;
+
+    /**
+     * Words and bytes of registers per slot
+     */
+    private final int words;
+    private final int slotBytes;
+
+    private final int slotsPerChunk;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+    /**
+     * Slots below this have been handed out at some point
+     */
+    private int next;
+
+    /**
+     * Freed slots, the last one freed on top
+     */
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+
+    /**
+     * The slots on the free list, so a double free cannot hand a slot to two owners
+     */
+    private final BitSet free = new BitSet();
+
+    /**
+     * @param log2m the precision of every estimator in the arena
+     */
+    public HyperLogLogArena(int log2m) {
+        this(log2m, DEFAULT_SLOTS_PER_CHUNK);
+    }
+
+    /**
+     * @param log2m         the precision of every estimator in the arena
+     * @param slotsPerChunk the number of slots the arena grows by
+     */
+    public HyperLogLogArena(int log2m, int slotsPerChunk) {
+        HyperLogLog.validateLog2m(log2m);
+        this.log2m = log2m;
+        this.count = 1 << log2m;
+        this.alphaMM = HyperLogLog.getAlphaMM(log2m, count);
+        this.words = RegisterSet.getSizeForCount(count);
+        this.slotBytes = words * 4;
+        if (slotsPerChunk < 1 || (long) slotsPerChunk * slotBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cannot allocate chunks of " + slotsPerChunk + " slots of "
+                                               + slotBytes + " bytes");
+        }
+        this.slotsPerChunk = slotsPerChunk;
+    }
+
+    public int log2m() {
+        return log2m;
+    }
+
+    /**
+     * @return the number of slots in use
+     */
+    public int size() {
+        return next - freeCount;
+    }
+
+    /**
+     * @return the number of slots the allocated chunks hold
+     */
+    public int capacity() {
+        return chunks.size() * slotsPerChunk;
+    }
+
+    /**
+     * @return bytes of direct memory held by the arena
+     */
+    public long sizeof() {
+        return (long) capacity() * slotBytes;
+    }
+
+    /**
+     * @return the id of an empty slot, the most recently freed one if any
+     */
+    public int allocate() {
+        if (freeCount > 0) {
+            int slot = freeSlots[--freeCount];
+            free.clear(slot);
+            return slot;
+        }
+        if (next == capacity()) {
+            if (next > Integer.MAX_VALUE - slotsPerChunk) {
+                throw new IllegalStateException("HyperLogLogArena is full");
+            }
+            chunks.add(ByteBuffer.allocateDirect(slotsPerChunk * slotBytes).order(ByteOrder.nativeOrder()));
+        }
+        return next++;
+    }
+
+    /**
+     * Clears the slot's registers and makes it available to {@link #allocate()} again.
+     *
+     * @throws IllegalStateException if the slot is already free
+     */
+    public void free(int slot) {
+        ByteBuffer chunk = chunk(slot);
+        if (free.get(slot)) {
+            throw new IllegalStateException("Slot " + slot + " is already free");
+        }
+        int offset = offset(slot);
+        for (int i = 0; i < words; i++) {
+            chunk.putInt(offset + (i << 2), 0);
+        }
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+        free.set(slot);
+    }
+
+    private ByteBuffer chunk(int slot) {
+        if (slot < 0 || slot >= next) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " has not been allocated");
+        }
+        return chunks.get(slot / slotsPerChunk);
+    }
+
+    private int offset(int slot) {
+        return (slot % slotsPerChunk) * slotBytes;
+    }
+
+    /**
+     * Same as {@link HyperLogLog#offer(Object)} on the estimator in the slot.
+     */
+    public boolean offer(int slot, Object o) {
+        return offerHashed(slot, MurmurHash.hash(o));
+    }
+
+    /**
+     * Same as {@link HyperLogLog#offerHashed(long)} on the estimator in the slot.
+     */
+    public boolean offerHashed(int slot, long hashedValue) {
+        final int j = (int) (hashedValue >>> (Long.SIZE - log2m));
+        final int r = Long.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+        return updateIfGreater(slot, j, r);
+    }
+
+    /**
+     * Same as {@link HyperLogLog#offerHashed(int)} on the estimator in the slot.
+     */
+    public boolean offerHashed(int slot, int hashedValue) {
+        final int j = hashedValue >>> (Integer.SIZE - log2m);
+        final int r = Integer.numberOfLeadingZeros((hashedValue << this.log2m) | (1 << (this.log2m - 1)) + 1) + 1;
+        return updateIfGreater(slot, j, r);
+    }
+
+    private boolean updateIfGreater(int slot, int position, int value) {
+        value = Math.min(value, REGISTER_MAX);
+        int bucket = position / LOG2_BITS_PER_WORD;
+        int shift = REGISTER_SIZE * (position - (bucket * LOG2_BITS_PER_WORD));
+        ByteBuffer chunk = chunk(slot);
+        int index = offset(slot) + (bucket << 2);
+        int word = chunk.getInt(index);
+        if (((word >>> shift) & 0x1f) < value) {
+            chunk.putInt(index, (word & ~(0x1f << shift)) | (value << shift));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the estimate of the HyperLogLog in the slot
+     */
+    public long cardinality(int slot) {
+        ByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        double registerSum = 0;
+        int zeros = 0;
+        for (int bucket = 0; bucket < words; bucket++) {
+            int word = chunk.getInt(offset + (bucket << 2));
+            int registers = Math.min(LOG2_BITS_PER_WORD, count - bucket * LOG2_BITS_PER_WORD);
+            for (int i = 0; i < registers; i++) {
+                int val = (word >>> (REGISTER_SIZE * i)) & 0x1f;
+                registerSum += INVERSE_POWERS[val];
+                if (val == 0) {
+                    zeros++;
+                }
+            }
+        }
+        return HyperLogLog.estimate(alphaMM, count, registerSum, zeros);
+    }
+
+    /**
+     * Adds the elements of slot b to slot a, leaving b as it was.
+     */
+    public void merge(int a, int b) {
+        ByteBuffer target = chunk(a);
+        ByteBuffer source = chunk(b);
+        int targetOffset = offset(a);
+        int sourceOffset = offset(b);
+        for (int i = 0; i < slotBytes; i += 4) {
+            int word = target.getInt(targetOffset + i);
+            int merged = RegisterSet.maxOfRegisters(word, source.getInt(sourceOffset + i));
+            if (merged != word) {
+                target.putInt(targetOffset + i, merged);
+            }
+        }
+    }
+
+    /**
+     * Adds the elements of the estimator to the slot.
+     *
+     * @throws CardinalityMergeException if the estimator's precision is not the arena's
+     */
+    public void addAll(int slot, HyperLogLog hyperLogLog) throws CardinalityMergeException {
+        RegisterSet registers = hyperLogLog.registerSet();
+        if (registers.count != count) {
+            throw new HyperLogLog.HyperLogLogMergeException("Cannot merge estimators of different sizes");
+        }
+        ByteBuffer target = chunk(slot);
+        int offset = offset(slot);
+        for (int bucket = 0; bucket < words; bucket++) {
+            int index = offset + (bucket << 2);
+            int word = target.getInt(index);
+            int merged = RegisterSet.maxOfRegisters(word, registers.word(bucket));
+            if (merged != word) {
+                target.putInt(index, merged);
+            }
+        }
+    }
+
+    /**
+     * @return a HyperLogLog holding a copy of the slot's registers
+     */
+    public HyperLogLog snapshot(int slot) {
+        ByteBuffer chunk = chunk(slot);
+        int offset = offset(slot);
+        int[] bits = new int[words];
+        for (int i = 0; i < words; i++) {
+            bits[i] = chunk.getInt(offset + (i << 2));
+        }
+        return HyperLogLog.withRegisters(log2m, new RegisterSet(count, bits));
+    }
+}
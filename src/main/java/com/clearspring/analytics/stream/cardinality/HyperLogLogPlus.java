@@ -17,24 +17,28 @@
 package com.clearspring.analytics.stream.cardinality;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.Externalizable;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.util.Bits;
@@ -75,6 +79,17 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
         SPARSE, NORMAL
     }
 
+    /**
+     * Number of raw estimate table entries averaged for the bias correction.
+     */
+    private static final int BIAS_NEIGHBORS = 6;
+
+    /**
+     * Extra entries searched on each side of the bias neighbor window, enough to cover
+     * the out of order entries in the raw estimate tables.
+     */
+    private static final int BIAS_WINDOW_SLACK = 2;
+
     /** Used to mark codec version for serialization. */
     private static final int VERSION = 2;
 
@@ -165,6 +180,28 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
     private int tmpIndex = 0;
     private int[] sparseSet;
 
+    // hold the normal mode registers as 4 bit offsets, see RegisterSet#compact
+    private boolean compactRegisters;
+
+    /**
+     * Last estimate returned by cardinality(), valid until this estimator changes.
+     */
+    private long cachedCardinality;
+    private boolean dirty = true;
+
+    /**
+     * Historic inverse probability estimate of the normal mode registers, kept while hip is
+     * set, see {@link #withHipEstimator(int, int)}
+     */
+    private boolean hip;
+    private double hipEstimate;
+
+    /**
+     * Sum of 2^-register over all registers, times 2^-p the probability that a new element
+     * changes a register
+     */
+    private double hipMass;
+
     /**
      * This constructor disables the sparse set.  If the counter is likely to exceed
      * the sparse set thresholds than using this constructor will help avoid the
@@ -252,6 +289,47 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
         this.alphaMM = HyperLogLog.getAlphaMM(p, m);
     }
 
+    /**
+     * Creates an estimator like {@link #HyperLogLogPlus(int, int)} whose normal mode registers
+     * are held as 4 bit offsets from the smallest register, see {@link RegisterSet#compact(int)},
+     * and serialized the same way.  The estimates are identical.
+     */
+    public static HyperLogLogPlus withCompactRegisters(int p, int sp) {
+        HyperLogLogPlus hyperLogLogPlus = new HyperLogLogPlus(p, sp);
+        hyperLogLogPlus.compactRegisters = true;
+        if (hyperLogLogPlus.format == Format.NORMAL) {
+            hyperLogLogPlus.registerSet = RegisterSet.compact(hyperLogLogPlus.m);
+        }
+        return hyperLogLogPlus;
+    }
+
+    /**
+     * Creates an estimator like {@link #HyperLogLogPlus(int, int)} that also keeps the historic
+     * inverse probability (HIP) estimate once in normal mode: every offer that raises a register
+     * adds the inverse of the probability that a new element would raise one, starting from the
+     * sparse estimate at the conversion.  {@link #cardinality()} is then a running sum with about
+     * 0.83/sqrt(2^p) rather than 1.04/sqrt(2^p) relative error.  In sparse mode the estimate is
+     * the usual one.
+     * <p/>
+     * The estimate depends on the order registers were raised in, which merging and serializing
+     * lose: after {@link #addAll(HyperLogLogPlus)} the estimator goes back to the usual estimate,
+     * and so do copies built from its bytes or merged from it.
+     */
+    public static HyperLogLogPlus withHipEstimator(int p, int sp) {
+        HyperLogLogPlus hyperLogLogPlus = new HyperLogLogPlus(p, sp);
+        hyperLogLogPlus.hip = true;
+        hyperLogLogPlus.hipMass = 1 << p;
+        return hyperLogLogPlus;
+    }
+
+    /**
+     * @return true while {@link #cardinality()} is the historic inverse probability estimate
+     * of the normal mode registers
+     */
+    public boolean isHip() {
+        return hip && format == Format.NORMAL;
+    }
+
     /**
      * Package-protected for testing purposes.
      */
@@ -308,8 +386,9 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
                 //Push a 1 to where the bit string would have ended if we didnt just push the idx out of the way
                 //A one is always added to runLength for estimation calculation purposes
                 final int runLength = Long.numberOfLeadingZeros((hashedLong << this.p) | (long) (1 << (this.p - 1))) + 1;
-                return registerSet.updateIfGreater((int) idx, runLength);
+                return update((int) idx, runLength);
             case SPARSE:
+                dirty = true;
                 //Call the sparse encoding scheme which attempts to stuff as much helpful data into 32 bits as possible
                 int k = encodeHash(hashedLong, p, sp);
                 if (tmpSet == null) {
@@ -325,6 +404,70 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
         return false;
     }
 
+    /**
+     * In sparse mode the whole batch is encoded, radix sorted and merged into the sparse
+     * set at once instead of going through the temp set a few entries at a time.  Batches
+     * larger than the sparse set threshold are handled in threshold sized chunks, and once
+     * the estimator converts to normal mode the rest of the batch updates the registers.
+     */
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        boolean modified = false;
+        int end = offset + length;
+        int i = offset;
+
+        if (format == Format.SPARSE && i < end) {
+            dirty = true;
+            modified = true;
+            mergeTempList();
+
+            int chunkSize = Math.max(Math.min(length, sparseSetThreshold), 1);
+            int[] encoded = new int[chunkSize];
+            int[] scratch = new int[chunkSize];
+            while (format == Format.SPARSE && i < end) {
+                int n = Math.min(chunkSize, end - i);
+                for (int j = 0; j < n; j++) {
+                    encoded[j] = transformToSortRepresentation(encodeHash(hashes[i + j], p, sp));
+                }
+                radixSort(encoded, scratch, n);
+                for (int j = 0; j < n; j++) {
+                    encoded[j] = transformFromSortRepresentation(encoded[j]);
+                }
+                sparseSet = merge(sparseSet, (n == encoded.length) ? encoded : Arrays.copyOf(encoded, n));
+                if (sparseSet.length > sparseSetThreshold) {
+                    convertToNormal();
+                }
+                i += n;
+            }
+        }
+
+        for (; i < end; i++) {
+            final long hashedLong = hashes[i];
+            final long idx = hashedLong >>> (64 - p);
+            final int runLength = Long.numberOfLeadingZeros((hashedLong << this.p) | (long) (1 << (this.p - 1))) + 1;
+            modified |= update((int) idx, runLength);
+        }
+        return modified;
+    }
+
+    private boolean update(int idx, int runLength) {
+        if (!hip) {
+            if (registerSet.updateIfGreater(idx, runLength)) {
+                dirty = true;
+                return true;
+            }
+            return false;
+        }
+        int old = registerSet.get(idx);
+        if (registerSet.updateIfGreater(idx, runLength)) {
+            hipEstimate += (1 << p) / hipMass;
+            hipMass += Math.scalb(1d, -Math.min(runLength, RegisterSet.REGISTER_MAX)) - Math.scalb(1d, -old);
+            dirty = true;
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public boolean offerHashed(int hashedInt) {
         throw new UnsupportedOperationException();
@@ -344,7 +487,10 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
      * Collisions are resolved by merely taking the max.
      */
     private void convertToNormal() {
-        this.registerSet = new RegisterSet(1 << p);
+        if (hip) {
+            hipEstimate = sparseEstimate(sm, sparseSet.length);
+        }
+        this.registerSet = compactRegisters ? RegisterSet.compact(1 << p) : new RegisterSet(1 << p);
         for (int k : sparseSet) {
             int idx = getIndex(k, p);
             int r = decodeRunLength(k);
@@ -353,6 +499,9 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
         format = Format.NORMAL;
         tmpSet = null;
         sparseSet = null;
+        if (hip) {
+            hipMass = registerSet.harmonicSum();
+        }
     }
 
     /**
@@ -441,6 +590,10 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
      * @return run length
      */
     private int decodeRunLength(int k) {
+        return decodeRunLength(k, p, sp);
+    }
+
+    static int decodeRunLength(int k, int p, int sp) {
         if ((k & 1) == 1) //checking the flag bit
         {
             //Smoosh the flag bit; it has served its purpose
@@ -460,7 +613,7 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
     }
 
     /** Get the idx' from an encoding. */
-    private static int getSparseIndex(int k) {
+    static int getSparseIndex(int k) {
         if ((k & 1) == 1) {
             return k >>> 7;
         } else {
@@ -475,6 +628,10 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
      * @param p 'normal' precision
      */
     private int getIndex(int k, int p) {
+        return getIndex(k, p, sp);
+    }
+
+    static int getIndex(int k, int p, int sp) {
         int sparseIndex = getSparseIndex(k);
         return sparseIndex >>> (sp - p);
     }
@@ -487,85 +644,109 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
      */
     @Override
     public long cardinality() {
+        if (hip && format == Format.NORMAL) {
+            return Math.round(hipEstimate);
+        }
+        if (dirty) {
+            cachedCardinality = estimate();
+            dirty = false;
+        }
+        return cachedCardinality;
+    }
+
+    private long estimate() {
         if (format == Format.SPARSE) {
             mergeTempList();
         }
         switch (format) {
             case NORMAL:
-                double registerSum = 0;
-                int count = registerSet.count;
-                double zeros = 0;
-                for (int j = 0; j < registerSet.count; j++) {
-                    int val = registerSet.get(j);
-                    registerSum += Math.scalb(1d, -val);
-                    if (val == 0) {
-                        zeros++;
-                    }
-                }
-
-                double estimate = alphaMM * (1 / registerSum);
-                double estimatePrime = estimate;
-                if (estimate <= (5 * m)) {
-                    estimatePrime = estimate - getEstimateBias(estimate, p);
-                }
-                double H;
-                if (zeros > 0) {
-                    H = HyperLogLog.linearCounting(count, zeros);
-                } else {
-                    H = estimatePrime;
-                }
-                // when p is large the threshold is just 5*m
-                if (((p <= 18) && (H < thresholdData[p - 4])) || ((p > 18) && (estimate <= (5 * m)))) {
-                    return Math.round(H);
-                } else {
-                    return Math.round(estimatePrime);
-                }
+                return normalEstimate(p, alphaMM, registerSet.harmonicSum(), registerSet.zeros());
             case SPARSE:
-                return Math.round(HyperLogLog.linearCounting(sm, sm - sparseSet.length));
+                return sparseEstimate(sm, sparseSet.length);
         }
         return 0;
     }
 
-    private static double getEstimateBias(double estimate, int p) {
+    /**
+     * @param harmonicSum the sum of 2^-register over all 2^p registers
+     * @param zeros       the number of registers still at zero
+     */
+    static long normalEstimate(int p, double alphaMM, double harmonicSum, int zeros) {
+        int m = 1 << p;
+        double estimate = alphaMM * (1 / harmonicSum);
+        double estimatePrime = estimate;
+        if (estimate <= (5 * m)) {
+            estimatePrime = estimate - getEstimateBias(estimate, p);
+        }
+        double H;
+        if (zeros > 0) {
+            H = HyperLogLog.linearCounting(m, zeros);
+        } else {
+            H = estimatePrime;
+        }
+        // when p is large the threshold is just 5*m
+        if (((p <= 18) && (H < thresholdData[p - 4])) || ((p > 18) && (estimate <= (5 * m)))) {
+            return Math.round(H);
+        } else {
+            return Math.round(estimatePrime);
+        }
+    }
+
+    /**
+     * @param sm      the number of sparse registers, 2^sp
+     * @param entries the number of entries in the sparse set
+     */
+    static long sparseEstimate(int sm, int entries) {
+        return Math.round(HyperLogLog.linearCounting(sm, sm - entries));
+    }
+
+    /**
+     * Averages the bias of the {@link #BIAS_NEIGHBORS} entries of the raw estimate table that are
+     * nearest to the estimate.
+     * <p/>
+     * The raw estimate rows are sorted apart from a few swapped adjacent entries, so the neighbors are
+     * searched for in a small window around the binary search insertion point rather than across the
+     * whole row. The selection works on the primitive arrays directly and does not allocate.
+     * <p/>
+     * Package-protected for testing purposes.
+     */
+    static double getEstimateBias(double estimate, int p) {
         // get nearest neighbors for this estimate and precision
         // above p = 18 there is no bias correction
         if (p > 18) {
             return 0;
         }
         double[] estimateVector = rawEstimateData[p - 4];
-        SortedMap<Double, Integer> estimateDistances = calcDistances(estimate, estimateVector);
-        int[] nearestNeighbors = getNearestNeighbors(estimateDistances);
-        return getBias(nearestNeighbors, p);
-    }
-
-    private static double getBias(int[] nearestNeighbors, int p) {
         double[] biasVector = biasData[p - 4];
-        double biasTotal = 0.0d;
-        for (int nearestNeighbor : nearestNeighbors) {
-            biasTotal += biasVector[nearestNeighbor];
-        }
-        return biasTotal / nearestNeighbors.length;
-    }
 
-    private static int[] getNearestNeighbors(SortedMap<Double, Integer> distanceMap) {
-        int[] nearest = new int[6];
-        int i = 0;
-        for (Integer index : distanceMap.values()) {
-            nearest[i++] = index;
-            if (i >= 6) {
-                break;
-            }
+        int insertionPoint = Arrays.binarySearch(estimateVector, estimate);
+        if (insertionPoint < 0) {
+            insertionPoint = -insertionPoint - 1;
         }
-        return nearest;
-    }
+        int from = Math.max(0, insertionPoint - BIAS_NEIGHBORS - BIAS_WINDOW_SLACK);
+        int to = Math.min(estimateVector.length, insertionPoint + BIAS_NEIGHBORS + BIAS_WINDOW_SLACK);
+        int neighbors = Math.min(BIAS_NEIGHBORS, to - from);
 
-    private static SortedMap<Double, Integer> calcDistances(double estimate, double[] estimateVector) {
-        SortedMap<Double, Integer> distances = new TreeMap<Double, Integer>();
-        int index = 0;
-        for (double anEstimateVector : estimateVector) {
-            distances.put(Math.pow(estimate - anEstimateVector, 2), index++);
+        // pick the neighbors in order of (distance, index), each pass taking the next one after the last pick
+        double biasTotal = 0.0d;
+        double lastDistance = -1;
+        int lastIndex = -1;
+        for (int n = 0; n < neighbors; n++) {
+            int nearest = -1;
+            double nearestDistance = Double.MAX_VALUE;
+            for (int i = from; i < to; i++) {
+                double distance = Math.abs(estimate - estimateVector[i]);
+                boolean afterLast = (distance > lastDistance) || ((distance == lastDistance) && (i > lastIndex));
+                if (afterLast && (distance < nearestDistance)) {
+                    nearest = i;
+                    nearestDistance = distance;
+                }
+            }
+            biasTotal += biasVector[nearest];
+            lastDistance = nearestDistance;
+            lastIndex = nearest;
         }
-        return distances;
+        return biasTotal / neighbors;
     }
 
     /**
@@ -708,40 +889,204 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
         if (registerSet == null) {
             return 4 * RegisterSet.getSizeForCount(1 << p);
         }
+        if (registerSet instanceof CompactRegisterSet) {
+            return ((CompactRegisterSet) registerSet).sizeof();
+        }
         return registerSet.size * 4;
     }
 
     @Override
     public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        // write version flag (always negative)
-        dos.writeInt(-VERSION);
-        Varint.writeUnsignedVarInt(p, dos);
-        Varint.writeUnsignedVarInt(sp, dos);
+        ByteBuffer buffer = ByteBuffer.allocate(serializedSize());
+        write(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * @return the exact number of bytes {@link #getBytes()} and {@link #writeTo(ByteBuffer)}
+     * produce for the current state
+     */
+    public int serializedSize() {
         if (format == Format.SPARSE) {
             mergeTempList();
         }
+        // version flag, precisions and the single byte format
+        int size = 4 + Varint.sizeOfUnsignedVarInt(p) + Varint.sizeOfUnsignedVarInt(sp) + 1;
+        switch (format) {
+            case NORMAL:
+                if (registerSet instanceof CompactRegisterSet) {
+                    return size + ((CompactRegisterSet) registerSet).serializedSize();
+                }
+                return size + Varint.sizeOfUnsignedVarInt(registerSet.size * 4) + registerSet.size * 4;
+            case SPARSE:
+                size += Varint.sizeOfUnsignedVarInt(sparseSet.length);
+                int prevMergedDelta = 0;
+                for (int k : sparseSet) {
+                    size += Varint.sizeOfUnsignedVarInt(k - prevMergedDelta);
+                    prevMergedDelta = k;
+                }
+                return size;
+        }
+        throw new IllegalStateException("Unhandled HLL++ format " + format);
+    }
+
+    /**
+     * Writes the bytes {@link #getBytes()} returns at the buffer's position and advances the
+     * position past them, without any intermediate copies.  Nothing is written if the buffer
+     * has fewer than {@link #serializedSize()} bytes remaining.
+     *
+     * @param out a big-endian buffer, heap or direct
+     * @throws java.nio.BufferOverflowException if the estimator does not fit
+     */
+    public void writeTo(ByteBuffer out) {
+        if (out.order() != ByteOrder.BIG_ENDIAN) {
+            throw new IllegalArgumentException("buffer must be big-endian");
+        }
+        if (out.remaining() < serializedSize()) {
+            throw new BufferOverflowException();
+        }
+        write(out);
+    }
+
+    private void write(ByteBuffer out) {
+        // write version flag (always negative)
+        out.putInt(-VERSION);
+        Varint.writeUnsignedVarInt(p, out);
+        Varint.writeUnsignedVarInt(sp, out);
         switch (format) {
             case NORMAL:
-                Varint.writeUnsignedVarInt(0, dos);
-                Varint.writeUnsignedVarInt(registerSet.size * 4, dos);
-                for (int x : registerSet.readOnlyBits()) {
-                    dos.writeInt(x);
+                if (registerSet instanceof CompactRegisterSet) {
+                    Varint.writeUnsignedVarInt(2, out);
+                    ((CompactRegisterSet) registerSet).writeTo(out);
+                    break;
                 }
+                Varint.writeUnsignedVarInt(0, out);
+                Varint.writeUnsignedVarInt(registerSet.size * 4, out);
+                int[] words = registerSet.readOnlyBits();
+                out.asIntBuffer().put(words);
+                out.position(out.position() + words.length * 4);
                 break;
             case SPARSE:
-                Varint.writeUnsignedVarInt(1, dos);
-                Varint.writeUnsignedVarInt(sparseSet.length, dos);
+                Varint.writeUnsignedVarInt(1, out);
+                Varint.writeUnsignedVarInt(sparseSet.length, out);
                 int prevMergedDelta = 0;
                 for (int k : sparseSet) {
-                    Varint.writeUnsignedVarInt(k - prevMergedDelta, dos);
+                    Varint.writeUnsignedVarInt(k - prevMergedDelta, out);
                     prevMergedDelta = k;
                 }
                 break;
         }
+    }
+
+    /**
+     * Reads an estimator written by {@link #getBytes()} or {@link #writeTo(ByteBuffer)}, or in
+     * the legacy format, starting at the buffer's position.  On success the position is
+     * advanced past it, so estimators written back to back can be read in turn.
+     */
+    public static HyperLogLogPlus readFrom(ByteBuffer in) throws IOException {
+        ByteBuffer source = in.duplicate().order(ByteOrder.BIG_ENDIAN);
+        try {
+            HyperLogLogPlus hyperLogLogPlus;
+            if (source.getInt(source.position()) >= 0) {
+                hyperLogLogPlus = readLegacy(source);
+            } else {
+                source.getInt();
+                hyperLogLogPlus = decode(source);
+            }
+            in.position(source.position());
+            return hyperLogLogPlus;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Buffer too short to hold a HyperLogLogPlus", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+    }
 
-        return baos.toByteArray();
+    private static HyperLogLogPlus readLegacy(ByteBuffer source) throws IOException {
+        byte[] bytes = new byte[source.remaining()];
+        source.duplicate().get(bytes);
+        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+        HyperLogLogPlus hyperLogLogPlus = Builder.legacyDecode(new DataInputStream(bais));
+        source.position(source.limit() - bais.available());
+        return hyperLogLogPlus;
+    }
+
+    private static HyperLogLogPlus decode(ByteBuffer in) throws IOException {
+        int p = Varint.readUnsignedVarInt(in);
+        int sp = Varint.readUnsignedVarInt(in);
+        int formatType = Varint.readUnsignedVarInt(in);
+        if (formatType != 1 && (p < 4 || p > 30)) {
+            throw new IOException("Invalid HyperLogLogPlus precision p " + p);
+        }
+        if (formatType == 0) {
+            int size = Varint.readUnsignedVarInt(in);
+            if (size != RegisterSet.getSizeForCount(1 << p) * 4) {
+                throw new IOException("Expected " + RegisterSet.getSizeForCount(1 << p) * 4
+                                      + " bytes of registers for p " + p + " but got " + size);
+            }
+            if (size > in.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            int[] words = new int[size / 4];
+            in.asIntBuffer().get(words);
+            in.position(in.position() + size);
+            return new HyperLogLogPlus(p, sp, new RegisterSet(1 << p, words));
+        } else if (formatType == 1) {
+            int length = Varint.readUnsignedVarInt(in);
+            if (length < 0 || length > in.remaining()) {
+                // every entry takes at least a byte
+                throw new BufferUnderflowException();
+            }
+            HyperLogLogPlus hyperLogLogPlus = new HyperLogLogPlus(p, sp, readDeltas(in, length));
+            hyperLogLogPlus.format = Format.SPARSE;
+            return hyperLogLogPlus;
+        } else if (formatType == 2) {
+            HyperLogLogPlus hyperLogLogPlus = new HyperLogLogPlus(p, sp, CompactRegisterSet.readFrom(1 << p, in));
+            hyperLogLogPlus.compactRegisters = true;
+            return hyperLogLogPlus;
+        } else {
+            throw new IOException("Unknown HyperLogLogPlus format " + formatType);
+        }
+    }
+
+    /**
+     * Decodes the delta coded sparse list.  Heap buffers are decoded straight from the
+     * backing array rather than a byte at a time through the buffer.
+     */
+    private static int[] readDeltas(ByteBuffer in, int length) {
+        int[] values = new int[length];
+        if (!in.hasArray()) {
+            int previous = 0;
+            for (int i = 0; i < length; i++) {
+                previous += Varint.readUnsignedVarInt(in);
+                values[i] = previous;
+            }
+            return values;
+        }
+        byte[] bytes = in.array();
+        int index = in.arrayOffset() + in.position();
+        int end = in.arrayOffset() + in.limit();
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (index == end) {
+                    throw new BufferUnderflowException();
+                }
+                if (shift > 28) {
+                    throw new IllegalArgumentException("Variable length quantity is too long");
+                }
+                b = bytes[index++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            previous += value;
+            values[i] = previous;
+        }
+        in.position(index - in.arrayOffset());
+        return values;
     }
 
     private void writeBytes(DataOutput serializedByteStream) throws IOException {
@@ -789,6 +1134,49 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
         }
     }
 
+    /**
+     * Sorts the first length values of the array as signed ints with a least significant
+     * digit radix sort, one pass per byte.  Passes over a byte that is the same in every
+     * value are skipped.
+     *
+     * @param values  the values to sort
+     * @param scratch an array at least as long as length
+     */
+    static void radixSort(int[] values, int[] scratch, int length) {
+        int[] counts = new int[256];
+        int[] src = values;
+        int[] dst = scratch;
+
+        for (int shift = 0; shift < 32; shift += 8) {
+            Arrays.fill(counts, 0);
+            // flip the sign bit in the top byte so negative values sort first
+            int flip = (shift == 24) ? 0x80 : 0;
+            for (int i = 0; i < length; i++) {
+                counts[((src[i] >>> shift) & 0xff) ^ flip]++;
+            }
+            if (length == 0 || counts[((src[0] >>> shift) & 0xff) ^ flip] == length) {
+                continue;
+            }
+            int total = 0;
+            for (int b = 0; b < 256; b++) {
+                int c = counts[b];
+                counts[b] = total;
+                total += c;
+            }
+            for (int i = 0; i < length; i++) {
+                int v = src[i];
+                dst[counts[((v >>> shift) & 0xff) ^ flip]++] = v;
+            }
+            int[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+
+        if (src != values) {
+            System.arraycopy(src, 0, values, 0, length);
+        }
+    }
+
     int[] sortEncodedSet(int[] encodedSet, int validIndex) {
         int[] result = new int[validIndex];
         for (int i = 0; i < validIndex; ++i) {
@@ -810,15 +1198,20 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
      * If possible, the sparse mode is protected. A switch to the normal mode
      * is triggered only if the resulting set exceed the threshold.
      * <p/>
-     * This operation does not imply a loss of precision.
+     * An estimator of higher precision is folded to this one's first, see {@link #fold(int)}.
+     * Otherwise this operation does not imply a loss of precision.
      *
-     * @param other A compatible Hyperloglog++ instance (same p and sp)
-     * @throws CardinalityMergeException if other is not compatible
+     * @param other A compatible Hyperloglog++ instance (same sp, same or higher p)
+     * @throws CardinalityMergeException if other has a lower p
      */
     public void addAll(HyperLogLogPlus other) throws HyperLogLogPlusMergeException {
-        if (other.sizeof() != sizeof()) {
+        if (other.p > p) {
+            other = other.fold(p);
+        } else if (other.p != p) {
             throw new HyperLogLogPlusMergeException("Cannot merge estimators of different sizes");
         }
+        dirty = true;
+        hip = false;
         if (format == Format.SPARSE) {
             mergeTempList();
         }
@@ -862,6 +1255,104 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
         throw new IllegalStateException("Unhandled HLL++ merge combination");
     }
 
+    /**
+     * Add all the elements of the viewed set to this set, reading the view's registers
+     * or sparse entries straight from its buffer.  A view of higher precision is decoded
+     * and folded to this one's first, as {@link #addAll(HyperLogLogPlus)} does.
+     *
+     * @param other A compatible view (same or higher p, and same sp if both are sparse)
+     * @throws CardinalityMergeException if other is not compatible
+     */
+    public void addAll(HyperLogLogPlusView other) throws HyperLogLogPlusMergeException {
+        if (other.p < p) {
+            throw new HyperLogLogPlusMergeException("Cannot merge estimators of different sizes");
+        }
+        if (other.sp != sp && format == Format.SPARSE && other.format == Format.SPARSE) {
+            throw new HyperLogLogPlusMergeException("Cannot merge sparse estimators of different sparse precisions");
+        }
+        if (other.p > p) {
+            addAll(copyOf(other));
+            return;
+        }
+        dirty = true;
+        hip = false;
+        if (format == Format.SPARSE) {
+            mergeTempList();
+        }
+
+        if (other.format == Format.NORMAL) {
+            if (format == Format.SPARSE) {
+                convertToNormal();
+            }
+            registerSet.merge(other.buffer, other.dataOffset);
+            return;
+        }
+
+        ByteBuffer entries = other.sparseEntries();
+        if (format == Format.NORMAL) {
+            int k = 0;
+            for (int i = 0; i < other.length; i++) {
+                k += Varint.readUnsignedVarInt(entries);
+                registerSet.updateIfGreater(getIndex(k, p, other.sp), decodeRunLength(k, p, other.sp));
+            }
+            return;
+        }
+
+        sparseSet = mergeEncoded(entries, other.length);
+        if (sparseSet.length > sparseSetThreshold) {
+            convertToNormal();
+        }
+    }
+
+    /**
+     * @return an estimator holding the viewed registers or sparse entries
+     */
+    private static HyperLogLogPlus copyOf(HyperLogLogPlusView view) {
+        if (view.format == Format.NORMAL) {
+            int[] words = new int[view.length / 4];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = view.buffer.getInt(view.dataOffset + (i << 2));
+            }
+            return new HyperLogLogPlus(view.p, view.sp, new RegisterSet(1 << view.p, words));
+        }
+        HyperLogLogPlus copy = new HyperLogLogPlus(view.p, view.sp, readDeltas(view.sparseEntries(), view.length));
+        copy.format = Format.SPARSE;
+        return copy;
+    }
+
+    /**
+     * Same as {@link #mergeEstimators(HyperLogLogPlus)} with the other sparse set read as
+     * delta encoded varints.
+     *
+     * @param entries the encoded set, positioned at its first delta
+     * @param length  the number of entries in the encoded set
+     * @return the new sparse set
+     */
+    private int[] mergeEncoded(ByteBuffer entries, int length) {
+        int[] set = sparseSet;
+        int[] newSet = new int[set.length + length];
+        int newSetCounter = 0;
+        int seti = 0;
+
+        int tmpVal = 0;
+        for (int i = 0; i < length; i++) {
+            tmpVal += Varint.readUnsignedVarInt(entries);
+            int tmpIdx = getSparseIndex(tmpVal);
+            while ((seti < set.length) && (getSparseIndex(set[seti]) < tmpIdx)) {
+                newSet[newSetCounter++] = set[seti++];
+            }
+            if ((seti < set.length) && (getSparseIndex(set[seti]) == tmpIdx)) {
+                newSet[newSetCounter++] = Math.min(set[seti++], tmpVal);
+            } else {
+                newSet[newSetCounter++] = tmpVal;
+            }
+        }
+        while (seti < set.length) {
+            newSet[newSetCounter++] = set[seti++];
+        }
+        return (newSetCounter < newSet.length)?Arrays.copyOf(newSet, newSetCounter):newSet;
+    }
+
     /**
      * Merge this HLL++ with a bunch of others! The power of minions!
      * <p/>
@@ -878,7 +1369,25 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
      */
     @Override
     public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException {
-        HyperLogLogPlus merged = new HyperLogLogPlus(p, sp);
+        int lowest = p;
+        if (estimators != null) {
+            for (ICardinality estimator : estimators) {
+                if (estimator instanceof HyperLogLogPlus) {
+                    lowest = Math.min(lowest, ((HyperLogLogPlus) estimator).p);
+                } else if (estimator instanceof HyperLogLogPlusView) {
+                    lowest = Math.min(lowest, ((HyperLogLogPlusView) estimator).p);
+                } else {
+                    throw new HyperLogLogPlusMergeException("Cannot merge estimators of different class");
+                }
+            }
+        }
+
+        HyperLogLogPlus merged;
+        if (lowest == p) {
+            merged = emptyCopy();
+        } else {
+            merged = compactRegisters ? withCompactRegisters(lowest, sp) : new HyperLogLogPlus(lowest, sp);
+        }
         merged.addAll(this);
 
         if (estimators == null) {
@@ -886,16 +1395,90 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
         }
 
         for (ICardinality estimator : estimators) {
-            if (!(estimator instanceof HyperLogLogPlus)) {
-                throw new HyperLogLogPlusMergeException("Cannot merge estimators of different class");
+            if (estimator instanceof HyperLogLogPlusView) {
+                merged.addAll((HyperLogLogPlusView) estimator);
+            } else {
+                merged.addAll((HyperLogLogPlus) estimator);
             }
-            HyperLogLogPlus hll = (HyperLogLogPlus) estimator;
-            merged.addAll(hll);
         }
 
         return merged;
     }
 
+    /**
+     * Estimator of a lower precision holding what the same values would have given at it.
+     * Normal mode registers are folded by {@link RegisterSet#fold(int)}.  Sparse entries keep
+     * their sp bit index, and only those whose index bits below newP are all zero carry a
+     * run length, now counted from newP; the estimator converts to normal mode if the entries
+     * no longer fit under the lower threshold.
+     *
+     * @param newP the normal mode precision to fold to, between 4 and p
+     * @return a new estimator, or a copy when the precision is unchanged
+     */
+    public HyperLogLogPlus fold(int newP) {
+        if (newP < 4 || newP > p) {
+            throw new IllegalArgumentException("Cannot fold precision " + p + " to " + newP);
+        }
+        if (format == Format.NORMAL) {
+            HyperLogLogPlus folded = new HyperLogLogPlus(newP, sp, registerSet.fold(p, newP));
+            folded.compactRegisters = compactRegisters;
+            return folded;
+        }
+
+        mergeTempList();
+        int bits = p - newP;
+        int dropped = (1 << bits) - 1;
+        int[] encoded = new int[sparseSet.length];
+        for (int i = 0; i < sparseSet.length; i++) {
+            int k = sparseSet[i];
+            if ((k & 1) == 1 && (getIndex(k, p) & dropped) == 0) {
+                int runLength = decodeRunLength(k) + bits;
+                encoded[i] = (((getSparseIndex(k) << 6) | (runLength ^ 63)) << 1) | 1;
+            } else {
+                encoded[i] = getSparseIndex(k) << 1;
+            }
+        }
+
+        HyperLogLogPlus folded = compactRegisters ? withCompactRegisters(newP, sp) : new HyperLogLogPlus(newP, sp);
+        folded.sparseSet = merge(EMPTY_SPARSE, sortEncodedSet(encoded, encoded.length));
+        if (folded.sparseSet.length > folded.sparseSetThreshold) {
+            folded.convertToNormal();
+        }
+        return folded;
+    }
+
+    /**
+     * Writes the registers through to the file of an estimator opened with
+     * {@link Builder#map(File)}. Does nothing for estimators held on the heap.
+     */
+    public void flush() {
+        if (registerSet != null) {
+            registerSet.flush();
+        }
+    }
+
+    /**
+     * @return a normal mode estimator over the given registers
+     */
+    static HyperLogLogPlus normal(int p, RegisterSet registerSet) {
+        return new HyperLogLogPlus(p, 0, registerSet);
+    }
+
+    /**
+     * @return an empty estimator with the same precisions and register layout
+     */
+    HyperLogLogPlus emptyCopy() {
+        return compactRegisters ? withCompactRegisters(p, sp) : new HyperLogLogPlus(p, sp);
+    }
+
+    int getP() {
+        return p;
+    }
+
+    int getSp() {
+        return sp;
+    }
+
     RegisterSet getRegisterSet() {
         return registerSet;
     }
@@ -904,6 +1487,29 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
         return sparseSet;
     }
 
+    /**
+     * @return bytes held by the sparse and temp sets, or 0 in normal mode
+     */
+    int sparseSizeof() {
+        if (format != Format.SPARSE) {
+            return 0;
+        }
+        return 4 * (sparseSet.length + (tmpSet == null ? 0 : tmpSet.length));
+    }
+
+    /**
+     * Converts a sparse estimator to normal mode ahead of the sparse set threshold.
+     */
+    void toNormal() {
+        if (format == Format.SPARSE) {
+            mergeTempList();
+        }
+        if (format == Format.SPARSE) {
+            convertToNormal();
+            dirty = true;
+        }
+    }
+
     public static class Builder implements IBuilder<ICardinality>, Serializable {
         private static final long serialVersionUID = -14775219914128662L;
 
@@ -927,23 +1533,7 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
         }
 
         public static HyperLogLogPlus build(byte[] bytes) throws IOException {
-            ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-            DataInputStream oi = new DataInputStream(bais);
-            int version = oi.readInt();
-            // the new encoding scheme includes a version field
-            // that is always negative.  If the version field
-            // is not present then we'll use the legacy
-            // decoding method
-            if (version < 0) {
-                return decodeBytes(oi);
-            } else {
-                // need to re-create this stream
-                // because the first int read above
-                // is not present in the legacy codec
-                bais = new ByteArrayInputStream(bytes);
-                oi = new DataInputStream(bais);
-                return legacyDecode(oi);
-            }
+            return readFrom(ByteBuffer.wrap(bytes));
         }
 
         public static HyperLogLogPlus build(DataInput oi) throws IOException {
@@ -959,7 +1549,53 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
             }
         }
 
-        private static HyperLogLogPlus legacyDecode(DataInput oi) throws IOException {
+        /**
+         * Opens an estimator over a buffer holding the output of {@link HyperLogLogPlus#getBytes()}
+         * for a normal mode estimator, starting at the buffer's position.  The registers are not
+         * copied: offers and merges write straight to the buffer, which stays in the serialized
+         * format.  Sparse estimators grow as they are offered to and cannot be updated in place.
+         */
+        public static HyperLogLogPlus wrap(ByteBuffer buffer) throws IOException {
+            ByteBuffer header = buffer.duplicate();
+            try {
+                if (header.getInt() != -VERSION) {
+                    throw new IOException("Only version " + VERSION + " HyperLogLogPlus buffers can be wrapped");
+                }
+                int p = Varint.readUnsignedVarInt(header);
+                int sp = Varint.readUnsignedVarInt(header);
+                int formatType = Varint.readUnsignedVarInt(header);
+                if (formatType != 0) {
+                    throw new IOException("Only normal mode HyperLogLogPlus buffers can be wrapped");
+                }
+                int size = Varint.readUnsignedVarInt(header);
+                if (p < 4 || p > 30 || size != RegisterSet.getSizeForCount(1 << p) * 4) {
+                    throw new IOException("Buffer does not hold the registers of a HyperLogLogPlus with p " + p);
+                }
+                RegisterSet registerSet = new ByteBufferRegisterSet(1 << p, buffer, header.position());
+                return new HyperLogLogPlus(p, sp, registerSet);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Buffer too short to hold a HyperLogLogPlus", e);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Maps a file written with {@link HyperLogLogPlus#getBytes()} by a normal mode estimator
+         * and opens an estimator over it, see {@link #wrap(ByteBuffer)}.  Changes reach the file
+         * when the mapping is written back by the operating system or when
+         * {@link HyperLogLogPlus#flush()} is called.
+         */
+        public static HyperLogLogPlus map(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                return wrap(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+            } finally {
+                raf.close();
+            }
+        }
+
+        static HyperLogLogPlus legacyDecode(DataInput oi) throws IOException {
             int p = oi.readInt();
             int sp = oi.readInt();
             int formatType = oi.readInt();
@@ -996,6 +1632,15 @@ public class HyperLogLogPlus implements ICardinality, Serializable {
                 HyperLogLogPlus hyperLogLogPlus = new HyperLogLogPlus(p, sp, new RegisterSet(1 << p, Bits.getBits(longArrayBytes)));
                 hyperLogLogPlus.format = Format.NORMAL;
                 return hyperLogLogPlus;
+            } else if (formatType == 2) {
+                // normal mode with compact registers
+                if (p < 4 || p > 30) {
+                    throw new IOException("Invalid HyperLogLogPlus precision p " + p);
+                }
+                HyperLogLogPlus hyperLogLogPlus = new HyperLogLogPlus(p, sp,
+                        CompactRegisterSet.readFrom(1 << p, oi));
+                hyperLogLogPlus.compactRegisters = true;
+                return hyperLogLogPlus;
             } else {
                 int[] rehydratedSparseSet = new int[Varint.readUnsignedVarInt(oi)];
                 int prevDeltaRead = 0;
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.clearspring.analytics.util.Varint;
+
+import static com.clearspring.analytics.stream.cardinality.RegisterSet.LOG2_BITS_PER_WORD;
+import static com.clearspring.analytics.stream.cardinality.RegisterSet.REGISTER_SIZE;
+
+/**
+ * Read-only {@link HyperLogLogPlus} over the bytes written by {@link HyperLogLogPlus#getBytes()}.
+ * <p/>
+ * Only the header is decoded up front.  {@link #cardinality()} scans the registers or counts
+ * the sparse entries straight from the buffer, and {@link HyperLogLogPlus#addAll(HyperLogLogPlusView)}
+ * merges the view into an estimator by streaming over the encoded registers or sparse deltas,
+ * so reading a stored estimator allocates no register set or sparse array.
+ * <p/>
+ * The view reads from the buffer's position at construction time onwards with absolute
+ * reads, and neither modifies nor depends on the buffer's position afterwards.  The bytes
+ * must not change while the view is in use.  Only the current (version 2) encoding is
+ * supported; use {@link HyperLogLogPlus.Builder#build(byte[])} for legacy bytes.
+ */
+public class HyperLogLogPlusView implements ICardinality {
+
+    final ByteBuffer buffer;
+    final int p;
+    final int sp;
+    final HyperLogLogPlus.Format format;
+
+    /**
+     * Bytes of register words for a normal view, number of entries for a sparse one.
+     */
+    final int length;
+
+    /**
+     * Index of the first register word or the first sparse delta.
+     */
+    final int dataOffset;
+
+    private final int start;
+    private long cachedCardinality = -1;
+
+    public HyperLogLogPlusView(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        this.start = buffer.position();
+
+        ByteBuffer header = buffer.duplicate();
+        try {
+            if (header.getInt() != -2) {
+                throw new IOException("Only version 2 HyperLogLogPlus bytes can be viewed");
+            }
+            p = Varint.readUnsignedVarInt(header);
+            sp = Varint.readUnsignedVarInt(header);
+            int formatType = Varint.readUnsignedVarInt(header);
+            length = Varint.readUnsignedVarInt(header);
+            dataOffset = header.position();
+            if (p < 4 || p > 30 || sp > 32 || ((p > sp) && (sp != 0))) {
+                throw new IOException("Invalid HyperLogLogPlus precision p " + p + ", sp " + sp);
+            }
+            if (formatType == 0) {
+                format = HyperLogLogPlus.Format.NORMAL;
+                if (length != RegisterSet.getSizeForCount(1 << p) * 4 || buffer.limit() - dataOffset < length) {
+                    throw new IOException("Buffer does not hold the registers of a HyperLogLogPlus with p " + p);
+                }
+            } else if (formatType == 1) {
+                format = HyperLogLogPlus.Format.SPARSE;
+            } else {
+                throw new IOException("Only packed register and sparse HyperLogLogPlus bytes can be viewed");
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Buffer too short to hold a HyperLogLogPlus", e);
+        }
+    }
+
+    @Override
+    public boolean offer(Object o) {
+        throw new UnsupportedOperationException("HyperLogLogPlusView is read-only");
+    }
+
+    @Override
+    public boolean offerHashed(long hashedLong) {
+        throw new UnsupportedOperationException("HyperLogLogPlusView is read-only");
+    }
+
+    @Override
+    public boolean offerHashed(int hashedInt) {
+        throw new UnsupportedOperationException("HyperLogLogPlusView is read-only");
+    }
+
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        throw new UnsupportedOperationException("HyperLogLogPlusView is read-only");
+    }
+
+    @Override
+    public long cardinality() {
+        if (cachedCardinality < 0) {
+            cachedCardinality = estimate();
+        }
+        return cachedCardinality;
+    }
+
+    private long estimate() {
+        if (format == HyperLogLogPlus.Format.SPARSE) {
+            return HyperLogLogPlus.sparseEstimate(sp > 30 ? Integer.MAX_VALUE : 1 << sp, length);
+        }
+
+        int count = 1 << p;
+        double registerSum = 0;
+        int zeros = 0;
+        for (int bucket = 0; bucket < length / 4; bucket++) {
+            int word = buffer.getInt(dataOffset + (bucket << 2));
+            int registers = Math.min(LOG2_BITS_PER_WORD, count - bucket * LOG2_BITS_PER_WORD);
+            for (int i = 0; i < registers; i++) {
+                int val = (word >>> (REGISTER_SIZE * i)) & 0x1f;
+                registerSum += Math.scalb(1d, -val);
+                if (val == 0) {
+                    zeros++;
+                }
+            }
+        }
+        return HyperLogLogPlus.normalEstimate(p, HyperLogLog.getAlphaMM(p, count), registerSum, zeros);
+    }
+
+    @Override
+    public int sizeof() {
+        return 4 * RegisterSet.getSizeForCount(1 << p);
+    }
+
+    /**
+     * @return a copy of the viewed bytes
+     */
+    @Override
+    public byte[] getBytes() {
+        int end;
+        if (format == HyperLogLogPlus.Format.NORMAL) {
+            end = dataOffset + length;
+        } else {
+            ByteBuffer entries = sparseEntries();
+            for (int i = 0; i < length; i++) {
+                Varint.readUnsignedVarInt(entries);
+            }
+            end = entries.position();
+        }
+        ByteBuffer bytes = buffer.duplicate();
+        bytes.limit(end).position(start);
+        byte[] copy = new byte[end - start];
+        bytes.get(copy);
+        return copy;
+    }
+
+    /**
+     * @return a buffer positioned at the first delta of the sparse set
+     */
+    ByteBuffer sparseEntries() {
+        ByteBuffer entries = buffer.duplicate();
+        entries.position(dataOffset);
+        return entries;
+    }
+
+    /**
+     * Merges this view and the given estimators, which may be HyperLogLogPlus instances or views,
+     * into a new HyperLogLogPlus of the lowest precision among them.
+     */
+    @Override
+    public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException {
+        int lowest = p;
+        if (estimators != null) {
+            for (ICardinality estimator : estimators) {
+                if (estimator instanceof HyperLogLogPlus) {
+                    lowest = Math.min(lowest, ((HyperLogLogPlus) estimator).getP());
+                } else if (estimator instanceof HyperLogLogPlusView) {
+                    lowest = Math.min(lowest, ((HyperLogLogPlusView) estimator).p);
+                } else {
+                    throw new HyperLogLogPlus.HyperLogLogPlusMergeException("Cannot merge estimators of different class");
+                }
+            }
+        }
+
+        HyperLogLogPlus merged = new HyperLogLogPlus(lowest, sp);
+        merged.addAll(this);
+
+        if (estimators == null) {
+            return merged;
+        }
+
+        for (ICardinality estimator : estimators) {
+            if (estimator instanceof HyperLogLogPlusView) {
+                merged.addAll((HyperLogLogPlusView) estimator);
+            } else {
+                merged.addAll((HyperLogLogPlus) estimator);
+            }
+        }
+
+        return merged;
+    }
+}
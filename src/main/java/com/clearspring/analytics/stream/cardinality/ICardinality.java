@@ -43,6 +43,18 @@ public interface ICardinality {
      */
     boolean offerHashed(int hashedInt);
 
+    /**
+     * Offer a batch of values as hashed long values.  Equivalent to calling
+     * {@link #offerHashed(long)} for each hash in the range, but lets estimators
+     * amortize their per-value work across the batch.
+     *
+     * @param hashes - the hashes of the items to offer to the estimator
+     * @param offset - index of the first hash to offer
+     * @param length - number of hashes to offer
+     * @return false if the value returned by cardinality() is unaffected by the appearance of the hashes in the stream
+     */
+    boolean offerHashed(long[] hashes, int offset, int length);
+
     /**
      * @return the number of unique elements in the stream or an estimate thereof
      */
@@ -31,15 +31,26 @@ import static java.lang.Math.pow;
 /**
  * See <i>A Linear-Time Probabilistic Counting Algorithm for Database Applications</i>
  * by Whang, Vander-Zanden, Taylor
+ * <p/>
+ * The bitmap is a byte array by default.  Counters created with {@link #withWordBitmap(int)}
+ * keep it in longs instead, so merging and counting the set bits take one operation per
+ * 64 bits.  Both map a hash to the same bit and serialize to the same bytes.
  */
 public class LinearCounting implements ICardinality {
 
     /**
      * Bitmap
      * Hashed stream elements are mapped to bits in this array
+     * Null if the bitmap is kept in words
      */
     protected byte[] map;
 
+    /**
+     * Bitmap as little-endian words, bit i of the map is bit i % 64 of word i / 64
+     * Null if the bitmap is kept in bytes
+     */
+    protected long[] words;
+
     /**
      * Size of the map in bits
      */
@@ -66,32 +77,72 @@ public class LinearCounting implements ICardinality {
         this.count = computeCount();
     }
 
+    private LinearCounting(long[] words, int size) {
+        this.words = words;
+        this.length = 8 * size;
+        this.count = computeCount();
+    }
+
+    /**
+     * @param size of bit array in bytes
+     * @return a counter keeping its bitmap in longs
+     */
+    public static LinearCounting withWordBitmap(int size) {
+        return new LinearCounting(new long[wordsForSize(size)], size);
+    }
+
+    private static int wordsForSize(int size) {
+        return (size + 7) >>> 3;
+    }
+
     @Override
     public long cardinality() {
         return (long) (Math.round(length * Math.log(length / ((double) count))));
     }
 
+    /**
+     * @return the bitmap, or a copy of it for a counter keeping its bitmap in words
+     */
     @Override
     public byte[] getBytes() {
-        return map;
+        if (words == null) {
+            return map;
+        }
+        byte[] bytes = new byte[length / 8];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (words[i >>> 3] >>> ((i & 7) << 3));
+        }
+        return bytes;
     }
 
+    /**
+     * Offers the 32 bit fold of the hash, see {@link #offerHashed(int)}.
+     */
     @Override
     public boolean offerHashed(long hashedLong) {
-        throw new UnsupportedOperationException();
+        return offerHashed(fold(hashedLong));
     }
 
+    /**
+     * Sets the bit the hash maps to.  offer(o) is equivalent to offerHashed(MurmurHash.hash(o)).
+     */
     @Override
     public boolean offerHashed(int hashedInt) {
-        throw new UnsupportedOperationException();
-    }
-
-    @Override
-    public boolean offer(Object o) {
         boolean modified = false;
 
-        long hash = (long) MurmurHash.hash(o);
-        int bit = (int) ((hash & 0xFFFFFFFFL) % (long) length);
+        int bit = (int) ((hashedInt & 0xFFFFFFFFL) % (long) length);
+        if (words != null) {
+            int i = bit >>> 6;
+            long w = words[i];
+            long mask = 1L << bit;
+            if ((mask & w) == 0) {
+                words[i] = w | mask;
+                count--;
+                modified = true;
+            }
+            return modified;
+        }
+
         int i = bit / 8;
         byte b = map[i];
         byte mask = (byte) (1 << (bit % 8));
@@ -104,20 +155,94 @@ public class LinearCounting implements ICardinality {
         return modified;
     }
 
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        if (words != null) {
+            return offerHashedWords(hashes, offset, length);
+        }
+
+        final long bits = this.length;
+        final byte[] map = this.map;
+        int unset = count;
+
+        for (int j = offset; j < offset + length; j++) {
+            int bit = (int) ((fold(hashes[j]) & 0xFFFFFFFFL) % bits);
+            int i = bit >>> 3;
+            int mask = 1 << (bit & 7);
+            if ((map[i] & mask) == 0) {
+                map[i] |= mask;
+                unset--;
+            }
+        }
+
+        boolean modified = unset != count;
+        count = unset;
+        return modified;
+    }
+
+    private boolean offerHashedWords(long[] hashes, int offset, int length) {
+        final long bits = this.length;
+        final long[] words = this.words;
+        int unset = count;
+
+        for (int j = offset; j < offset + length; j++) {
+            int bit = (int) ((fold(hashes[j]) & 0xFFFFFFFFL) % bits);
+            int i = bit >>> 6;
+            long mask = 1L << bit;
+            if ((words[i] & mask) == 0) {
+                words[i] |= mask;
+                unset--;
+            }
+        }
+
+        boolean modified = unset != count;
+        count = unset;
+        return modified;
+    }
+
+    private static int fold(long hashedLong) {
+        return (int) (hashedLong ^ (hashedLong >>> 32));
+    }
+
+    @Override
+    public boolean offer(Object o) {
+        return offerHashed(MurmurHash.hash(o));
+    }
+
     @Override
     public int sizeof() {
-        return map.length;
+        return length / 8;
     }
 
     protected int computeCount() {
         int c = 0;
-        for (byte b : map) {
-            c += Integer.bitCount(b & 0xFF);
+        if (words != null) {
+            for (long w : words) {
+                c += Long.bitCount(w);
+            }
+        } else {
+            for (byte b : map) {
+                c += Integer.bitCount(b & 0xFF);
+            }
         }
 
         return length - c;
     }
 
+    /**
+     * @return the bitmap as words, this counter's own if it keeps its bitmap in words
+     */
+    private long[] readOnlyWords() {
+        if (words != null) {
+            return words;
+        }
+        long[] copy = new long[wordsForSize(map.length)];
+        for (int i = 0; i < map.length; i++) {
+            copy[i >>> 3] |= (map[i] & 0xFFL) << ((i & 7) << 3);
+        }
+        return copy;
+    }
+
     /**
      * @return (# set bits) / (total # of bits)
      */
@@ -140,7 +265,7 @@ public class LinearCounting implements ICardinality {
      */
     protected String mapAsBitString() {
         StringBuilder sb = new StringBuilder();
-        for (byte b : map) {
+        for (byte b : getBytes()) {
             String bits = Integer.toBinaryString(b);
             for (int i = 0; i < 8 - bits.length(); i++) {
                 sb.append('0');
@@ -151,13 +276,13 @@ public class LinearCounting implements ICardinality {
     }
 
     /**
-     * @return this if estimators is null or no arguments are passed
+     * @return a copy of this if estimators is null or no arguments are passed
      * @throws LinearCountingMergeException if estimators are not mergeable (all estimators must be instances of LinearCounting of the same size)
      */
     @Override
     public ICardinality merge(ICardinality... estimators) throws LinearCountingMergeException {
         if (estimators == null) {
-            return new LinearCounting(map);
+            return words != null ? new LinearCounting(words.clone(), length / 8) : new LinearCounting(map);
         }
         LinearCounting[] lcs = Arrays.copyOf(estimators, estimators.length + 1, LinearCounting[].class);
         lcs[lcs.length - 1] = this;
@@ -166,6 +291,9 @@ public class LinearCounting implements ICardinality {
 
     /**
      * Merges estimators to produce an estimator for their combined streams
+     * <p/>
+     * The result keeps its bitmap in words if any of the estimators does, in which case
+     * the bitmaps are ORed 64 bits at a time.
      *
      * @param estimators
      * @return merged estimator or null if no estimators were provided
@@ -174,14 +302,28 @@ public class LinearCounting implements ICardinality {
     public static LinearCounting mergeEstimators(LinearCounting... estimators) throws LinearCountingMergeException {
         LinearCounting merged = null;
         if (estimators != null && estimators.length > 0) {
-            int size = estimators[0].map.length;
-            byte[] mergedBytes = new byte[size];
-
+            int size = estimators[0].sizeof();
+            boolean anyWords = false;
             for (LinearCounting estimator : estimators) {
-                if (estimator.map.length != size) {
+                if (estimator.sizeof() != size) {
                     throw new LinearCountingMergeException("Cannot merge estimators of different sizes");
                 }
+                anyWords |= estimator.words != null;
+            }
 
+            if (anyWords) {
+                long[] mergedWords = new long[wordsForSize(size)];
+                for (LinearCounting estimator : estimators) {
+                    long[] words = estimator.readOnlyWords();
+                    for (int w = 0; w < mergedWords.length; w++) {
+                        mergedWords[w] |= words[w];
+                    }
+                }
+                return new LinearCounting(mergedWords, size);
+            }
+
+            byte[] mergedBytes = new byte[size];
+            for (LinearCounting estimator : estimators) {
                 for (int b = 0; b < size; b++) {
                     mergedBytes[b] |= estimator.map[b];
                 }
@@ -219,17 +361,27 @@ public class LinearCounting implements ICardinality {
 
         protected final int size;
 
+        /**
+         * Whether built counters keep their bitmap in words, see {@link LinearCounting#withWordBitmap(int)}
+         */
+        protected final boolean wordBitmap;
+
         public Builder() {
             this(65536);
         }
 
         public Builder(int size) {
+            this(size, false);
+        }
+
+        public Builder(int size, boolean wordBitmap) {
             this.size = size;
+            this.wordBitmap = wordBitmap;
         }
 
         @Override
         public LinearCounting build() {
-            return new LinearCounting(size);
+            return wordBitmap ? LinearCounting.withWordBitmap(size) : new LinearCounting(size);
         }
 
         @Override
@@ -113,23 +113,45 @@ public class LogLog implements ICardinality {
         return (long) (Ca * Math.pow(2, Ravg));
     }
 
+    /**
+     * Uses the first k bits of the hash as the register index and the rank of the
+     * remaining 64 - k bits as the register value.
+     */
     @Override
     public boolean offerHashed(long hashedLong) {
-        throw new UnsupportedOperationException();
+        int j = (int) (hashedLong >>> (Long.SIZE - k));
+        byte r = (byte) (Long.numberOfLeadingZeros((hashedLong << k) | (1 << (k - 1))) + 1);
+        return updateRegister(j, r);
     }
 
     @Override
-    public boolean offerHashed(int hashedInt) {
+    public boolean offerHashed(long[] hashes, int offset, int length) {
         boolean modified = false;
+        for (int i = offset; i < offset + length; i++) {
+            modified |= offerHashed(hashes[i]);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean offerHashed(int hashedInt) {
         int j = hashedInt >>> (Integer.SIZE - k);
         byte r = (byte) (Integer.numberOfLeadingZeros((hashedInt << k) | (1 << (k - 1))) + 1);
+        return updateRegister(j, r);
+    }
+
+    /**
+     * Raises register j to r if it is lower, the only place registers are written
+     *
+     * @return true if the register changed
+     */
+    protected boolean updateRegister(int j, byte r) {
         if (M[j] < r) {
             Rsum += r - M[j];
             M[j] = r;
-            modified = true;
+            return true;
         }
-
-        return modified;
+        return false;
     }
 
     @Override
@@ -138,6 +160,21 @@ public class LogLog implements ICardinality {
         return offerHashed(x);
     }
 
+    /**
+     * Equivalent to offer(Long.valueOf(o)) without boxing
+     */
+    public boolean offer(long o) {
+        return offerHashed(MurmurHash.hashLong(o));
+    }
+
+    /**
+     * Offers the bytes hashed by their contents.  LogLog hashes them as offer((Object) o) does,
+     * subclasses may choose a different hash, see {@link AdaptiveCounting#offer(byte[])}.
+     */
+    public boolean offer(byte[] o) {
+        return offerHashed(MurmurHash.hash(o));
+    }
+
     /**
      * Computes the position of the first set bit of the last Integer.SIZE-k bits
      *
@@ -16,16 +16,28 @@
 
 package com.clearspring.analytics.stream.cardinality;
 
+import java.util.Arrays;
 import java.util.TreeSet;
 
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * The smallest values offered to an {@link AdaKMV}: up to replacementThreshold records,
+ * and the records they displaced, the pseudo-records, up to maxSize values in total.
+ * <p/>
+ * Both are kept in primitive max-heaps, so the largest record and the largest pseudo-record
+ * are at hand, and an open addressing set of all retained values answers membership.
+ * Offering a value allocates nothing.
+ */
 public class RecordSet {
 
 
     private int replacementThreshold;
     private int maxSize;
     private int recordCounter = 0;
-    private TreeSet<Long>  records;
-    private TreeSet<Long>  pseudoRecords;
+    private final LongMaxHeap records;
+    private final LongMaxHeap pseudoRecords;
+    private final LongOpenHashSet members;
 
 //    /* Constructor used for non-adaptative version of KMV
 //    * */
@@ -35,69 +47,138 @@ public class RecordSet {
 //        this.records = new TreeSet<Long>();
 //    }
 
+    public RecordSet(int replacementThreshold, int maxSize) {
+        this.replacementThreshold = replacementThreshold;
+        this.maxSize = maxSize;
+        this.records = new LongMaxHeap(replacementThreshold);
+        this.pseudoRecords = new LongMaxHeap(maxSize - replacementThreshold);
+        this.members = new LongOpenHashSet();
+    }
+
     public RecordSet(int replacementThreshold, int recordCounter, int maxSize, TreeSet<Long>
             initialValues, TreeSet<Long> initialPseudos) {
+        this(replacementThreshold, maxSize);
         this.recordCounter = recordCounter;
-        this.replacementThreshold = replacementThreshold;
-        this.maxSize = maxSize;
-        this.records = initialValues;
-        this.pseudoRecords = initialPseudos;
+        for (long value : initialValues) {
+            records.push(value);
+            members.add(value);
+        }
+        for (long value : initialPseudos) {
+            pseudoRecords.push(value);
+            members.add(value);
+        }
     }
 
     public RecordSet(RecordSet other) {
         this.recordCounter = other.recordCounter;
         this.replacementThreshold = other.replacementThreshold;
         this.maxSize = other.maxSize;
-        this.records = new TreeSet<>(other.records);
-        this.pseudoRecords = new TreeSet<>(other.pseudoRecords);
+        this.records = new LongMaxHeap(other.records);
+        this.pseudoRecords = new LongMaxHeap(other.pseudoRecords);
+        this.members = new LongOpenHashSet(other.members);
     }
 
     public int currentSize(){
-        return records.size() + pseudoRecords.size();
+        return records.size + pseudoRecords.size;
     }
 
     public boolean offer(long value) {
+        // values at or above the largest retained value cannot enter a saturated set
+        if (records.size >= replacementThreshold && currentSize() > 0 && value >= maxValue()) {
+            return false;
+        }
         boolean cardinalityAffected = false;
 
-        if (!this.contains(value)){
-            if(records.size() < replacementThreshold || value < records.last()){
-                records.add(value);
+        if (!members.contains(value)){
+            if(records.size < replacementThreshold || value < records.peek()){
+                records.push(value);
+                members.add(value);
                 ++recordCounter;
                 cardinalityAffected = true;
-            } else if (!pseudoRecords.isEmpty() && value < pseudoRecords.last()){
-                pseudoRecords.add(value);
-                pseudoRecords.remove(pseudoRecords.last());
+            } else if (pseudoRecords.size > 0 && value < pseudoRecords.peek()){
+                members.remove(pseudoRecords.peek());
+                pseudoRecords.replaceTop(value);
+                members.add(value);
                 cardinalityAffected = true;
             }
-            if (records.size() > replacementThreshold){
-                pseudoRecords.add(records.last());
-                records.remove(records.last());
+            if (records.size > replacementThreshold){
+                pseudoRecords.push(records.pop());
             }
             if (currentSize() > maxSize){
-                pseudoRecords.remove(pseudoRecords.last());
+                members.remove(pseudoRecords.pop());
             }
         }
 
         return cardinalityAffected;
     }
 
+    /**
+     * Takes in the records of that set with a linear merge of the sorted values.  The records
+     * become the smallest replacementThreshold values of both record sets, and the records this
+     * set had and the values of that set that did not make it compete with the pseudo-records
+     * for the room they leave, up to maxSize values in total.  Without pseudo-records, when
+     * replacementThreshold == maxSize, this is the same as offering every record of that set.
+     */
     public void merge(RecordSet that) {
-        for(Long record : that.records()){
-            this.offer(record);
+        long[] these = records.sorted();
+        long[] those = that.records.sorted();
+
+        // the union of both record sets, leaving out values already held as pseudo-records,
+        // of which the first replacementThreshold become the records
+        long[] union = new long[these.length + those.length];
+        int n = 0;
+        int displaced = 0;
+        int i = 0;
+        int j = 0;
+        while (i < these.length || j < those.length) {
+            if (j == those.length || (i < these.length && these[i] <= those[j])) {
+                if (j < those.length && these[i] == those[j]) {
+                    j++;
+                }
+                if (n >= replacementThreshold) {
+                    displaced++;
+                }
+                union[n++] = these[i++];
+            } else if (members.contains(those[j])) {
+                j++;
+            } else {
+                if (n < replacementThreshold) {
+                    ++recordCounter;
+                }
+                union[n++] = those[j++];
+            }
         }
+
+        int kept = Math.min(n, replacementThreshold);
+        records.fill(union, kept);
+        members.clear();
+        for (int k = 0; k < kept; k++) {
+            members.add(union[k]);
+        }
+
+        // the records that did not make it and the pseudo-records compete for the rest
+        long[] pseudos = pseudoRecords.sorted();
+        long[] retained = new long[Math.max(0, Math.min(maxSize - kept, pseudos.length + displaced))];
+        i = 0;
+        j = kept;
+        for (int k = 0; k < retained.length; k++) {
+            retained[k] = (j == n || (i < pseudos.length && pseudos[i] < union[j])) ? pseudos[i++] : union[j++];
+            members.add(retained[k]);
+        }
+        pseudoRecords.fill(retained, retained.length);
     }
 
     public boolean contains(long value){
-        return this.records.contains(value) || this.pseudoRecords.contains(value);
+        return members.contains(value);
     }
 
-    public Long maxValue() throws UnsupportedOperationException {
+    public long maxValue() throws UnsupportedOperationException {
         long maxValue;
 
-        if (!pseudoRecords.isEmpty()){
-            maxValue = pseudoRecords.last();
-        } else if (!records.isEmpty()){
-            maxValue = records.last();
+        if (pseudoRecords.size > 0){
+            maxValue = pseudoRecords.peek();
+        } else if (records.size > 0){
+            maxValue = records.peek();
         } else {
             throw new UnsupportedOperationException("No records in record set.");
         }
@@ -105,11 +186,134 @@ public class RecordSet {
         return maxValue;
     }
 
+    /**
+     * @return a value such that offering any value above it leaves this set unchanged,
+     * or Long.MAX_VALUE while the set still accepts every new value
+     */
+    public long admissionBound() {
+        if (records.size < replacementThreshold) {
+            return Long.MAX_VALUE;
+        }
+        return maxValue();
+    }
+
     public int replacementThreshold(){
         return replacementThreshold;
     }
 
+    /**
+     * @return the records in ascending order
+     */
+    public long[] sortedRecords() {
+        return records.sorted();
+    }
+
+    /**
+     * @return the records and the pseudo-records in ascending order
+     */
+    public long[] sortedValues() {
+        long[] values = Arrays.copyOf(records.sorted(), currentSize());
+        long[] pseudos = pseudoRecords.sorted();
+        // every pseudo-record is above every record
+        System.arraycopy(pseudos, 0, values, records.size, pseudos.length);
+        return values;
+    }
+
+    /**
+     * @return a sorted copy of the records
+     */
     public TreeSet<Long> records(){
-        return records;
+        TreeSet<Long> copy = new TreeSet<Long>();
+        for (int i = 0; i < records.size; i++) {
+            copy.add(records.heap[i]);
+        }
+        return copy;
+    }
+
+    /**
+     * Binary max-heap of longs, growing as needed.
+     */
+    private static class LongMaxHeap {
+
+        long[] heap;
+        int size;
+
+        LongMaxHeap(int expectedSize) {
+            heap = new long[Math.max(1, Math.min(expectedSize + 1, 1024))];
+        }
+
+        LongMaxHeap(LongMaxHeap other) {
+            heap = other.heap.clone();
+            size = other.size;
+        }
+
+        long peek() {
+            return heap[0];
+        }
+
+        void push(long value) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] >= value) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = value;
+        }
+
+        long pop() {
+            long top = heap[0];
+            long last = heap[--size];
+            if (size > 0) {
+                siftDown(last);
+            }
+            return top;
+        }
+
+        void replaceTop(long value) {
+            siftDown(value);
+        }
+
+        private void siftDown(long value) {
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && heap[child + 1] > heap[child]) {
+                    child++;
+                }
+                if (heap[child] <= value) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = value;
+        }
+
+        /**
+         * Replaces the contents with ascending[0, length), which in reverse order is a heap
+         */
+        void fill(long[] ascending, int length) {
+            if (heap.length < length) {
+                heap = new long[length];
+            }
+            for (int k = 0; k < length; k++) {
+                heap[k] = ascending[length - 1 - k];
+            }
+            size = length;
+        }
+
+        long[] sorted() {
+            long[] values = Arrays.copyOf(heap, size);
+            Arrays.sort(values);
+            return values;
+        }
     }
 }
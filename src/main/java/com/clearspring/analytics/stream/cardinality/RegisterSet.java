@@ -16,16 +16,33 @@
 
 package com.clearspring.analytics.stream.cardinality;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 public class RegisterSet {
 
     public final static int LOG2_BITS_PER_WORD = 6;
     public final static int REGISTER_SIZE = 5;
+    public final static int REGISTER_MAX = (1 << REGISTER_SIZE) - 1;
+
+    /**
+     * The first, third and fifth registers of a word, and the lowest bit above each of them.
+     */
+    private static final int EVEN_REGISTERS = 0x01F07C1F;
+    private static final int EVEN_CARRIES = 0x02008020;
 
     public final int count;
     public final int size;
 
     private final int[] M;
 
+    /**
+     * Number of registers holding each possible value. Kept up to date by every
+     * write so that the harmonic sum and the number of empty registers can be
+     * read without scanning the registers.
+     */
+    private final int[] rankCounts = new int[REGISTER_MAX + 1];
+
     public RegisterSet(int count) {
         this(count, null);
     }
@@ -39,6 +56,76 @@ public class RegisterSet {
             this.M = initialValues;
         }
         this.size = this.M.length;
+        countRanks();
+    }
+
+    /**
+     * For subclasses that keep the words somewhere other than the heap array. They must
+     * call {@link #countRanks()} once their storage is readable.
+     */
+    RegisterSet(int count, int size) {
+        this.count = count;
+        this.size = size;
+        this.M = null;
+    }
+
+    /**
+     * Creates a register set whose words are read from and written to the given buffer,
+     * starting at its current position, as big-endian ints.  This is the layout
+     * {@link HyperLogLog#getBytes()} writes the registers in, so a buffer holding a
+     * serialized estimator, such as a {@link java.nio.MappedByteBuffer} over a file,
+     * can be updated in place.
+     *
+     * @param count  the number of registers
+     * @param buffer the buffer holding at least {@code getSizeForCount(count)} words
+     */
+    public static RegisterSet wrap(int count, ByteBuffer buffer) {
+        return new ByteBufferRegisterSet(count, buffer, buffer.position());
+    }
+
+    /**
+     * Creates a register set that holds each register as a 4 bit offset from the smallest
+     * register, with the few registers too far above it kept in a side table.  It takes about
+     * 20% less memory than the packed 5 bit words, and estimators built on it serialize the
+     * registers the same way.
+     *
+     * @param count the number of registers
+     */
+    public static RegisterSet compact(int count) {
+        return new CompactRegisterSet(count);
+    }
+
+    final void countRanks() {
+        if (size * LOG2_BITS_PER_WORD < count) {
+            // not enough words to address every register, nothing sensible to count
+            rankCounts[0] = count;
+            return;
+        }
+        for (int bucket = 0, first = 0; first < count; bucket++, first += LOG2_BITS_PER_WORD) {
+            int word = word(bucket);
+            int registers = Math.min(LOG2_BITS_PER_WORD, count - first);
+            for (int j = 0; j < registers; j++) {
+                rankCounts[(word >>> (REGISTER_SIZE * j)) & 0x1f]++;
+            }
+        }
+    }
+
+    /**
+     * Rank count bookkeeping for subclasses that override {@link #set(int, int)} and
+     * {@link #updateIfGreater(int, int)} rather than the word accessors.
+     */
+    final int rankCount(int value) {
+        return rankCounts[value];
+    }
+
+    final void rankChanged(int from, int to) {
+        rankCounts[from]--;
+        rankCounts[to]++;
+    }
+
+    final void recountRanks() {
+        Arrays.fill(rankCounts, 0);
+        countRanks();
     }
 
     public static int getBits(int count) {
@@ -56,28 +143,48 @@ public class RegisterSet {
         }
     }
 
+    /**
+     * Storage access, overridden by register sets that are not backed by a heap array.
+     */
+    int word(int bucket) {
+        return M[bucket];
+    }
+
+    void setWord(int bucket, int word) {
+        M[bucket] = word;
+    }
+
     public void set(int position, int value) {
+        value = Math.min(value, REGISTER_MAX);
         int bucketPos = position / LOG2_BITS_PER_WORD;
         int shift = REGISTER_SIZE * (position - (bucketPos * LOG2_BITS_PER_WORD));
-        this.M[bucketPos] = (this.M[bucketPos] & ~(0x1f << shift)) | (value << shift);
+        int word = word(bucketPos);
+        rankCounts[(word >>> shift) & 0x1f]--;
+        rankCounts[value]++;
+        setWord(bucketPos, (word & ~(0x1f << shift)) | (value << shift));
     }
 
     public int get(int position) {
         int bucketPos = position / LOG2_BITS_PER_WORD;
         int shift = REGISTER_SIZE * (position - (bucketPos * LOG2_BITS_PER_WORD));
-        return (this.M[bucketPos] & (0x1f << shift)) >>> shift;
+        return (word(bucketPos) & (0x1f << shift)) >>> shift;
     }
 
     public boolean updateIfGreater(int position, int value) {
+        // a register cannot hold more than 5 bits, anything larger would spill into its neighbour
+        value = Math.min(value, REGISTER_MAX);
         int bucket = position / LOG2_BITS_PER_WORD;
         int shift = REGISTER_SIZE * (position - (bucket * LOG2_BITS_PER_WORD));
         int mask = 0x1f << shift;
 
         // Use long to avoid sign issues with the left-most shift
-        long curVal = this.M[bucket] & mask;
+        int word = word(bucket);
+        long curVal = word & mask;
         long newVal = value << shift;
         if (curVal < newVal) {
-            this.M[bucket] = (int) ((this.M[bucket] & ~mask) | newVal);
+            setWord(bucket, (int) ((word & ~mask) | newVal));
+            rankCounts[(int) (curVal >>> shift)]--;
+            rankCounts[value]++;
             return true;
         } else {
             return false;
@@ -85,19 +192,150 @@ public class RegisterSet {
     }
 
     public void merge(RegisterSet that) {
-        for (int bucket = 0; bucket < M.length; bucket++) {
-            int word = 0;
-            for (int j = 0; j < LOG2_BITS_PER_WORD; j++) {
-                int mask = 0x1f << (REGISTER_SIZE * j);
-
-                int thisVal = (this.M[bucket] & mask);
-                int thatVal = (that.M[bucket] & mask);
-                word |= (thisVal < thatVal) ? thatVal : thisVal;
+        for (int bucket = 0; bucket < size; bucket++) {
+            mergeWord(bucket, that.word(bucket));
+        }
+    }
+
+    /**
+     * Merges with registers stored in the buffer as big-endian words, the layout
+     * {@link #wrap(int, ByteBuffer)} reads, without copying them out first.
+     *
+     * @param offset index of the first byte of the first word
+     */
+    void merge(ByteBuffer buffer, int offset) {
+        for (int bucket = 0; bucket < size; bucket++) {
+            mergeWord(bucket, buffer.getInt(offset + (bucket << 2)));
+        }
+    }
+
+    private void mergeWord(int bucket, int thatWord) {
+        int thisWord = word(bucket);
+        int word = maxOfRegisters(thisWord, thatWord);
+        if (word == thisWord) {
+            return;
+        }
+        setWord(bucket, word);
+        // only the registers that were raised move to another rank
+        for (int changed = word ^ thisWord; changed != 0; ) {
+            int shift = REGISTER_SIZE * (Integer.numberOfTrailingZeros(changed) / REGISTER_SIZE);
+            rankCounts[(thisWord >>> shift) & 0x1f]--;
+            rankCounts[(word >>> shift) & 0x1f]++;
+            changed &= ~(0x1f << shift);
+        }
+    }
+
+    /**
+     * @return a word holding the larger of each pair of registers packed in the two words
+     */
+    static int maxOfRegisters(int thisWord, int thatWord) {
+        return maxOfEvenRegisters(thisWord & EVEN_REGISTERS, thatWord & EVEN_REGISTERS)
+               | (maxOfEvenRegisters((thisWord >>> REGISTER_SIZE) & EVEN_REGISTERS,
+                                     (thatWord >>> REGISTER_SIZE) & EVEN_REGISTERS) << REGISTER_SIZE);
+    }
+
+    /**
+     * Both arguments hold only the registers of {@link #EVEN_REGISTERS}, each with an empty
+     * register above it.  Subtracting them from a value with the lowest bit of each empty
+     * register set cannot borrow across registers, and leaves that bit set exactly where the
+     * register of a is the larger or equal one.
+     */
+    private static int maxOfEvenRegisters(int a, int b) {
+        int aWins = ((a | EVEN_CARRIES) - b) & EVEN_CARRIES;
+        aWins -= aWins >>> REGISTER_SIZE;
+        return (a & aWins) | (b & ~aWins);
+    }
+
+    /**
+     * Raises the registers packed in target[from, to) to the matching registers of source.
+     * Works on raw words, so it can run on disjoint ranges of the same target concurrently;
+     * wrap the result in a new RegisterSet to get the rank counts.
+     */
+    static void mergeWords(int[] target, int[] source, int from, int to) {
+        for (int i = from; i < to; i++) {
+            target[i] = maxOfRegisters(target[i], source[i]);
+        }
+    }
+
+    /**
+     * Registers of an estimator with precision {@code newP}, computed from these registers as
+     * if the same hashes had been offered at the lower precision.  The register count must
+     * be a power of two, 2^p, and newP at most p; see {@link #fold(int, int)}.
+     */
+    public RegisterSet fold(int newP) {
+        if (Integer.bitCount(count) != 1) {
+            throw new IllegalArgumentException("Only a power of two registers can be folded, not " + count);
+        }
+        return fold(Integer.numberOfTrailingZeros(count), newP);
+    }
+
+    /**
+     * Folds the first 2^p registers to 2^newP.  The register at position j moves to
+     * j >>> (p - newP), and the position bits it drops become the leading bits of what the
+     * rank counts: the rank is how far into them the first one bit is, or the old rank plus
+     * their number if they are all zero.  Each folded register is the largest rank moved
+     * into it, so the folded registers are those the same hashes give at newP, except where
+     * a register had reached {@link #REGISTER_MAX}.
+     */
+    RegisterSet fold(int p, int newP) {
+        if (newP < 0 || newP > p) {
+            throw new IllegalArgumentException("Cannot fold precision " + p + " to " + newP);
+        }
+        int newCount = 1 << newP;
+        RegisterSet folded = (this instanceof CompactRegisterSet) ? compact(newCount) : new RegisterSet(newCount);
+        int bits = p - newP;
+        int dropped = (1 << bits) - 1;
+        int registers = 1 << p;
+        for (int bucket = 0, first = 0; first < registers; bucket++, first += LOG2_BITS_PER_WORD) {
+            int word = word(bucket);
+            int last = Math.min(LOG2_BITS_PER_WORD, registers - first);
+            for (int j = 0; j < last; j++) {
+                int value = (word >>> (REGISTER_SIZE * j)) & 0x1f;
+                if (value == 0) {
+                    continue;
+                }
+                int position = first + j;
+                int rest = position & dropped;
+                int rank = (rest == 0) ? value + bits : Integer.numberOfLeadingZeros(rest) - (Integer.SIZE - bits) + 1;
+                folded.updateIfGreater(position >>> bits, rank);
             }
-            this.M[bucket] = word;
         }
+        return folded;
+    }
+
+    /**
+     * @return the number of registers that are still zero
+     */
+    public int zeros() {
+        return rankCounts[0];
+    }
+
+    /**
+     * Sum of 2^-M[j] over all registers, the denominator of the HyperLogLog
+     * estimator. Computed from the per-value register counts so it costs the
+     * same for any number of registers.
+     */
+    public double harmonicSum() {
+        double sum = 0;
+        for (int r = 0; r < rankCounts.length; r++) {
+            if (rankCounts[r] != 0) {
+                sum += Math.scalb((double) rankCounts[r], -r);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Writes any changes through to the underlying storage. Only does something for
+     * register sets backed by a {@link java.nio.MappedByteBuffer}.
+     */
+    public void flush() {
     }
 
+    /**
+     * @return the words, not to be modified. Register sets that are not backed by a heap
+     * array return a copy.
+     */
     int[] readOnlyBits() {
         return M;
     }
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.clearspring.analytics.util.IBuilder;
+
+/**
+ * Keyed collection of cardinality estimators held within a heap budget.
+ * <p/>
+ * Estimators are created on first use from an {@link IBuilder}.  The registry keeps a running
+ * total of the bytes retained by the estimators in memory and, when an update takes it over
+ * budget, evicts the least recently used estimators by appending their {@link ICardinality#getBytes()}
+ * to a spill file.  Updating an evicted key does not read the file: a fresh estimator collects
+ * the new values and the spilled parts are merged in when the key is next read with
+ * {@link #get(Object)} or when the registry is {@link #flush() flushed}.
+ * <p/>
+ * Keys and the file offsets of their spilled parts stay on the heap.  The file is append-only
+ * between flushes; {@link #flush()} rewrites it with one merged estimator per key.
+ * <p/>
+ * This class is not thread safe.
+ *
+ * @param <K> the key type
+ * @param <S> the estimator type, all estimators of a registry must be mergeable with each other
+ */
+public class SketchRegistry<K, S extends ICardinality> implements Closeable {
+
+    /**
+     * Rough heap cost of an entry besides the estimator's own data: the map entry,
+     * the entry object, and the estimator's object header and fields.
+     */
+    static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * Turns the output of {@link ICardinality#getBytes()} back into an estimator,
+     * typically one of the static Builder.build(byte[]) methods.
+     */
+    public interface Decoder<S> {
+
+        S decode(byte[] bytes) throws IOException;
+    }
+
+    private static class Entry<S> {
+
+        S sketch;
+        long weight;
+
+        Entry(S sketch) {
+            this.sketch = sketch;
+        }
+    }
+
+    private final IBuilder<? extends ICardinality> builder;
+    private final Decoder<? extends S> decoder;
+    private final long maxBytes;
+    private final File spillFile;
+
+    /**
+     * Estimators in memory, least recently used first.
+     */
+    private final LinkedHashMap<K, Entry<S>> live = new LinkedHashMap<K, Entry<S>>(16, 0.75f, true);
+
+    /**
+     * File offsets of the spilled parts of each key.
+     */
+    private Map<K, List<Long>> spilled = new HashMap<K, List<Long>>();
+
+    private RandomAccessFile file;
+    private long retainedBytes;
+
+    /**
+     * @param builder   creates the estimator of a new key, which must be an instance of S
+     * @param decoder   reads back spilled estimators
+     * @param maxBytes  the number of bytes the estimators in memory may retain
+     * @param spillFile where evicted estimators are written, truncated if it exists
+     */
+    public SketchRegistry(IBuilder<? extends ICardinality> builder, Decoder<? extends S> decoder,
+                          long maxBytes, File spillFile) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive, was " + maxBytes);
+        }
+        this.builder = builder;
+        this.decoder = decoder;
+        this.maxBytes = maxBytes;
+        this.spillFile = spillFile;
+        this.file = new RandomAccessFile(spillFile, "rw");
+        this.file.setLength(0);
+    }
+
+    /**
+     * Offers the value to the key's estimator, creating it if needed.
+     *
+     * @return false if the in-memory part of the key's estimator is unaffected
+     */
+    public boolean offer(K key, Object o) throws IOException {
+        Entry<S> entry = liveEntry(key);
+        boolean modified = entry.sketch.offer(o);
+        updated(entry);
+        return modified;
+    }
+
+    /**
+     * Offers the hashed value to the key's estimator, creating it if needed.
+     *
+     * @return false if the in-memory part of the key's estimator is unaffected
+     */
+    public boolean offerHashed(K key, long hashedLong) throws IOException {
+        Entry<S> entry = liveEntry(key);
+        boolean modified = entry.sketch.offerHashed(hashedLong);
+        updated(entry);
+        return modified;
+    }
+
+    /**
+     * Returns the key's estimator with any spilled parts merged back in, or null if the key
+     * has never been offered to.  The estimator stays registered, so offers made to it directly
+     * are kept, but its growth is only accounted for on the key's next access through the registry.
+     */
+    public S get(K key) throws IOException, CardinalityMergeException {
+        Entry<S> entry = live.get(key);
+        List<Long> offsets = spilled.remove(key);
+        if (offsets != null) {
+            S merged = mergeSpilled(entry == null ? null : entry.sketch, offsets);
+            if (entry == null) {
+                entry = new Entry<S>(merged);
+                live.put(key, entry);
+            } else {
+                entry.sketch = merged;
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
+        updated(entry);
+        return entry.sketch;
+    }
+
+    /**
+     * @return the key's cardinality estimate, 0 if the key has never been offered to
+     */
+    public long cardinality(K key) throws IOException, CardinalityMergeException {
+        S sketch = get(key);
+        return sketch == null ? 0 : sketch.cardinality();
+    }
+
+    /**
+     * @return every key offered to, in memory or spilled
+     */
+    public Set<K> keySet() {
+        Set<K> keys = new LinkedHashSet<K>(spilled.keySet());
+        keys.addAll(live.keySet());
+        return Collections.unmodifiableSet(keys);
+    }
+
+    public int size() {
+        return keySet().size();
+    }
+
+    /**
+     * @return the bytes retained by the estimators in memory, as last measured
+     */
+    public long retainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * Merges the spilled parts of every key with its estimator in memory, one key at a time,
+     * and rewrites the spill file with the result, leaving no estimators in memory.  The merged
+     * estimators are reloaded as their keys are read.
+     */
+    public void flush() throws IOException, CardinalityMergeException {
+        File compacted = new File(spillFile.getPath() + ".compact");
+        RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+        Map<K, List<Long>> compactedOffsets = new HashMap<K, List<Long>>();
+        try {
+            out.setLength(0);
+            for (K key : keySet()) {
+                Entry<S> entry = live.get(key);
+                List<Long> offsets = spilled.get(key);
+                S sketch = (offsets == null) ? entry.sketch : mergeSpilled(entry == null ? null : entry.sketch, offsets);
+                compactedOffsets.put(key, Collections.singletonList(append(out, sketch)));
+            }
+        } finally {
+            out.close();
+        }
+
+        file.close();
+        if (!spillFile.delete() || !compacted.renameTo(spillFile)) {
+            throw new IOException("Could not replace " + spillFile + " with " + compacted);
+        }
+        file = new RandomAccessFile(spillFile, "rw");
+        spilled = compactedOffsets;
+        live.clear();
+        retainedBytes = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * @return the number of bytes the estimator retains on the heap, excluding the key.
+     * A sparse HyperLogLogPlus is weighed by its sparse entries rather than the registers
+     * {@link ICardinality#sizeof()} reports.
+     */
+    protected long weigh(S sketch) {
+        if (sketch instanceof HyperLogLogPlus) {
+            HyperLogLogPlus hllp = (HyperLogLogPlus) sketch;
+            if (hllp.format == HyperLogLogPlus.Format.SPARSE) {
+                return hllp.sparseSizeof() + ENTRY_OVERHEAD;
+            }
+        }
+        return sketch.sizeof() + ENTRY_OVERHEAD;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entry<S> liveEntry(K key) {
+        Entry<S> entry = live.get(key);
+        if (entry == null) {
+            // the builders of this package are all IBuilder<ICardinality>
+            entry = new Entry<S>((S) builder.build());
+            live.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Re-measures the entry and evicts the least recently used estimators, never the
+     * one just used, until the registry is within its budget.
+     */
+    private void updated(Entry<S> entry) throws IOException {
+        long weight = weigh(entry.sketch);
+        retainedBytes += weight - entry.weight;
+        entry.weight = weight;
+
+        Iterator<Map.Entry<K, Entry<S>>> eldest = live.entrySet().iterator();
+        while (retainedBytes > maxBytes && live.size() > 1) {
+            Map.Entry<K, Entry<S>> evicted = eldest.next();
+            spill(evicted.getKey(), evicted.getValue().sketch);
+            retainedBytes -= evicted.getValue().weight;
+            eldest.remove();
+        }
+    }
+
+    private void spill(K key, S sketch) throws IOException {
+        long offset = append(file, sketch);
+        List<Long> offsets = spilled.get(key);
+        if (offsets == null) {
+            offsets = new ArrayList<Long>(1);
+            spilled.put(key, offsets);
+        }
+        offsets.add(offset);
+    }
+
+    private static long append(RandomAccessFile out, ICardinality sketch) throws IOException {
+        byte[] bytes = sketch.getBytes();
+        long offset = out.length();
+        out.seek(offset);
+        out.write(ByteBuffer.allocate(4 + bytes.length).putInt(bytes.length).put(bytes).array());
+        return offset;
+    }
+
+    private S read(long offset) throws IOException {
+        file.seek(offset);
+        byte[] bytes = new byte[file.readInt()];
+        file.readFully(bytes);
+        return decoder.decode(bytes);
+    }
+
+    @SuppressWarnings("unchecked")
+    private S mergeSpilled(S sketch, List<Long> offsets) throws IOException, CardinalityMergeException {
+        int first = 0;
+        if (sketch == null) {
+            sketch = read(offsets.get(0));
+            first = 1;
+        }
+        if (first == offsets.size()) {
+            return sketch;
+        }
+        ICardinality[] parts = new ICardinality[offsets.size() - first];
+        for (int i = first; i < offsets.size(); i++) {
+            parts[i - first] = read(offsets.get(i));
+        }
+        return (S) sketch.merge(parts);
+    }
+}
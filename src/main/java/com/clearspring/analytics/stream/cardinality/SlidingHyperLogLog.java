@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+import com.clearspring.analytics.hash.MurmurHash;
+import com.clearspring.analytics.util.IBuilder;
+import com.clearspring.analytics.util.Varint;
+
+/**
+ * HyperLogLog over a sliding time window, as described in
+ * <p/>
+ * Chabchoub and Hebrail, "Sliding HyperLogLog: Estimating cardinality in a data stream over a sliding window"
+ * <p/>
+ * Instead of a single rank, each register keeps its List of Future Possible Maxima (LPFM): the
+ * (timestamp, rank) pairs that are the largest rank of the register for some window ending at
+ * the latest timestamp.  A pair is dropped once a later pair has a rank at least as large, so
+ * the ranks in a list strictly decrease as the timestamps increase and the lists stay short,
+ * about the log of the number of updates a register sees in the window.
+ * <p/>
+ * {@link #cardinality(long)} takes, for every register, the rank of the oldest pair inside the
+ * window, which is exactly the register a {@link HyperLogLogPlus} in normal mode would hold had
+ * it only been offered the elements of that window.  So one structure answers any window up to
+ * the configured maximum with the accuracy of a HyperLogLogPlus of the same precision.
+ * <p/>
+ * Hashes are mapped to registers as {@link HyperLogLogPlus#offerHashed(long)} maps them.
+ * Timestamps are in milliseconds and may arrive out of order; pairs that fall out of the
+ * maximum window are pruned as their registers are updated.
+ */
+public class SlidingHyperLogLog implements ICardinality, Serializable {
+
+    private static final long serialVersionUID = 6120839458305473418L;
+
+    /**
+     * Low bits of a pair holding the rank, the timestamp is in the bits above.
+     */
+    private static final int RANK_BITS = 6;
+    private static final long RANK_MASK = (1L << RANK_BITS) - 1;
+    private static final long MAX_TIMESTAMP = Long.MAX_VALUE >>> RANK_BITS;
+
+    private final int p;
+    private final long maxWindowMillis;
+    private final double alphaMM;
+
+    /**
+     * Pairs of each register, oldest first, packed as timestamp << RANK_BITS | rank.
+     */
+    private final long[][] pairs;
+    private final byte[] lengths;
+    private int totalPairs;
+
+    private long latestTimestamp = Long.MIN_VALUE;
+
+    /**
+     * @param p               the precision, between 4 and 30 as for {@link HyperLogLogPlus}
+     * @param maxWindowMillis the longest window {@link #cardinality(long)} will be asked for
+     */
+    public SlidingHyperLogLog(int p, long maxWindowMillis) {
+        if (p < 4 || p > 30) {
+            throw new IllegalArgumentException("p must be between 4 and 30 (inclusive)");
+        }
+        if (maxWindowMillis <= 0) {
+            throw new IllegalArgumentException("maxWindowMillis must be positive");
+        }
+        this.p = p;
+        this.maxWindowMillis = maxWindowMillis;
+        int m = 1 << p;
+        this.alphaMM = HyperLogLog.getAlphaMM(p, m);
+        this.pairs = new long[m][];
+        this.lengths = new byte[m];
+    }
+
+    /**
+     * Offers a hashed element seen at the given time.
+     *
+     * @return false if the element cannot change the estimate of any window ending at or
+     * after the latest timestamp offered
+     */
+    public boolean offerHashed(long hashedLong, long timestampMillis) {
+        if (timestampMillis < 0 || timestampMillis > MAX_TIMESTAMP) {
+            throw new IllegalArgumentException("timestamp " + timestampMillis + " is out of range");
+        }
+        if (timestampMillis > latestTimestamp) {
+            latestTimestamp = timestampMillis;
+        } else if (timestampMillis <= latestTimestamp - maxWindowMillis) {
+            return false;
+        }
+        final int idx = (int) (hashedLong >>> (64 - p));
+        final int runLength = Long.numberOfLeadingZeros((hashedLong << this.p) | (long) (1 << (this.p - 1))) + 1;
+        return insert(idx, (timestampMillis << RANK_BITS) | runLength);
+    }
+
+    /**
+     * Adds the pair to the register's list unless a pair at least as recent has at least its
+     * rank, dropping the pairs it makes redundant and those outside the maximum window.
+     */
+    private boolean insert(int idx, long pair) {
+        long timestamp = pair >>> RANK_BITS;
+        long rank = pair & RANK_MASK;
+        long[] list = pairs[idx];
+        int length = lengths[idx];
+
+        // the first pair at or after the timestamp has the largest rank of all of them
+        int after = 0;
+        while (after < length && (list[after] >>> RANK_BITS) < timestamp) {
+            after++;
+        }
+        if (after < length && (list[after] & RANK_MASK) >= rank) {
+            return false;
+        }
+
+        // older pairs with no larger rank, and pairs at the same time, are superseded
+        int from = after;
+        while (from > 0 && (list[from - 1] & RANK_MASK) <= rank) {
+            from--;
+        }
+        int to = after;
+        while (to < length && (list[to] >>> RANK_BITS) == timestamp) {
+            to++;
+        }
+        // and so are pairs no window can reach any more
+        long cutoff = latestTimestamp - maxWindowMillis;
+        int expired = 0;
+        while (expired < from && (list[expired] >>> RANK_BITS) <= cutoff) {
+            expired++;
+        }
+
+        int newLength = length - expired - (to - from) + 1;
+        if (list == null || newLength > list.length) {
+            long[] grown = new long[Math.max(4, newLength + (newLength >> 1))];
+            if (list != null) {
+                System.arraycopy(list, expired, grown, 0, from - expired);
+                System.arraycopy(list, to, grown, from - expired + 1, length - to);
+            }
+            list = grown;
+            pairs[idx] = list;
+        } else {
+            System.arraycopy(list, expired, list, 0, from - expired);
+            System.arraycopy(list, to, list, from - expired + 1, length - to);
+        }
+        list[from - expired] = pair;
+        lengths[idx] = (byte) newLength;
+        totalPairs += newLength - length;
+        return true;
+    }
+
+    /**
+     * @return the estimated number of distinct elements offered with a timestamp in
+     * (latest - windowMillis, latest], where latest is the largest timestamp offered
+     */
+    public long cardinality(long windowMillis) {
+        if (windowMillis <= 0 || windowMillis > maxWindowMillis) {
+            throw new IllegalArgumentException("window must be positive and at most " + maxWindowMillis + " ms");
+        }
+        long cutoff = latestTimestamp - windowMillis;
+        double harmonicSum = 0;
+        int zeros = 0;
+        for (int idx = 0; idx < pairs.length; idx++) {
+            long[] list = pairs[idx];
+            int length = lengths[idx];
+            int i = 0;
+            while (i < length && (list[i] >>> RANK_BITS) <= cutoff) {
+                i++;
+            }
+            if (i == length) {
+                zeros++;
+                harmonicSum += 1;
+            } else {
+                harmonicSum += Math.scalb(1.0, (int) -(list[i] & RANK_MASK));
+            }
+        }
+        return HyperLogLogPlus.normalEstimate(p, alphaMM, harmonicSum, zeros);
+    }
+
+    /**
+     * @return the largest timestamp offered so far, the end of every window
+     */
+    public long latestTimestamp() {
+        return latestTimestamp;
+    }
+
+    public long maxWindowMillis() {
+        return maxWindowMillis;
+    }
+
+    /**
+     * Offers the element at the current time.
+     */
+    @Override
+    public boolean offer(Object o) {
+        return offerHashed(MurmurHash.hash64(o), System.currentTimeMillis());
+    }
+
+    /**
+     * Offers the hash at the current time.
+     */
+    @Override
+    public boolean offerHashed(long hashedLong) {
+        return offerHashed(hashedLong, System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean offerHashed(int hashedInt) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Offers the hashes, all at the current time.
+     */
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        long now = System.currentTimeMillis();
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++) {
+            modified |= offerHashed(hashes[i], now);
+        }
+        return modified;
+    }
+
+    /**
+     * @return the estimate for the maximum window
+     */
+    @Override
+    public long cardinality() {
+        return cardinality(maxWindowMillis);
+    }
+
+    /**
+     * @return the bytes taken by the pairs and their lengths
+     */
+    @Override
+    public int sizeof() {
+        return totalPairs * 8 + lengths.length;
+    }
+
+    /**
+     * Writes p, the maximum window and the latest timestamp, then for each register the
+     * number of pairs followed by each pair as its varint distance from the latest
+     * timestamp and its rank.
+     */
+    @Override
+    public byte[] getBytes() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(p);
+        dos.writeLong(maxWindowMillis);
+        dos.writeLong(latestTimestamp);
+        for (int idx = 0; idx < pairs.length; idx++) {
+            Varint.writeUnsignedVarInt(lengths[idx], dos);
+            for (int i = 0; i < lengths[idx]; i++) {
+                long pair = pairs[idx][i];
+                Varint.writeUnsignedVarLong(latestTimestamp - (pair >>> RANK_BITS), dos);
+                dos.writeByte((int) (pair & RANK_MASK));
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Add all the elements of the other set to this set, keeping the timestamps they were
+     * offered at.
+     *
+     * @param other a sliding estimator with the same precision
+     * @throws CardinalityMergeException if other is not compatible
+     */
+    public void addAll(SlidingHyperLogLog other) throws CardinalityMergeException {
+        if (other.p != p) {
+            throw new SlidingHyperLogLogMergeException("Cannot merge estimators of different precisions");
+        }
+        latestTimestamp = Math.max(latestTimestamp, other.latestTimestamp);
+        long cutoff = latestTimestamp - maxWindowMillis;
+        for (int idx = 0; idx < pairs.length; idx++) {
+            for (int i = 0; i < other.lengths[idx]; i++) {
+                long pair = other.pairs[idx][i];
+                if ((pair >>> RANK_BITS) > cutoff) {
+                    insert(idx, pair);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a new estimator over the union of the streams, with this estimator's maximum window
+     */
+    @Override
+    public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException {
+        SlidingHyperLogLog merged = new SlidingHyperLogLog(p, maxWindowMillis);
+        merged.addAll(this);
+        if (estimators == null) {
+            return merged;
+        }
+        for (ICardinality estimator : estimators) {
+            if (!(estimator instanceof SlidingHyperLogLog)) {
+                throw new SlidingHyperLogLogMergeException("Cannot merge estimators of different class");
+            }
+            merged.addAll((SlidingHyperLogLog) estimator);
+        }
+        return merged;
+    }
+
+    public static class Builder implements IBuilder<ICardinality>, Serializable {
+
+        private static final long serialVersionUID = -3387452893271564035L;
+
+        private final int p;
+        private final long maxWindowMillis;
+
+        public Builder(int p, long maxWindowMillis) {
+            this.p = p;
+            this.maxWindowMillis = maxWindowMillis;
+        }
+
+        @Override
+        public SlidingHyperLogLog build() {
+            return new SlidingHyperLogLog(p, maxWindowMillis);
+        }
+
+        @Override
+        public int sizeof() {
+            return 1 << p;
+        }
+
+        public static SlidingHyperLogLog build(byte[] bytes) throws IOException {
+            return build(new DataInputStream(new ByteArrayInputStream(bytes)));
+        }
+
+        public static SlidingHyperLogLog build(DataInput in) throws IOException {
+            int p = in.readInt();
+            long maxWindowMillis = in.readLong();
+            long latestTimestamp = in.readLong();
+            SlidingHyperLogLog sliding;
+            try {
+                sliding = new SlidingHyperLogLog(p, maxWindowMillis);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e);
+            }
+            sliding.latestTimestamp = latestTimestamp;
+            for (int idx = 0; idx < sliding.pairs.length; idx++) {
+                int length = Varint.readUnsignedVarInt(in);
+                if (length > 64 - p + 1) {
+                    throw new IOException("Register " + idx + " has " + length + " pairs");
+                }
+                long[] list = length == 0 ? null : new long[length];
+                for (int i = 0; i < length; i++) {
+                    long timestamp = latestTimestamp - Varint.readUnsignedVarLong(in);
+                    int rank = in.readUnsignedByte();
+                    if (timestamp < 0 || rank == 0 || rank > 64 - p + 1
+                        || (i > 0 && (timestamp <= (list[i - 1] >>> RANK_BITS) || rank >= (list[i - 1] & RANK_MASK)))) {
+                        throw new IOException("Invalid pair " + timestamp + ", " + rank + " for register " + idx);
+                    }
+                    list[i] = (timestamp << RANK_BITS) | rank;
+                }
+                sliding.pairs[idx] = list;
+                sliding.lengths[idx] = (byte) length;
+                sliding.totalPairs += length;
+            }
+            return sliding;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    protected static class SlidingHyperLogLogMergeException extends CardinalityMergeException {
+
+        public SlidingHyperLogLogMergeException(String message) {
+            super(message);
+        }
+    }
+}
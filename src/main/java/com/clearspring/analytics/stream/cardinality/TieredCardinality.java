@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+import com.clearspring.analytics.hash.MurmurHash;
+import com.clearspring.analytics.util.IBuilder;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * Cardinality estimator that picks its representation as it grows, within a target
+ * relative error and a byte budget.
+ * <p/>
+ * It starts out counting exactly, keeping the {@link MurmurHash#hash64(Object)} of each
+ * element in a primitive hash set.  Once that set would take more room than the dense
+ * registers of the estimator it stands in for, the hashes are replayed into a sparse
+ * {@link HyperLogLogPlus}, which in turn converts to its dense registers as soon as the
+ * sparse set is the larger of the two, rather than at its own threshold.  The exact tier
+ * is kept while it fits in the dense size because it costs no more and has no error; after
+ * that the smaller of the sparse and dense forms is held.
+ * <p/>
+ * The precision is the one giving {@code rsd}, lowered if the dense registers would not
+ * fit in the budget, so a small budget relaxes the error target.  Estimators of the same
+ * precision merge whatever tier each one is in, and the result is only as expensive as
+ * the union needs: exact sets merge into an exact set, exact hashes are offered to sparse
+ * or dense estimators, and sparse estimators stay sparse while their union is small.
+ */
+public class TieredCardinality implements ICardinality {
+
+    /**
+     * Precision of the sparse {@link HyperLogLogPlus} tier
+     */
+    static final int SPARSE_PRECISION = 25;
+
+    private static final byte EXACT = 0;
+    private static final byte ESTIMATED = 1;
+
+    private static final int MIN_PRECISION = 4;
+    private static final int MAX_PRECISION = 18;
+
+    private final int p;
+
+    /**
+     * Bytes of the dense registers at precision p
+     */
+    private final int denseSize;
+
+    /**
+     * Hashes of the elements offered so far, null once estimating
+     */
+    private LongOpenHashSet exact;
+
+    /**
+     * Sparse or dense estimator, null while counting exactly
+     */
+    private HyperLogLogPlus estimator;
+
+    /**
+     * @param rsd         target relative standard deviation of the estimates
+     * @param budgetBytes most bytes the dense registers may take
+     */
+    public TieredCardinality(double rsd, int budgetBytes) {
+        this(precision(rsd, budgetBytes));
+    }
+
+    private TieredCardinality(int p) {
+        this.p = p;
+        this.denseSize = denseSize(p);
+        this.exact = new LongOpenHashSet(0);
+    }
+
+    static int precision(double rsd, int budgetBytes) {
+        if (rsd <= 0) {
+            throw new IllegalArgumentException("rsd must be positive");
+        }
+        if (budgetBytes < denseSize(MIN_PRECISION)) {
+            throw new IllegalArgumentException("budget of " + budgetBytes + " bytes is less than the smallest estimator, "
+                                               + denseSize(MIN_PRECISION) + " bytes");
+        }
+        double registers = (1.04 / rsd) * (1.04 / rsd);
+        int p = (int) Math.ceil(Math.log(registers) / Math.log(2));
+        p = Math.max(MIN_PRECISION, Math.min(MAX_PRECISION, p));
+        while (p > MIN_PRECISION && denseSize(p) > budgetBytes) {
+            p--;
+        }
+        return p;
+    }
+
+    private static int denseSize(int p) {
+        return 4 * RegisterSet.getSizeForCount(1 << p);
+    }
+
+    /**
+     * @return bytes held by the hash set's table, see {@link HashCommon#arraySize(int, float)}
+     */
+    private static int exactSizeof(int size) {
+        return 8 * (HashCommon.arraySize(size, 0.75f) + 1);
+    }
+
+    /**
+     * @return true while counting exactly
+     */
+    public boolean isExact() {
+        return exact != null;
+    }
+
+    /**
+     * @return true once the dense registers are held
+     */
+    public boolean isDense() {
+        return estimator != null && estimator.format == HyperLogLogPlus.Format.NORMAL;
+    }
+
+    int getP() {
+        return p;
+    }
+
+    @Override
+    public long cardinality() {
+        if (exact != null) {
+            return exact.size();
+        }
+        return estimator.cardinality();
+    }
+
+    /**
+     * @param hashedLong a hash of the element the way {@link #offer(Object)} computes it,
+     *                   {@link MurmurHash#hash64(Object)}, to count elements offered both ways
+     */
+    @Override
+    public boolean offerHashed(long hashedLong) {
+        if (exact != null) {
+            if (!exact.add(hashedLong)) {
+                return false;
+            }
+            if (exactSizeof(exact.size()) > denseSize) {
+                toSparse();
+            }
+            return true;
+        }
+        boolean modified = estimator.offerHashed(hashedLong);
+        shrink();
+        return modified;
+    }
+
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        boolean modified = false;
+        int end = offset + length;
+        int i = offset;
+        for (; i < end && exact != null; i++) {
+            modified |= offerHashed(hashes[i]);
+        }
+        if (i < end) {
+            modified |= estimator.offerHashed(hashes, i, end - i);
+            shrink();
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean offerHashed(int hashedInt) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean offer(Object o) {
+        return offerHashed(MurmurHash.hash64(o));
+    }
+
+    /**
+     * Replays the exact hashes into a sparse estimator
+     */
+    private void toSparse() {
+        estimator = new HyperLogLogPlus(p, SPARSE_PRECISION);
+        long[] hashes = exact.toLongArray();
+        estimator.offerHashed(hashes, 0, hashes.length);
+        exact = null;
+        shrink();
+    }
+
+    /**
+     * Converts the estimator to dense registers once the sparse set takes more room
+     */
+    private void shrink() {
+        if (estimator.sparseSizeof() > denseSize) {
+            estimator.toNormal();
+        }
+    }
+
+    /**
+     * @return bytes currently held: the hash set's table, the sparse set or the registers
+     */
+    @Override
+    public int sizeof() {
+        if (exact != null) {
+            return exactSizeof(exact.size());
+        }
+        int sparse = estimator.sparseSizeof();
+        return sparse > 0 ? sparse : estimator.sizeof();
+    }
+
+    @Override
+    public byte[] getBytes() throws IOException {
+        int size = exact != null ? 8 * exact.size() : estimator.serializedSize();
+        ByteBuffer out = ByteBuffer.allocate(9 + size);
+        out.put(exact != null ? EXACT : ESTIMATED);
+        out.putInt(p);
+        if (exact != null) {
+            // sorted, so equal sets have equal bytes
+            long[] hashes = exact.toLongArray();
+            Arrays.sort(hashes);
+            out.putInt(hashes.length);
+            out.asLongBuffer().put(hashes);
+        } else {
+            out.putInt(size);
+            estimator.writeTo(out);
+        }
+        return out.array();
+    }
+
+    /**
+     * Adds the elements of another estimator of the same precision to this one, moving
+     * this one to a cheaper tier only as far as the union requires.
+     *
+     * @throws TieredCardinalityMergeException if the precisions differ
+     */
+    public void addAll(TieredCardinality other) throws CardinalityMergeException {
+        if (other.p != p) {
+            throw new TieredCardinalityMergeException("Cannot merge estimators of different precision");
+        }
+        if (other.exact != null) {
+            for (LongIterator it = other.exact.iterator(); it.hasNext(); ) {
+                offerHashed(it.nextLong());
+            }
+            return;
+        }
+        if (exact != null) {
+            toSparse();
+        }
+        estimator.addAll(other.estimator);
+        shrink();
+    }
+
+    @Override
+    public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException {
+        TieredCardinality merged = new TieredCardinality(p);
+        merged.addAll(this);
+
+        if (estimators == null) {
+            return merged;
+        }
+
+        for (ICardinality estimator : estimators) {
+            if (!(estimator instanceof TieredCardinality)) {
+                throw new TieredCardinalityMergeException("Cannot merge estimators of different class");
+            }
+            merged.addAll((TieredCardinality) estimator);
+        }
+        return merged;
+    }
+
+    public static class Builder implements IBuilder<ICardinality>, Serializable {
+
+        private static final long serialVersionUID = 5103741528214960178L;
+
+        private final double rsd;
+        private final int budgetBytes;
+
+        public Builder(double rsd, int budgetBytes) {
+            this.rsd = rsd;
+            this.budgetBytes = budgetBytes;
+        }
+
+        @Override
+        public TieredCardinality build() {
+            return new TieredCardinality(rsd, budgetBytes);
+        }
+
+        /**
+         * @return the most bytes an estimator may hold, those of its dense registers
+         */
+        @Override
+        public int sizeof() {
+            return denseSize(precision(rsd, budgetBytes));
+        }
+
+        public static TieredCardinality build(byte[] bytes) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            try {
+                byte tier = in.get();
+                int p = in.getInt();
+                if (p < MIN_PRECISION || p > MAX_PRECISION) {
+                    throw new IOException("Invalid TieredCardinality precision " + p);
+                }
+                TieredCardinality tiered = new TieredCardinality(p);
+                int length = in.getInt();
+                if (tier == EXACT) {
+                    if (length < 0 || length > in.remaining() / 8) {
+                        throw new IOException("Invalid TieredCardinality hash count " + length);
+                    }
+                    tiered.exact = new LongOpenHashSet(length);
+                    for (int i = 0; i < length; i++) {
+                        tiered.exact.add(in.getLong());
+                    }
+                } else if (tier == ESTIMATED) {
+                    tiered.estimator = HyperLogLogPlus.readFrom(in);
+                    tiered.exact = null;
+                    if (tiered.estimator.getP() != p) {
+                        throw new IOException("TieredCardinality precision " + p + " does not match its estimator's");
+                    }
+                } else {
+                    throw new IOException("Unrecognized TieredCardinality tier: " + tier);
+                }
+                return tiered;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Buffer too short to hold a TieredCardinality", e);
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    protected static class TieredCardinalityMergeException extends CardinalityMergeException {
+
+        public TieredCardinalityMergeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import com.clearspring.analytics.hash.MurmurHash;
+import com.clearspring.analytics.util.IBuilder;
+
+/**
+ * Cardinality estimators for consecutive periods of time, rolled up from minutes into hours,
+ * days and months.
+ * <p/>
+ * Values are offered to the estimator of their minute, created on first use from an
+ * {@link IBuilder}.  {@link #seal(long)} declares that time has moved past a watermark; every
+ * hour, day and month that ends by then is pre-merged from its children with
+ * {@link ICardinality#merge(ICardinality...)}.  Values that arrive later for a sealed period
+ * are also offered to the estimators already rolled up over them.
+ * <p/>
+ * A range query merges the fewest estimators that cover it: whole months where the range
+ * spans them, days and hours for the ragged ends and minutes only at the edges, so a query
+ * over a year merges a few dozen estimators rather than hundreds of days.  Periods that are
+ * not sealed yet are covered by their children.
+ * <p/>
+ * Periods follow the calendar of the given time zone, UTC by default.  An hour repeated when
+ * the clocks go back is a period of its own, and a day or hour whose start was skipped when
+ * they go forward starts at the transition.  Queries are at minute resolution: a range covers
+ * every minute it overlaps.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class TimeSeriesCardinalityStore {
+
+    public enum Granularity {
+        MINUTE(60 * 1000L), HOUR(60 * 60 * 1000L), DAY(24 * 60 * 60 * 1000L), MONTH(31 * 24 * 60 * 60 * 1000L);
+
+        /**
+         * Longest usual length of a period, a period is never twice as long
+         */
+        private final long millis;
+
+        Granularity(long millis) {
+            this.millis = millis;
+        }
+
+        /**
+         * Start of the period holding the timestamp, never after it.  The elapsed part of the
+         * period is subtracted on the local clock rather than set on the calendar, which would
+         * pick the later of two instants with the same local time and skip an hour when the
+         * clocks go back.
+         */
+        long start(Calendar calendar, long timestampMillis) {
+            if (this == MINUTE) {
+                // time zones have whole minute offsets, so minutes start on multiples of a minute
+                return timestampMillis - (((timestampMillis % MINUTE_MILLIS) + MINUTE_MILLIS) % MINUTE_MILLIS);
+            }
+            TimeZone zone = calendar.getTimeZone();
+            calendar.setTimeInMillis(timestampMillis);
+            long elapsed = calendar.get(Calendar.MILLISECOND)
+                           + calendar.get(Calendar.SECOND) * 1000L
+                           + calendar.get(Calendar.MINUTE) * MINUTE_MILLIS;
+            if (this == DAY || this == MONTH) {
+                elapsed += calendar.get(Calendar.HOUR_OF_DAY) * HOUR.millis;
+            }
+            if (this == MONTH) {
+                elapsed += (calendar.get(Calendar.DAY_OF_MONTH) - 1) * DAY.millis;
+            }
+            int offset = zone.getOffset(timestampMillis);
+            long localStart = timestampMillis + offset - elapsed;
+
+            long start = localStart - offset;
+            int before = zone.getOffset(start);
+            if (before == offset) {
+                return start;
+            }
+            // the offset changed during the period, so its start is at the earlier offset
+            long earlier = localStart - before;
+            if (zone.getOffset(earlier) == before) {
+                return earlier;
+            }
+            // the local start was skipped when the clocks went forward, the period starts then
+            long lo = start;
+            long hi = earlier;
+            while (hi - lo > 1) {
+                long mid = (lo + hi) >>> 1;
+                if (zone.getOffset(mid) == before) {
+                    lo = mid;
+                } else {
+                    hi = mid;
+                }
+            }
+            return hi;
+        }
+
+        /**
+         * @return the start of the period following the one starting at startMillis
+         */
+        long next(Calendar calendar, long startMillis) {
+            if (this == MINUTE) {
+                return startMillis + MINUTE_MILLIS;
+            }
+            long next = start(calendar, startMillis + 2 * millis);
+            for (long previous = start(calendar, next - 1); previous > startMillis; previous = start(calendar, next - 1)) {
+                next = previous;
+            }
+            return next;
+        }
+    }
+
+    private static final Granularity[] LEVELS = Granularity.values();
+    private static final long MINUTE_MILLIS = 60 * 1000L;
+
+    private final IBuilder<? extends ICardinality> builder;
+    private final Calendar calendar;
+
+    /**
+     * Estimators of each granularity by the start of their period.
+     */
+    private final List<TreeMap<Long, ICardinality>> levels = new ArrayList<TreeMap<Long, ICardinality>>();
+
+    /**
+     * Every period ending at or before this has been rolled up.
+     */
+    private long sealedUntil = Long.MIN_VALUE;
+
+    public TimeSeriesCardinalityStore(IBuilder<? extends ICardinality> builder) {
+        this(builder, TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * @param builder creates the estimator of each minute, all of them must be mergeable
+     * @param zone    the time zone whose hours, days and months the rollups follow
+     */
+    public TimeSeriesCardinalityStore(IBuilder<? extends ICardinality> builder, TimeZone zone) {
+        this.builder = builder;
+        this.calendar = Calendar.getInstance(zone);
+        for (int i = 0; i < LEVELS.length; i++) {
+            levels.add(new TreeMap<Long, ICardinality>());
+        }
+    }
+
+    public boolean offer(long timestampMillis, Object o) {
+        return offerHashed(timestampMillis, MurmurHash.hash64(o));
+    }
+
+    public boolean offerHashed(long timestampMillis, long hashedLong) {
+        long minute = Granularity.MINUTE.start(calendar, timestampMillis);
+        TreeMap<Long, ICardinality> minutes = levels.get(0);
+        ICardinality estimator = minutes.get(minute);
+        if (estimator == null) {
+            estimator = builder.build();
+            minutes.put(minute, estimator);
+        }
+        boolean modified = estimator.offerHashed(hashedLong);
+        if (minute < sealedUntil) {
+            // late, so keep the rollups of the sealed periods around it up to date
+            for (int level = 1; level < LEVELS.length; level++) {
+                long start = LEVELS[level].start(calendar, minute);
+                if (LEVELS[level].next(calendar, start) > sealedUntil) {
+                    break;
+                }
+                TreeMap<Long, ICardinality> rollups = levels.get(level);
+                ICardinality rollup = rollups.get(start);
+                if (rollup == null) {
+                    // nothing else was offered during the period
+                    rollup = builder.build();
+                    rollups.put(start, rollup);
+                }
+                rollup.offerHashed(hashedLong);
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Rolls up every hour, day and month that ends at or before the watermark and has not
+     * been rolled up yet.  Watermarks earlier than one already sealed are ignored.
+     */
+    public void seal(long watermarkMillis) throws CardinalityMergeException {
+        if (watermarkMillis <= sealedUntil) {
+            return;
+        }
+        long previous = sealedUntil;
+        sealedUntil = watermarkMillis;
+        for (int level = 1; level < LEVELS.length; level++) {
+            TreeMap<Long, ICardinality> children = levels.get(level - 1);
+            TreeMap<Long, ICardinality> parents = levels.get(level);
+            Granularity granularity = LEVELS[level];
+            Long child = previous == Long.MIN_VALUE
+                         ? (children.isEmpty() ? null : children.firstKey())
+                         : children.ceilingKey(granularity.start(calendar, previous));
+            while (child != null && child < watermarkMillis) {
+                long start = granularity.start(calendar, child);
+                long end = granularity.next(calendar, start);
+                if (end > watermarkMillis) {
+                    break;
+                }
+                if (!parents.containsKey(start)) {
+                    parents.put(start, merge(children.subMap(start, end).values()));
+                }
+                child = children.ceilingKey(end);
+            }
+        }
+    }
+
+    /**
+     * @return the watermark of the last {@link #seal(long)}
+     */
+    public long sealedUntil() {
+        return sealedUntil;
+    }
+
+    /**
+     * @return a new estimator of the values offered in [fromMillis, toMillis), widened to whole minutes
+     */
+    public ICardinality query(long fromMillis, long toMillis) throws CardinalityMergeException {
+        return merge(cover(fromMillis, toMillis));
+    }
+
+    /**
+     * @return the estimated number of distinct values offered in [fromMillis, toMillis),
+     * widened to whole minutes
+     */
+    public long cardinality(long fromMillis, long toMillis) throws CardinalityMergeException {
+        return query(fromMillis, toMillis).cardinality();
+    }
+
+    /**
+     * @return the estimators covering the range, as few and as coarse as possible
+     */
+    List<ICardinality> cover(long fromMillis, long toMillis) {
+        List<ICardinality> cover = new ArrayList<ICardinality>();
+        TreeMap<Long, ICardinality> minutes = levels.get(0);
+        if (minutes.isEmpty()) {
+            return cover;
+        }
+        // every estimator lies within the months of the first and last minutes, clamping to
+        // those rather than the minutes themselves keeps whole periods whole
+        Granularity month = Granularity.MONTH;
+        long from = LEVELS[0].start(calendar, Math.max(fromMillis, month.start(calendar, minutes.firstKey())));
+        long end = Math.min(toMillis, month.next(calendar, month.start(calendar, minutes.lastKey())));
+        long to = LEVELS[0].start(calendar, end);
+        if (to < end) {
+            to = LEVELS[0].next(calendar, to);
+        }
+        if (from < to) {
+            collect(LEVELS.length - 1, from, to, cover);
+        }
+        return cover;
+    }
+
+    /**
+     * Adds the estimators covering [from, to), both on minute boundaries, using periods of the
+     * given level where they fit and sealed ones exist, and finer periods otherwise.
+     */
+    private void collect(int level, long from, long to, List<ICardinality> cover) {
+        TreeMap<Long, ICardinality> estimators = levels.get(level);
+        if (level == 0) {
+            cover.addAll(estimators.subMap(from, to).values());
+            return;
+        }
+        Granularity granularity = LEVELS[level];
+        long start = granularity.start(calendar, from);
+        while (start < to) {
+            long end = granularity.next(calendar, start);
+            if (start >= from && end <= to && end <= sealedUntil) {
+                // rolled up, or nothing was offered during the period
+                ICardinality estimator = estimators.get(start);
+                if (estimator != null) {
+                    cover.add(estimator);
+                }
+            } else {
+                collect(level - 1, Math.max(start, from), Math.min(end, to), cover);
+            }
+            start = end;
+        }
+    }
+
+    private ICardinality merge(Collection<ICardinality> estimators) throws CardinalityMergeException {
+        if (estimators.isEmpty()) {
+            return builder.build();
+        }
+        List<ICardinality> rest = new ArrayList<ICardinality>(estimators);
+        ICardinality first = rest.remove(0);
+        return first.merge(rest.toArray(new ICardinality[rest.size()]));
+    }
+
+    /**
+     * @return the number of estimators held at the granularity
+     */
+    public int size(Granularity granularity) {
+        return levels.get(granularity.ordinal()).size();
+    }
+
+    /**
+     * @return the estimators held at the granularity by the start of their period, not to be modified
+     */
+    public Map<Long, ICardinality> estimators(Granularity granularity) {
+        return Collections.unmodifiableMap(levels.get(granularity.ordinal()));
+    }
+}
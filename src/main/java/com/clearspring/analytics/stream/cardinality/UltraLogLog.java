@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import java.util.Arrays;
+
+import com.clearspring.analytics.hash.MurmurHash;
+import com.clearspring.analytics.util.IBuilder;
+
+/**
+ * UltraLogLog cardinality estimator, see Otmar Ertl, "UltraLogLog: A Practical and More
+ * Space-Efficient Alternative to HyperLogLog for Approximate Distinct Counting" (2024).
+ * <p/>
+ * Hashes are mapped to 2^p registers and update values as {@link HyperLogLog#offerHashed(long)}
+ * maps them, but each register is a byte holding the largest update value seen and whether
+ * the two values just below it were seen as well.  The estimate is the maximum likelihood
+ * estimate over all that, which has a relative standard error of about 0.78/sqrt(2^p)
+ * against 1.04/sqrt(2^p) for HyperLogLog.  For the same error that is about 10% less memory
+ * than the 5 bit registers of {@link RegisterSet} (8 * 0.78^2 against 5 * 1.04^2 bits per
+ * unit of variance); the quarter saved in the paper is against 6 bit HyperLogLog registers.
+ * The estimate is not bias corrected; the bias of the maximum likelihood estimate is of the
+ * order of 1/2^p.
+ * <p/>
+ * {@link #fromHyperLogLog(HyperLogLog)} carries HyperLogLog registers over.  They hold no
+ * history, so such an estimator, and anything merged with it, is estimated from the largest
+ * update values alone and is as accurate as the HyperLogLog it came from.
+ */
+public class UltraLogLog implements ICardinality {
+
+    static final int MIN_P = 4;
+    static final int MAX_P = 26;
+
+    private static final byte HISTORY_UNKNOWN = 1;
+
+    private final int p;
+    private final byte[] registers;
+
+    /**
+     * True if some registers came from HyperLogLog registers, whose history is unknown
+     */
+    private boolean historyUnknown;
+
+    private long cachedCardinality;
+    private boolean dirty = true;
+
+    /**
+     * @param p the precision, 2^p registers of a byte each, between 4 and 26
+     */
+    public UltraLogLog(int p) {
+        this(p, new byte[checkPrecision(p)], false);
+    }
+
+    private UltraLogLog(int p, byte[] registers, boolean historyUnknown) {
+        this.p = p;
+        this.registers = registers;
+        this.historyUnknown = historyUnknown;
+    }
+
+    private static int checkPrecision(int p) {
+        if (p < MIN_P || p > MAX_P) {
+            throw new IllegalArgumentException("p must be between " + MIN_P + " and " + MAX_P + ", not " + p);
+        }
+        return 1 << p;
+    }
+
+    /**
+     * Estimator holding the registers of the given HyperLogLog, to be offered the hashes it
+     * would have been offered through {@link HyperLogLog#offerHashed(long)}.
+     */
+    public static UltraLogLog fromHyperLogLog(HyperLogLog hyperLogLog) {
+        RegisterSet registerSet = hyperLogLog.registerSet();
+        int p = Integer.numberOfTrailingZeros(registerSet.count);
+        UltraLogLog ultraLogLog = new UltraLogLog(p);
+        for (int j = 0; j < registerSet.count; j++) {
+            int r = registerSet.get(j);
+            if (r > 0) {
+                // the update value r is the hash prefix bit p + r - 2
+                ultraLogLog.registers[j] = (byte) ((p + r - 2) << 2);
+            }
+        }
+        ultraLogLog.historyUnknown = true;
+        return ultraLogLog;
+    }
+
+    public int getP() {
+        return p;
+    }
+
+    /**
+     * @return the hash prefix a register stands for: the bit of its largest update value
+     * and the two bits below it, the bits of the two update values below that
+     */
+    static long unpack(byte register) {
+        // for the empty register the shift is -2, that is 62, and shifts the 4 out
+        return (4L | (register & 3)) << (((register & 0xff) >>> 2) - 2);
+    }
+
+    static byte pack(long hashPrefix) {
+        int nlz = Long.numberOfLeadingZeros(hashPrefix) + 1;
+        return (byte) (((-nlz) << 2) | ((hashPrefix << nlz) >>> 62));
+    }
+
+    @Override
+    public boolean offerHashed(long hashedLong) {
+        int idx = (int) (hashedLong >>> (Long.SIZE - p));
+        // at most 64 - p, with the p bits shifted in from the right all set
+        int nlz = Long.numberOfLeadingZeros(~(~hashedLong << p));
+        byte register = registers[idx];
+        byte updated = pack(unpack(register) | (1L << (nlz + p - 1)));
+        if (updated != register) {
+            registers[idx] = updated;
+            dirty = true;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++) {
+            modified |= offerHashed(hashes[i]);
+        }
+        return modified;
+    }
+
+    @Override
+    public boolean offerHashed(int hashedInt) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean offer(Object o) {
+        return offerHashed(MurmurHash.hash64(o));
+    }
+
+    @Override
+    public long cardinality() {
+        if (dirty) {
+            cachedCardinality = estimate();
+            dirty = false;
+        }
+        return cachedCardinality;
+    }
+
+    /**
+     * Maximum likelihood estimate under the Poisson model: with x the rate at which a register
+     * is offered hashes, the update value j, counted from 0, hits it at rate x * rho(j) with
+     * rho(j) = 2^-(j + 1), and the last one at 2^-(64 - p).  Every value a register shows to
+     * have been hit adds log(1 - exp(-x * rho(j))) to the log likelihood and every value it
+     * shows to have been missed adds -x * rho(j), so the estimate only needs the number of
+     * hits per value and the sum of the missed rates, both read off a histogram of the
+     * register values.
+     */
+    private long estimate() {
+        int[] histogram = new int[256];
+        for (byte register : registers) {
+            histogram[register & 0xff]++;
+        }
+
+        int levels = Long.SIZE - p + 1;
+        int[] hits = new int[levels];
+        double missed = histogram[0];
+        for (int register = (p - 1) << 2; register < histogram.length; register++) {
+            int count = histogram[register];
+            if (count == 0) {
+                continue;
+            }
+            int j = (register >>> 2) - p + 1;
+            hits[j] += count;
+            if (j < levels - 1) {
+                missed += count * Math.scalb(1d, -(j + 1));
+            }
+            if (historyUnknown) {
+                continue;
+            }
+            for (int below = 1; below <= 2 && j - below >= 0; below++) {
+                if ((register & (1 << (2 - below))) != 0) {
+                    hits[j - below] += count;
+                } else {
+                    missed += count * rate(j - below, levels);
+                }
+            }
+        }
+        return Math.round(registers.length * maximumLikelihood(hits, missed, levels));
+    }
+
+    /**
+     * @return rho(j), the rate of update value j relative to the register's
+     */
+    private static double rate(int j, int levels) {
+        return Math.scalb(1d, -Math.min(j + 1, levels - 1));
+    }
+
+    /**
+     * Solves d/dx log likelihood = sum_j hits[j] rho(j) / (exp(x rho(j)) - 1) - missed = 0, whose
+     * left side falls from infinity to -missed as x grows, by bisection of log2(x).
+     */
+    static double maximumLikelihood(int[] hits, double missed, int levels) {
+        boolean any = false;
+        for (int h : hits) {
+            any |= h != 0;
+        }
+        if (!any) {
+            return 0;
+        }
+        if (missed == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double lo = -Long.SIZE;
+        double hi = Long.SIZE;
+        for (int i = 0; i < 64; i++) {
+            double mid = (lo + hi) / 2;
+            double x = Math.pow(2, mid);
+            double slope = -missed;
+            for (int j = 0; j < levels; j++) {
+                if (hits[j] != 0) {
+                    double rho = rate(j, levels);
+                    slope += hits[j] * rho / Math.expm1(x * rho);
+                }
+            }
+            if (slope > 0) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return Math.pow(2, (lo + hi) / 2);
+    }
+
+    @Override
+    public int sizeof() {
+        return registers.length;
+    }
+
+    /**
+     * @return the precision, a flag byte and the registers
+     */
+    @Override
+    public byte[] getBytes() {
+        byte[] bytes = new byte[2 + registers.length];
+        bytes[0] = (byte) p;
+        bytes[1] = historyUnknown ? HISTORY_UNKNOWN : 0;
+        System.arraycopy(registers, 0, bytes, 2, registers.length);
+        return bytes;
+    }
+
+    /**
+     * Add all the elements of the other estimator, of the same precision, to this one.
+     */
+    public void addAll(UltraLogLog other) throws UltraLogLogMergeException {
+        if (other.p != p) {
+            throw new UltraLogLogMergeException("Cannot merge estimators of different sizes");
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] != 0) {
+                registers[i] = pack(unpack(registers[i]) | unpack(other.registers[i]));
+            }
+        }
+        historyUnknown |= other.historyUnknown;
+        dirty = true;
+    }
+
+    @Override
+    public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException {
+        UltraLogLog merged = new UltraLogLog(p, Arrays.copyOf(registers, registers.length), historyUnknown);
+
+        if (estimators == null) {
+            return merged;
+        }
+
+        for (ICardinality estimator : estimators) {
+            if (!(estimator instanceof UltraLogLog)) {
+                throw new UltraLogLogMergeException("Cannot merge estimators of different class");
+            }
+            merged.addAll((UltraLogLog) estimator);
+        }
+        return merged;
+    }
+
+    public static class Builder implements IBuilder<ICardinality>, Serializable {
+
+        private static final long serialVersionUID = -2947325711864304231L;
+
+        private final int p;
+
+        public Builder(int p) {
+            checkPrecision(p);
+            this.p = p;
+        }
+
+        @Override
+        public UltraLogLog build() {
+            return new UltraLogLog(p);
+        }
+
+        @Override
+        public int sizeof() {
+            return 1 << p;
+        }
+
+        public static UltraLogLog build(byte[] bytes) throws IOException {
+            if (bytes.length < 2) {
+                throw new IOException("Too few bytes to hold an UltraLogLog");
+            }
+            int p = bytes[0];
+            if (p < MIN_P || p > MAX_P || bytes.length != 2 + (1 << p) || (bytes[1] & ~HISTORY_UNKNOWN) != 0) {
+                throw new IOException("Bytes do not hold an UltraLogLog");
+            }
+            byte[] registers = Arrays.copyOfRange(bytes, 2, bytes.length);
+            for (byte register : registers) {
+                int value = (register & 0xff) >>> 2;
+                if (register != 0 && (value < p - 1 || value > Long.SIZE - 1)) {
+                    throw new IOException("Invalid UltraLogLog register " + (register & 0xff) + " for p " + p);
+                }
+            }
+            return new UltraLogLog(p, registers, bytes[1] == HISTORY_UNKNOWN);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    protected static class UltraLogLogMergeException extends CardinalityMergeException {
+
+        public UltraLogLogMergeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
 
 /**
  * <p>Encodes signed and unsigned values using a common variable-length
@@ -92,6 +93,27 @@ public final class Varint {
         out.writeByte(value & 0x7F);
     }
 
+    /**
+     * Writes the value at the buffer's position and advances the position past it.
+     *
+     * @throws java.nio.BufferOverflowException if the buffer ends before the value does
+     * @see #writeUnsignedVarInt(int, DataOutput)
+     */
+    public static void writeUnsignedVarInt(int value, ByteBuffer out) {
+        while ((value & 0xFFFFFF80) != 0L) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) (value & 0x7F));
+    }
+
+    /**
+     * @return the number of bytes {@link #writeUnsignedVarInt(int, DataOutput)} writes for the value
+     */
+    public static int sizeOfUnsignedVarInt(int value) {
+        return value == 0 ? 1 : (38 - Integer.numberOfLeadingZeros(value)) / 7;
+    }
+
     public static byte[] writeSignedVarInt(int value) {
         // Great trick from http://code.google.com/apis/protocolbuffers/docs/encoding.html#types
         return writeUnsignedVarInt((value << 1) ^ (value >> 31));
@@ -222,4 +244,25 @@ public final class Varint {
         return value | (rb << i);
     }
 
-}
\ No newline at end of file
+    /**
+     * Reads a value starting at the buffer's position and advances the position past it.
+     *
+     * @throws IllegalArgumentException if variable-length value does not terminate
+     *                                  after 5 bytes have been read
+     * @throws java.nio.BufferUnderflowException if the buffer ends before the value does
+     * @see #readUnsignedVarInt(DataInput)
+     */
+    public static int readUnsignedVarInt(ByteBuffer in) {
+        int value = 0;
+        int i = 0;
+        int b;
+        while (((b = in.get()) & 0x80) != 0) {
+            value |= (b & 0x7F) << i;
+            i += 7;
+            if (i > 35) {
+                throw new IllegalArgumentException("Variable length quantity is too long");
+            }
+        }
+        return value | (b << i);
+    }
+}
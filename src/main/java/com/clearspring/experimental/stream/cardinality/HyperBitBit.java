@@ -22,6 +22,8 @@ import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
 
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
 /**
  * Java implementation of HyperBitBit (HBB) algorithm as seen on the presentation
  * by Robert Sedgewick:
@@ -49,10 +51,20 @@ import java.io.IOException;
  * <p/>
  * Any feedback to improve the algorithm in its weak points will be welcome.
  * <p/>
+ * The state serializes to {@link #BYTES} bytes, the level followed by both sketches as
+ * big-endian longs.  Estimators merge by raising the one at the lower level to the higher
+ * level, where its second sketch holds the bits of the first, and ORing the sketches.
+ * {@link HyperBitBitArray} holds many of them in flat arrays.
+ * <p/>
  */
 
 public class HyperBitBit implements ICardinality {
 
+    /**
+     * Size of the serialized state
+     */
+    public static final int BYTES = 1 + 2 * 8;
+
     int lgN;
     long sketch;
     long sketch2;
@@ -68,6 +80,30 @@ public class HyperBitBit implements ICardinality {
         sketch2 = 0;
     }
 
+    /**
+     * Creates a HyperBitBit from the bytes written by {@link #getBytes()}.
+     *
+     * @throws IOException if the bytes do not hold a HyperBitBit
+     */
+    public HyperBitBit(byte[] bytes) throws IOException {
+        if (bytes.length != BYTES) {
+            throw new IOException("Expected " + BYTES + " bytes but got " + bytes.length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        lgN = buffer.get();
+        sketch = buffer.getLong();
+        sketch2 = buffer.getLong();
+        if (lgN < 0 || Long.bitCount(sketch) > 32 || (sketch2 & ~sketch) != 0) {
+            throw new IOException("Invalid HyperBitBit state");
+        }
+    }
+
+    HyperBitBit(int lgN, long sketch, long sketch2) {
+        this.lgN = lgN;
+        this.sketch = sketch;
+        this.sketch2 = sketch2;
+    }
+
     @Override
     public boolean offer(Object o) {
         final long x = MurmurHash.hash64(o);
@@ -100,6 +136,15 @@ public class HyperBitBit implements ICardinality {
         return modified;
     }
 
+    @Override
+    public boolean offerHashed(long[] hashes, int offset, int length) {
+        boolean modified = false;
+        for (int i = offset; i < offset + length; i++) {
+            modified |= offerHashed(hashes[i]);
+        }
+        return modified;
+    }
+
     @Override
     public boolean offerHashed(int hashedInt) {
         throw new UnsupportedOperationException();
@@ -107,23 +152,72 @@ public class HyperBitBit implements ICardinality {
 
     @Override
     public long cardinality() {
+        return estimate(lgN, sketch);
+    }
+
+    static long estimate(int lgN, long sketch) {
         double exponent = lgN + 5.4 + Long.bitCount(sketch)/32.0;
         return (long) Math.pow(2, exponent);
     }
 
+    /**
+     * @return the bits a sketch at level lgN has for level target, at or above lgN
+     */
+    static long sketchAt(int lgN, long sketch, long sketch2, int target) {
+        return target == lgN ? sketch : target == lgN + 1 ? sketch2 : 0;
+    }
+
+    /**
+     * @return the bits a second sketch at level lgN has for level target, at or above lgN
+     */
+    static long sketch2At(int lgN, long sketch2, int target) {
+        return target == lgN ? sketch2 : 0;
+    }
+
     @Override
     public int sizeof() {
-        return 0;
+        return BYTES;
     }
 
     @Override
     public byte[] getBytes() throws IOException {
-        return new byte[0];
+        return ByteBuffer.allocate(BYTES).put((byte) lgN).putLong(sketch).putLong(sketch2).array();
     }
 
+    /**
+     * Adds the elements of the other estimator to this one.
+     */
+    public void addAll(HyperBitBit other) {
+        int level = Math.max(lgN, other.lgN);
+        long merged = sketchAt(lgN, sketch, sketch2, level) | sketchAt(other.lgN, other.sketch, other.sketch2, level);
+        long merged2 = sketch2At(lgN, sketch2, level) | sketch2At(other.lgN, other.sketch2, level);
+        if (Long.bitCount(merged) > 31) {
+            merged = merged2;
+            merged2 = 0;
+            ++level;
+        }
+        lgN = level;
+        sketch = merged;
+        sketch2 = merged2;
+    }
+
+    /**
+     * @return a new HyperBitBit for the combined streams of this and the given estimators
+     * @throws HyperBitBitMergeException if any of the estimators is not a HyperBitBit
+     */
     @Override
     public ICardinality merge(ICardinality... estimators) throws CardinalityMergeException {
-        throw new HyperBitBitMergeException("Cannot merge estimators of HyperBitBit class");
+        HyperBitBit merged = new HyperBitBit(lgN, sketch, sketch2);
+        if (estimators == null) {
+            return merged;
+        }
+        for (ICardinality estimator : estimators) {
+            if (!(estimator instanceof HyperBitBit)) {
+                throw new HyperBitBitMergeException("Cannot merge estimators of different class");
+            }
+            merged.addAll((HyperBitBit) estimator);
+        }
+        return merged;
     }
 
     @SuppressWarnings("serial")
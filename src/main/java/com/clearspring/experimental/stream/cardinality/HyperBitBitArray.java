@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.clearspring.experimental.stream.cardinality;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+import com.clearspring.analytics.hash.MurmurHash;
+
+/**
+ * A fixed number of {@link HyperBitBit} estimators, addressed by slot, in flat primitive
+ * arrays: the two sketches of slot i are the longs 2i and 2i + 1 and its level is byte i,
+ * so each estimator takes {@link HyperBitBit#BYTES} bytes and no object of its own.
+ * <p/>
+ * Every slot behaves exactly as a HyperBitBit offered the same hashes, serializes to the
+ * same bytes and merges by the same rule.  Like the estimators it holds, this class is
+ * not thread-safe.
+ */
+public class HyperBitBitArray {
+
+    private final long[] sketches;
+    private final byte[] levels;
+
+    /**
+     * @param size the number of estimators
+     */
+    public HyperBitBitArray(int size) {
+        sketches = new long[2 * size];
+        levels = new byte[size];
+        Arrays.fill(levels, (byte) 5);
+    }
+
+    private HyperBitBitArray(long[] sketches, byte[] levels) {
+        this.sketches = sketches;
+        this.levels = levels;
+    }
+
+    /**
+     * @return the number of estimators
+     */
+    public int size() {
+        return levels.length;
+    }
+
+    public boolean offer(int slot, Object o) {
+        return offerHashed(slot, MurmurHash.hash64(o));
+    }
+
+    /**
+     * Same as {@link HyperBitBit#offerHashed(long)} on the estimator in the slot.
+     */
+    public boolean offerHashed(int slot, long hashedLong) {
+        long k = (hashedLong << 58) >> 58;
+        int r = Long.numberOfLeadingZeros(hashedLong >> 6) - 6;
+        int lgN = levels[slot];
+        int i = slot << 1;
+
+        boolean modified = false;
+
+        if (r > lgN) {
+            modified = true;
+            sketches[i] |= 1L << k;
+        }
+        if (r > lgN + 1) {
+            modified = true;
+            sketches[i + 1] |= 1L << k;
+        }
+        if (Long.bitCount(sketches[i]) > 31) {
+            modified = true;
+            sketches[i] = sketches[i + 1];
+            sketches[i + 1] = 0;
+            levels[slot] = (byte) (lgN + 1);
+        }
+
+        return modified;
+    }
+
+    public long cardinality(int slot) {
+        return HyperBitBit.estimate(levels[slot], sketches[slot << 1]);
+    }
+
+    /**
+     * @return a copy of the estimator in the slot
+     */
+    public HyperBitBit get(int slot) {
+        return new HyperBitBit(levels[slot], sketches[slot << 1], sketches[(slot << 1) + 1]);
+    }
+
+    public void set(int slot, HyperBitBit estimator) {
+        levels[slot] = (byte) estimator.lgN;
+        sketches[slot << 1] = estimator.sketch;
+        sketches[(slot << 1) + 1] = estimator.sketch2;
+    }
+
+    /**
+     * Adds the elements of the estimator to the one in the slot.
+     */
+    public void addAll(int slot, HyperBitBit estimator) {
+        merge(slot, estimator.lgN, estimator.sketch, estimator.sketch2);
+    }
+
+    /**
+     * Adds the elements of every estimator of the other array to the one in the same slot.
+     *
+     * @throws IllegalArgumentException if the arrays are not the same size
+     */
+    public void addAll(HyperBitBitArray other) {
+        if (other.size() != size()) {
+            throw new IllegalArgumentException("Cannot merge arrays of different sizes");
+        }
+        for (int slot = 0; slot < levels.length; slot++) {
+            int i = slot << 1;
+            if (levels[slot] == other.levels[slot]) {
+                // the common case, unless one of the estimators saw many more elements
+                sketches[i] |= other.sketches[i];
+                sketches[i + 1] |= other.sketches[i + 1];
+                if (Long.bitCount(sketches[i]) > 31) {
+                    sketches[i] = sketches[i + 1];
+                    sketches[i + 1] = 0;
+                    levels[slot]++;
+                }
+            } else {
+                merge(slot, other.levels[slot], other.sketches[i], other.sketches[i + 1]);
+            }
+        }
+    }
+
+    private void merge(int slot, int otherLgN, long otherSketch, long otherSketch2) {
+        int i = slot << 1;
+        int lgN = levels[slot];
+        int level = Math.max(lgN, otherLgN);
+        long merged = HyperBitBit.sketchAt(lgN, sketches[i], sketches[i + 1], level)
+                | HyperBitBit.sketchAt(otherLgN, otherSketch, otherSketch2, level);
+        long merged2 = HyperBitBit.sketch2At(lgN, sketches[i + 1], level)
+                | HyperBitBit.sketch2At(otherLgN, otherSketch2, level);
+        if (Long.bitCount(merged) > 31) {
+            merged = merged2;
+            merged2 = 0;
+            ++level;
+        }
+        levels[slot] = (byte) level;
+        sketches[i] = merged;
+        sketches[i + 1] = merged2;
+    }
+
+    /**
+     * @return the size as an int followed by the bytes of each estimator, see {@link HyperBitBit#getBytes()}
+     */
+    public byte[] getBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + levels.length * HyperBitBit.BYTES);
+        buffer.putInt(levels.length);
+        for (int slot = 0; slot < levels.length; slot++) {
+            buffer.put(levels[slot]).putLong(sketches[slot << 1]).putLong(sketches[(slot << 1) + 1]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @throws IOException if the bytes do not hold a HyperBitBitArray
+     */
+    public static HyperBitBitArray readFrom(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int size = bytes.length < 4 ? -1 : buffer.getInt();
+        if (size < 0 || (long) size * HyperBitBit.BYTES != bytes.length - 4) {
+            throw new IOException("Bytes do not hold a HyperBitBitArray");
+        }
+        long[] sketches = new long[2 * size];
+        byte[] levels = new byte[size];
+        for (int slot = 0; slot < size; slot++) {
+            levels[slot] = buffer.get();
+            sketches[slot << 1] = buffer.getLong();
+            sketches[(slot << 1) + 1] = buffer.getLong();
+        }
+        return new HyperBitBitArray(sketches, levels);
+    }
+}
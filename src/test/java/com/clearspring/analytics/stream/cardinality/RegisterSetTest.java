@@ -16,10 +16,13 @@
 
 package com.clearspring.analytics.stream.cardinality;
 
+import java.nio.ByteBuffer;
+
 import java.util.Random;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class RegisterSetTest {
@@ -102,4 +105,178 @@ public class RegisterSetTest {
             assertEquals(rs.get(pos), merged.get(pos));
         }
     }
+
+    @Test
+    public void testHarmonicSumAndZeros() {
+        Random rand = new Random(3);
+        int count = 1 << 10;
+        RegisterSet rs = new RegisterSet(count);
+        RegisterSet other = new RegisterSet(count);
+        assertEquals(count, rs.zeros());
+        assertEquals(count, rs.harmonicSum(), 0);
+
+        for (int i = 0; i < 500; i++) {
+            rs.updateIfGreater(rand.nextInt(count), rand.nextInt(20));
+            other.updateIfGreater(rand.nextInt(count), rand.nextInt(20));
+        }
+        rs.set(7, 3);
+        assertHarmonicSumAndZeros(rs);
+
+        rs.merge(other);
+        assertHarmonicSumAndZeros(rs);
+
+        RegisterSet copy = new RegisterSet(count, rs.bits());
+        assertEquals(rs.zeros(), copy.zeros());
+        assertEquals(rs.harmonicSum(), copy.harmonicSum(), 0);
+    }
+
+    private static void assertHarmonicSumAndZeros(RegisterSet rs) {
+        double sum = 0;
+        int zeros = 0;
+        for (int j = 0; j < rs.count; j++) {
+            sum += Math.scalb(1d, -rs.get(j));
+            if (rs.get(j) == 0) {
+                zeros++;
+            }
+        }
+        assertEquals(zeros, rs.zeros());
+        assertEquals(sum, rs.harmonicSum(), 0);
+    }
+
+    @Test
+    public void testByteBufferBackedMatchesHeap() {
+        Random rand = new Random(4);
+        int count = 1 << 10;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(8 + RegisterSet.getSizeForCount(count) * 4);
+        buffer.position(8);
+        RegisterSet heap = new RegisterSet(count);
+        RegisterSet wrapped = RegisterSet.wrap(count, buffer);
+        RegisterSet other = new RegisterSet(count);
+
+        for (int i = 0; i < 5000; i++) {
+            int position = rand.nextInt(count);
+            int value = rand.nextInt(32);
+            assertEquals(heap.updateIfGreater(position, value), wrapped.updateIfGreater(position, value));
+            other.set(rand.nextInt(count), rand.nextInt(32));
+        }
+        heap.merge(other);
+        wrapped.merge(other);
+
+        assertArrayEquals(heap.bits(), wrapped.bits());
+        assertEquals(heap.zeros(), wrapped.zeros());
+        assertEquals(heap.harmonicSum(), wrapped.harmonicSum(), 0);
+        assertEquals(8, buffer.position());
+        assertEquals(heap.bits()[0], buffer.getInt(8));
+
+        // a second view over the same bytes sees the same registers
+        assertArrayEquals(heap.bits(), RegisterSet.wrap(count, buffer).bits());
+    }
+
+    @Test
+    public void testCompactMatchesPacked() {
+        Random rand = new Random(10);
+        int count = 1000;
+        RegisterSet packed = new RegisterSet(count);
+        RegisterSet compact = RegisterSet.compact(count);
+        for (int i = 0; i < 200000; i++) {
+            int position = rand.nextInt(count);
+            // geometric, like the ranks of hashes, so the base moves up and some registers escape
+            int value = Math.min(Long.numberOfLeadingZeros(rand.nextLong()) + 1 + i / 20000, 40);
+            assertEquals(packed.updateIfGreater(position, value), compact.updateIfGreater(position, value));
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals(packed.get(i), compact.get(i));
+        }
+        assertArrayEquals(packed.bits(), compact.bits());
+        assertEquals(packed.zeros(), compact.zeros());
+        assertEquals(packed.harmonicSum(), compact.harmonicSum(), 0.0);
+    }
+
+    @Test
+    public void testCompactSetBelowBase() {
+        RegisterSet compact = RegisterSet.compact(20);
+        for (int i = 0; i < 20; i++) {
+            compact.set(i, 10);
+        }
+        compact.set(3, 31);
+        compact.set(4, 2);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i == 3 ? 31 : i == 4 ? 2 : 10, compact.get(i));
+        }
+        assertEquals(0, compact.zeros());
+    }
+
+    @Test
+    public void testCompactMerge() {
+        Random rand = new Random(11);
+        int count = 333;
+        RegisterSet packed = new RegisterSet(count);
+        RegisterSet[] compacts = new RegisterSet[4];
+        for (int n = 0; n < compacts.length; n++) {
+            compacts[n] = RegisterSet.compact(count);
+            // fill every register so the bases are equal for some pairs and not for others
+            for (int i = 0; i < count; i++) {
+                int value = n % 2 + rand.nextInt(20);
+                compacts[n].set(i, value);
+                packed.updateIfGreater(i, value);
+            }
+        }
+        RegisterSet merged = RegisterSet.compact(count);
+        for (RegisterSet compact : compacts) {
+            merged.merge(compact);
+        }
+        assertArrayEquals(packed.bits(), merged.bits());
+        assertEquals(packed.harmonicSum(), merged.harmonicSum(), 0.0);
+
+        RegisterSet fromPacked = RegisterSet.compact(count);
+        fromPacked.merge(packed);
+        assertArrayEquals(packed.bits(), fromPacked.bits());
+    }
+
+    @Test
+    public void testMaxOfNibbles() {
+        Random rand = new Random(12);
+        for (int i = 0; i < 1000; i++) {
+            long a = rand.nextLong();
+            long b = rand.nextLong();
+            long max = CompactRegisterSet.maxOfNibbles(a, b);
+            for (int shift = 0; shift < 64; shift += 4) {
+                long x = (a >>> shift) & 0xf;
+                long y = (b >>> shift) & 0xf;
+                assertEquals(Math.max(x, y), (max >>> shift) & 0xf);
+            }
+        }
+    }
+
+    @Test
+    public void testMaxOfRegisters() {
+        Random rand = new Random(13);
+        for (int i = 0; i < 1000; i++) {
+            int a = rand.nextInt() >>> 2;
+            int b = rand.nextInt() >>> 2;
+            int max = RegisterSet.maxOfRegisters(a, b);
+            for (int shift = 0; shift < 30; shift += RegisterSet.REGISTER_SIZE) {
+                int x = (a >>> shift) & 0x1f;
+                int y = (b >>> shift) & 0x1f;
+                assertEquals(Math.max(x, y), (max >>> shift) & 0x1f);
+            }
+        }
+    }
+
+    @Test
+    public void testMergeKeepsRankCounts() {
+        Random rand = new Random(14);
+        int count = 1000;
+        RegisterSet merged = new RegisterSet(count);
+        for (int round = 0; round < 5; round++) {
+            RegisterSet other = new RegisterSet(count);
+            for (int i = 0; i < count; i++) {
+                other.set(i, rand.nextInt(round * 6 + 2));
+            }
+            merged.merge(other);
+            RegisterSet recounted = new RegisterSet(count, merged.bits());
+            assertEquals(recounted.zeros(), merged.zeros());
+            assertEquals(recounted.harmonicSum(), merged.harmonicSum(), 0);
+        }
+    }
 }
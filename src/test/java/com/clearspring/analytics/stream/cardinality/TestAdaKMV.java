@@ -17,6 +17,7 @@
 package com.clearspring.analytics.stream.cardinality;
 
 import com.clearspring.analytics.TestUtils;
+import com.clearspring.analytics.hash.MurmurHash;
 import com.google.common.base.Charsets;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
@@ -26,6 +27,7 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.Arrays;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -159,5 +161,18 @@ public class TestAdaKMV {
         assertEquals(mergedEstimate, baselineEstimate);
     }
 
+    @Test
+    public void testOfferHashedBatch() throws IOException {
+        AdaKMV single = new AdaKMV(64);
+        AdaKMV batched = new AdaKMV(64);
+        long[] hashes = new long[20000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = MurmurHash.hash64(i % 15000);
+            single.offerHashed(hashes[i]);
+        }
 
+        batched.offerHashed(hashes, 0, hashes.length);
+        assertEquals(single.cardinality(), batched.cardinality());
+        assertArrayEquals(single.getBytes(), batched.getBytes());
+    }
 }
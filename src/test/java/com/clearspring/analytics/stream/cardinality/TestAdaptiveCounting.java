@@ -18,6 +18,8 @@ package com.clearspring.analytics.stream.cardinality;
 
 import java.util.Arrays;
 
+import com.clearspring.analytics.hash.MurmurHash;
+
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -149,4 +151,44 @@ public class TestAdaptiveCounting {
         assertEquals(expected.sizeof(), actual.sizeof());
         assertEquals(expected.cardinality(), actual.cardinality());
     }
+
+    @Test
+    public void testOfferOverloads() {
+        AdaptiveCounting strings = new AdaptiveCounting(10);
+        AdaptiveCounting overloads = new AdaptiveCounting(10);
+        long[] values = {0, 7, -7, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            strings.offer(Long.toString(value));
+            overloads.offer(value);
+        }
+        for (int i = 0; i < 1000; i++) {
+            strings.offer(Integer.toString(i));
+            overloads.offer(new StringBuilder().append(i));
+        }
+        assertArrayEquals(strings.getBytes(), overloads.getBytes());
+        assertEquals(strings.cardinality(), overloads.cardinality());
+
+        AdaptiveCounting boxed = new AdaptiveCounting(10);
+        for (long value : values) {
+            boxed.offer((Object) value);
+        }
+        for (int i = 0; i < 1000; i++) {
+            boxed.offer((Object) i);
+        }
+        assertArrayEquals(strings.getBytes(), boxed.getBytes());
+    }
+
+    @Test
+    public void testOfferHashed() {
+        AdaptiveCounting longs = new AdaptiveCounting(12);
+        AdaptiveCounting ints = new AdaptiveCounting(12);
+        for (int i = 0; i < 3000; i++) {
+            longs.offerHashed(MurmurHash.hash64(i));
+            ints.offerHashed(MurmurHash.hash(i));
+        }
+        assertEquals(new AdaptiveCounting(longs.getBytes()).cardinality(), longs.cardinality());
+        assertEquals(new AdaptiveCounting(ints.getBytes()).cardinality(), ints.cardinality());
+        assertEquals(3000, longs.cardinality(), 150);
+        assertEquals(3000, ints.cardinality(), 150);
+    }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestCardinalityMerger {
+
+    private final CardinalityMerger merger = new CardinalityMerger(new ForkJoinPool(4));
+
+    private static ICardinality sequential(List<ICardinality> estimators) throws CardinalityMergeException {
+        ICardinality[] rest = estimators.subList(1, estimators.size()).toArray(new ICardinality[0]);
+        return estimators.get(0).merge(rest);
+    }
+
+    @Test
+    public void testHyperLogLog() throws CardinalityMergeException, IOException {
+        Random random = new Random(1);
+        List<ICardinality> estimators = new ArrayList<ICardinality>();
+        for (int i = 0; i < 1000; i++) {
+            HyperLogLog hll = new HyperLogLog(14);
+            for (int j = 0; j < 50; j++) {
+                hll.offerHashed(random.nextLong());
+            }
+            estimators.add(hll);
+        }
+
+        ICardinality expected = sequential(estimators);
+        ICardinality merged = merger.merge(estimators);
+        assertArrayEquals(expected.getBytes(), merged.getBytes());
+        assertEquals(expected.cardinality(), merged.cardinality());
+    }
+
+    @Test
+    public void testHyperLogLogPlusMixedFormats() throws CardinalityMergeException, IOException {
+        Random random = new Random(2);
+        List<ICardinality> estimators = new ArrayList<ICardinality>();
+        for (int i = 0; i < 500; i++) {
+            HyperLogLogPlus hllp = (i % 50 == 3) ? new HyperLogLogPlus(12) : new HyperLogLogPlus(12, 20);
+            for (int j = 0; j < 20; j++) {
+                hllp.offerHashed(random.nextLong());
+            }
+            estimators.add(hllp);
+        }
+
+        ICardinality expected = sequential(estimators);
+        ICardinality merged = merger.merge(estimators);
+        assertEquals(expected, merged);
+        assertArrayEquals(expected.getBytes(), merged.getBytes());
+    }
+
+    @Test
+    public void testHyperLogLogPlusSparse() throws CardinalityMergeException, IOException {
+        // 100 x 10 entries stays sparse, 1000 x 10 outgrows the sparse set
+        for (int inputs : new int[]{100, 1000}) {
+            Random random = new Random(inputs);
+            List<ICardinality> estimators = new ArrayList<ICardinality>();
+            for (int i = 0; i < inputs; i++) {
+                HyperLogLogPlus hllp = new HyperLogLogPlus(12, 25);
+                for (int j = 0; j < 10; j++) {
+                    hllp.offerHashed(random.nextLong());
+                }
+                estimators.add(hllp);
+            }
+
+            HyperLogLogPlus expected = (HyperLogLogPlus) sequential(estimators);
+            HyperLogLogPlus merged = (HyperLogLogPlus) merger.merge(estimators);
+            assertEquals(expected.format, merged.format);
+            assertArrayEquals(expected.getBytes(), merged.getBytes());
+        }
+    }
+
+    @Test
+    public void testLinearCounting() throws CardinalityMergeException {
+        List<ICardinality> estimators = new ArrayList<ICardinality>();
+        for (int i = 0; i < 300; i++) {
+            LinearCounting lc = new LinearCounting(1024);
+            for (int j = 0; j < 10; j++) {
+                lc.offer(i * 10 + j);
+            }
+            estimators.add(lc);
+        }
+
+        LinearCounting expected = (LinearCounting) sequential(estimators);
+        LinearCounting merged = (LinearCounting) merger.merge(estimators);
+        assertArrayEquals(expected.getBytes(), merged.getBytes());
+    }
+
+    @Test
+    public void testHyperLogLogMixedPrecisions() throws CardinalityMergeException, IOException {
+        Random random = new Random(3);
+        List<ICardinality> estimators = new ArrayList<ICardinality>();
+        for (int i = 0; i < 200; i++) {
+            HyperLogLog hll = new HyperLogLog(i % 3 == 0 ? 10 : 14);
+            for (int j = 0; j < 50; j++) {
+                hll.offerHashed(random.nextLong());
+            }
+            estimators.add(hll);
+        }
+
+        ICardinality expected = sequential(estimators);
+        ICardinality merged = merger.merge(estimators);
+        assertEquals(1 << 10, ((HyperLogLog) merged).registerSet().count);
+        assertArrayEquals(expected.getBytes(), merged.getBytes());
+
+        // the first estimator has the higher precision
+        expected = estimators.get(1).merge(estimators.get(0));
+        assertArrayEquals(expected.getBytes(), merger.merge(estimators.get(1), estimators.get(0)).getBytes());
+    }
+
+    @Test
+    public void testHyperLogLogPlusMixedPrecisions() throws CardinalityMergeException, IOException {
+        Random random = new Random(4);
+        List<ICardinality> estimators = new ArrayList<ICardinality>();
+        for (int i = 0; i < 300; i++) {
+            HyperLogLogPlus hllp = (i % 50 == 7) ? new HyperLogLogPlus(14) : new HyperLogLogPlus(i % 2 == 0 ? 14 : 12, 20);
+            for (int j = 0; j < 20; j++) {
+                hllp.offerHashed(random.nextLong());
+            }
+            estimators.add(hllp);
+        }
+
+        ICardinality expected = sequential(estimators);
+        ICardinality merged = merger.merge(estimators);
+        assertEquals(12, ((HyperLogLogPlus) merged).getP());
+        assertEquals(expected, merged);
+        assertArrayEquals(expected.getBytes(), merged.getBytes());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testDifferentSizesInWorkers() throws CardinalityMergeException {
+        List<ICardinality> estimators = new ArrayList<ICardinality>();
+        for (int i = 0; i < 100; i++) {
+            estimators.add(new LinearCounting(i < 99 ? 64 : 128));
+        }
+        merger.merge(estimators);
+    }
+
+    @Test
+    public void testCloseLeavesGivenPoolRunning() throws CardinalityMergeException {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        CardinalityMerger given = new CardinalityMerger(pool);
+        given.close();
+        assertFalse(pool.isShutdown());
+        assertEquals(0, given.merge(new LinearCounting(16), new LinearCounting(16)).cardinality());
+        pool.shutdown();
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testCloseShutsDownOwnPool() throws CardinalityMergeException {
+        CardinalityMerger owner = new CardinalityMerger();
+        owner.close();
+        owner.merge(new LinearCounting(16), new LinearCounting(16));
+    }
+}
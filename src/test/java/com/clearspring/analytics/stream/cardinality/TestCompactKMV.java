@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCompactKMV {
+
+    private static AdaKMV fill(int k, int from, int to) {
+        AdaKMV kmv = new AdaKMV(k);
+        for (int i = from; i < to; i++) {
+            kmv.offer(i);
+        }
+        return kmv;
+    }
+
+    @Test
+    public void testExactSetOperations() {
+        CompactKMV a = fill(1000, 0, 300).compact();
+        CompactKMV b = fill(1000, 200, 600).compact();
+
+        assertEquals(Long.MAX_VALUE, a.theta());
+        assertEquals(300, a.cardinality());
+        assertEquals(600, CompactKMV.union(a, b).cardinality());
+        assertEquals(100, CompactKMV.intersect(a, b).cardinality());
+        assertEquals(200, CompactKMV.aNotB(a, b).cardinality());
+        assertEquals(300, CompactKMV.aNotB(b, a).cardinality());
+        assertEquals(300, CompactKMV.union(a, CompactKMV.empty()).cardinality());
+    }
+
+    @Test
+    public void testEstimatedSetOperations() {
+        AdaKMV adaA = fill(4096, 0, 300000);
+        CompactKMV a = adaA.compact();
+        CompactKMV b = fill(4096, 200000, 600000).compact();
+        assertEquals(adaA.cardinality(), a.cardinality());
+        assertEquals(4096, a.retained());
+
+        assertEquals(600000, CompactKMV.union(a, b).cardinality(), 600000 * 0.05);
+        assertEquals(100000, CompactKMV.intersect(a, b).cardinality(), 100000 * 0.1);
+        assertEquals(200000, CompactKMV.aNotB(a, b).cardinality(), 200000 * 0.1);
+
+        // every operation works on the hashes below the smaller theta
+        long theta = Math.min(a.theta(), b.theta());
+        CompactKMV union = CompactKMV.union(a, b);
+        assertEquals(theta, union.theta());
+        assertEquals(union.retained(), CompactKMV.intersect(a, b).retained()
+                + CompactKMV.aNotB(a, b).retained() + CompactKMV.aNotB(b, a).retained());
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        CompactKMV sketch = CompactKMV.intersect(fill(2048, 0, 100000).compact(), fill(2048, 50000, 150000).compact());
+        byte[] bytes = sketch.getBytes();
+        assertTrue(bytes.length < sketch.sizeof());
+
+        CompactKMV read = CompactKMV.readFrom(bytes);
+        assertEquals(sketch.theta(), read.theta());
+        assertArrayEquals(sketch.values(), read.values());
+        assertEquals(sketch.cardinality(), read.cardinality());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadCorrupt() throws IOException {
+        byte[] bytes = fill(64, 0, 1000).compact().getBytes();
+        bytes[0] = 0;
+        CompactKMV.readFrom(bytes);
+    }
+
+    @Test
+    public void testMerge() throws CardinalityMergeException {
+        AdaKMV a = fill(1000, 0, 500);
+        AdaKMV b = fill(1000, 250, 750);
+        ICardinality merged = a.compact().merge(b, fill(1000, 700, 800).compact());
+        assertEquals(800, merged.cardinality());
+    }
+}
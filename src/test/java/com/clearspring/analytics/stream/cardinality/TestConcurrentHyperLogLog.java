@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestConcurrentHyperLogLog {
+
+    @Test
+    public void testMatchesHyperLogLog() {
+        HyperLogLog hll = new HyperLogLog(14);
+        ConcurrentHyperLogLog chll = new ConcurrentHyperLogLog(14);
+        Random random = new Random(7);
+
+        for (int i = 0; i < 100000; i++) {
+            long hash = random.nextLong();
+            assertEquals(hll.offerHashed(hash), chll.offerHashed(hash));
+            assertEquals(hll.offer(i), chll.offer(i));
+        }
+
+        assertArrayEquals(hll.registerSet().bits(), chll.toHyperLogLog().registerSet().bits());
+        assertEquals(hll.cardinality(), chll.cardinality());
+    }
+
+    @Test
+    public void testSmallRange() {
+        ConcurrentHyperLogLog chll = new ConcurrentHyperLogLog(16);
+        for (int i = 0; i < 20; i++) {
+            chll.offer(i);
+        }
+        assertEquals(20, chll.cardinality());
+    }
+
+    @Test
+    public void testConcurrentOffers() throws InterruptedException {
+        final int threads = 8;
+        final int perThread = 50000;
+        final ConcurrentHyperLogLog chll = new ConcurrentHyperLogLog(12);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        chll.offerHashed(random.nextLong());
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        HyperLogLog hll = new HyperLogLog(12);
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            for (int i = 0; i < perThread; i++) {
+                hll.offerHashed(random.nextLong());
+            }
+        }
+
+        assertArrayEquals(hll.registerSet().bits(), chll.toHyperLogLog().registerSet().bits());
+        assertEquals(hll.cardinality(), chll.cardinality());
+    }
+
+    @Test
+    public void testMerge() throws CardinalityMergeException {
+        int numToMerge = 5;
+        int cardinality = 10000;
+
+        HyperLogLog expected = new HyperLogLog(10);
+        ICardinality[] estimators = new ICardinality[numToMerge];
+        for (int i = 0; i < numToMerge; i++) {
+            estimators[i] = (i % 2 == 0) ? new ConcurrentHyperLogLog(10) : new HyperLogLog(10);
+            for (int j = 0; j < cardinality; j++) {
+                estimators[i].offer(i * cardinality + j);
+                expected.offer(i * cardinality + j);
+            }
+        }
+
+        ConcurrentHyperLogLog first = (ConcurrentHyperLogLog) estimators[0];
+        ICardinality[] rest = new ICardinality[numToMerge - 1];
+        System.arraycopy(estimators, 1, rest, 0, rest.length);
+        ConcurrentHyperLogLog merged = (ConcurrentHyperLogLog) first.merge(rest);
+
+        assertArrayEquals(expected.registerSet().bits(), merged.toHyperLogLog().registerSet().bits());
+        assertEquals(expected.cardinality(), merged.cardinality());
+    }
+
+    @Test(expected = HyperLogLog.HyperLogLogMergeException.class)
+    public void testMergeDifferentSizes() throws CardinalityMergeException {
+        new ConcurrentHyperLogLog(10).merge(new HyperLogLog(12));
+    }
+
+    @Test
+    public void testSerializationCompatibleWithHyperLogLog() throws IOException {
+        ConcurrentHyperLogLog chll = new ConcurrentHyperLogLog(11);
+        for (int i = 0; i < 5000; i++) {
+            chll.offer("item" + i);
+        }
+
+        HyperLogLog hll = HyperLogLog.Builder.build(chll.getBytes());
+        assertEquals(chll.cardinality(), hll.cardinality());
+
+        ConcurrentHyperLogLog chll2 = ConcurrentHyperLogLog.Builder.build(hll.getBytes());
+        assertArrayEquals(chll.getBytes(), chll2.getBytes());
+    }
+
+    @Test
+    public void testReadsCompactHyperLogLog() throws IOException {
+        HyperLogLog hll = HyperLogLog.withCompactRegisters(12);
+        for (int i = 0; i < 20000; i++) {
+            hll.offer("item" + i);
+        }
+
+        ConcurrentHyperLogLog chll = ConcurrentHyperLogLog.Builder.build(hll.getBytes());
+        assertEquals(hll.cardinality(), chll.cardinality());
+        assertArrayEquals(hll.registerSet().bits(), chll.toHyperLogLog().registerSet().bits());
+    }
+
+    @Test
+    public void testUpdateIfGreater() {
+        ConcurrentRegisterSet rs = new ConcurrentRegisterSet(64);
+        assertTrue(rs.updateIfGreater(7, 3));
+        assertFalse(rs.updateIfGreater(7, 3));
+        assertFalse(rs.updateIfGreater(7, 2));
+        assertTrue(rs.updateIfGreater(7, 40));
+        assertEquals(RegisterSet.REGISTER_MAX, rs.get(7));
+        assertEquals(0, rs.get(6));
+        assertEquals(0, rs.get(8));
+    }
+}
@@ -16,7 +16,11 @@
 
 package com.clearspring.analytics.stream.cardinality;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import com.clearspring.analytics.hash.MurmurHash;
 
 import org.junit.Test;
 
@@ -247,4 +251,88 @@ public class TestCountThenEstimate {
         assertEquals(expected.cardinality(), actual.cardinality());
 
     }
+
+    @Test
+    public void testOfferHashed() throws IOException, ClassNotFoundException {
+        CountThenEstimate offered = new CountThenEstimate(100, new HyperLogLog.Builder(0.01));
+        CountThenEstimate hashed = new CountThenEstimate(100, new HyperLogLog.Builder(0.01));
+        for (int i = 0; i < 100; i++) {
+            offered.offer(Integer.toString(i));
+            hashed.offerHashed(MurmurHash.hash64(Integer.toString(i)));
+        }
+        assertFalse(hashed.offerHashed(MurmurHash.hash64("0")));
+        assertFalse(hashed.tipped());
+        assertEquals(100, hashed.cardinality());
+        assertCountThenEstimateEquals(offered, hashed);
+        assertCountThenEstimateEquals(hashed, new CountThenEstimate(hashed.getBytes()));
+
+        for (int i = 100; i < 1000; i++) {
+            offered.offer(Integer.toString(i));
+            hashed.offerHashed(MurmurHash.hash64(Integer.toString(i)));
+        }
+        assertTrue(hashed.tipped());
+        assertCountThenEstimateEquals(offered, hashed);
+        assertCountThenEstimateEquals(hashed, new CountThenEstimate(hashed.getBytes()));
+    }
+
+    @Test
+    public void testTipReplaysHashes() {
+        CountThenEstimate cte = new CountThenEstimate(500, new HyperLogLog.Builder(0.01));
+        HyperLogLog expected = (HyperLogLog) new HyperLogLog.Builder(0.01).build();
+        for (int i = 0; i < 2000; i++) {
+            cte.offer(i);
+            expected.offerHashed(MurmurHash.hash64(i));
+        }
+        assertTrue(cte.tipped());
+        assertArrayEquals(expected.registerSet().bits(), ((HyperLogLog) cte.estimator).registerSet().bits());
+    }
+
+    /**
+     * Bytes of an estimator an earlier version tipped into a HyperLogLog by offering it elements.
+     */
+    private static byte[] tippedWithObjects(int count) throws IOException {
+        HyperLogLog hll = new HyperLogLog(10);
+        for (int i = 0; i < count; i++) {
+            hll.offer(i);
+        }
+        byte[] bytes = hll.getBytes();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeByte(1);
+        out.writeByte(CountThenEstimate.HLC);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testMergeEarlierVersionTipped() throws IOException, ClassNotFoundException, CardinalityMergeException {
+        CountThenEstimate a = new CountThenEstimate(tippedWithObjects(1000));
+        CountThenEstimate b = new CountThenEstimate(tippedWithObjects(2000));
+        CountThenEstimate merged = (CountThenEstimate) a.merge(b);
+        assertEquals(2000, merged.cardinality(), 100);
+
+        merged.offer(5000);
+        assertEquals(b.estimator.cardinality() + 1, merged.cardinality(), 100);
+    }
+
+    @Test(expected = CountThenEstimate.CountThenEstimateMergeException.class)
+    public void testMergeEarlierVersionTippedWithHashes() throws IOException, ClassNotFoundException, CardinalityMergeException {
+        CountThenEstimate hashed = new CountThenEstimate(10, new HyperLogLog.Builder(0.05));
+        for (int i = 0; i < 100; i++) {
+            hashed.offer(i);
+        }
+        hashed.merge(new CountThenEstimate(tippedWithObjects(1000)));
+    }
+
+    @Test
+    public void testTipToLogLog() {
+        CountThenEstimate cte = new CountThenEstimate(100, new LogLog.Builder(10));
+        for (int i = 0; i < 1000; i++) {
+            cte.offer(i);
+        }
+        assertTrue(cte.tipped());
+        assertEquals(1000, cte.cardinality(), 200);
+    }
 }
@@ -16,20 +16,27 @@
 
 package com.clearspring.analytics.stream.cardinality;
 
+import java.io.File;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
 import java.util.Arrays;
+import java.util.Random;
 
 import com.clearspring.analytics.TestUtils;
 
 import com.google.common.base.Charsets;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class TestHyperLogLog {
@@ -138,6 +145,29 @@ public class TestHyperLogLog {
         assertEquals(mergedEstimate, baselineEstimate);
     }
 
+    @Test
+    public void testCardinalityAfterFurtherOffers() throws CardinalityMergeException {
+        HyperLogLog hyperLogLog = new HyperLogLog(10);
+        for (int i = 0; i < 1000; i++) {
+            hyperLogLog.offer(i);
+        }
+        long estimate = hyperLogLog.cardinality();
+        assertEquals(estimate, hyperLogLog.cardinality());
+
+        for (int i = 1000; i < 2000; i++) {
+            hyperLogLog.offer(i);
+        }
+        assertTrue(hyperLogLog.cardinality() > estimate);
+
+        HyperLogLog other = new HyperLogLog(10);
+        for (int i = 2000; i < 4000; i++) {
+            other.offer(i);
+        }
+        estimate = hyperLogLog.cardinality();
+        hyperLogLog.addAll(other);
+        assertTrue(hyperLogLog.cardinality() > estimate);
+    }
+
     /**
      * should not fail with HyperLogLogMergeException: "Cannot merge estimators of different sizes"
      */
@@ -180,4 +210,164 @@ public class TestHyperLogLog {
         assertTrue("g128 estimate bigger than expected", g128Estimate >= cardinality - (2 * se));
         assertTrue("g128 estimate smaller than expected", g128Estimate <= cardinality + (2 * se));
     }
+
+    @Test
+    public void testOfferHashedBatch() {
+        HyperLogLog single = new HyperLogLog(12);
+        HyperLogLog batched = new HyperLogLog(12);
+        long[] hashes = new long[10000];
+        Random random = new Random(11);
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+
+        for (int i = 100; i < 9900; i++) {
+            single.offerHashed(hashes[i]);
+        }
+        assertTrue(batched.offerHashed(hashes, 100, 9800));
+        assertFalse(batched.offerHashed(hashes, 100, 9800));
+
+        assertArrayEquals(single.registerSet().bits(), batched.registerSet().bits());
+        assertEquals(single.cardinality(), batched.cardinality());
+    }
+
+    @Test
+    public void testMapUpdateAndFlush() throws IOException, CardinalityMergeException {
+        HyperLogLog expected = new HyperLogLog(10);
+        File file = File.createTempFile("hll", ".bin");
+        file.deleteOnExit();
+        Files.write(expected.getBytes(), file);
+
+        HyperLogLog mapped = HyperLogLog.Builder.map(file);
+        for (int i = 0; i < 2000; i++) {
+            expected.offer(i);
+            mapped.offer(i);
+        }
+        mapped.addAll(expected);
+        mapped.flush();
+
+        assertEquals(expected.cardinality(), mapped.cardinality());
+        assertArrayEquals(expected.getBytes(), mapped.getBytes());
+        assertArrayEquals(expected.getBytes(), Files.toByteArray(file));
+        assertEquals(expected.cardinality(), HyperLogLog.Builder.map(file).cardinality());
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrapTruncated() throws IOException {
+        byte[] bytes = new HyperLogLog(10).getBytes();
+        HyperLogLog.Builder.wrap(ByteBuffer.wrap(bytes, 0, bytes.length - 4).slice());
+    }
+
+    @Test
+    public void testCompactRegisters() throws IOException, CardinalityMergeException {
+        HyperLogLog packed = new HyperLogLog(14);
+        HyperLogLog compact = HyperLogLog.withCompactRegisters(14);
+        for (int i = 0; i < 200000; i++) {
+            packed.offer(i);
+            compact.offer(i);
+        }
+        assertEquals(packed.cardinality(), compact.cardinality());
+        assertTrue(compact.getBytes().length < packed.getBytes().length * 0.8);
+
+        HyperLogLog read = HyperLogLog.Builder.build(compact.getBytes());
+        assertArrayEquals(compact.getBytes(), read.getBytes());
+        assertEquals(packed.cardinality(), read.cardinality());
+
+        HyperLogLog merged = (HyperLogLog) compact.merge(packed);
+        assertArrayEquals(compact.getBytes(), merged.getBytes());
+        packed.addAll(compact);
+        assertEquals(packed.cardinality(), compact.cardinality());
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrapCompact() throws IOException {
+        HyperLogLog.Builder.wrap(ByteBuffer.wrap(HyperLogLog.withCompactRegisters(10).getBytes()));
+    }
+
+    @Test
+    public void testFold() {
+        HyperLogLog high = new HyperLogLog(14);
+        HyperLogLog low = new HyperLogLog(10);
+        Random random = new Random(23);
+        for (int i = 0; i < 100000; i++) {
+            long hash = random.nextLong();
+            high.offerHashed(hash);
+            low.offerHashed(hash);
+            high.offer(i);
+            low.offer(i);
+        }
+
+        HyperLogLog folded = high.fold(10);
+        assertArrayEquals(low.registerSet().bits(), folded.registerSet().bits());
+        assertEquals(low.cardinality(), folded.cardinality());
+        assertArrayEquals(high.registerSet().bits(), high.fold(14).registerSet().bits());
+    }
+
+    @Test
+    public void testMergeFoldsToLowerPrecision() throws CardinalityMergeException {
+        HyperLogLog cold = new HyperLogLog(12);
+        HyperLogLog hot = new HyperLogLog(16);
+        HyperLogLog expected = new HyperLogLog(12);
+        for (int i = 0; i < 50000; i++) {
+            cold.offer(i);
+            hot.offer(i + 25000);
+            expected.offer(i);
+            expected.offer(i + 25000);
+        }
+
+        HyperLogLog merged = (HyperLogLog) hot.merge(cold);
+        assertEquals(expected.sizeof(), merged.sizeof());
+        assertArrayEquals(expected.registerSet().bits(), merged.registerSet().bits());
+
+        cold.addAll(hot);
+        assertArrayEquals(expected.registerSet().bits(), cold.registerSet().bits());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testAddAllLowerPrecision() throws CardinalityMergeException {
+        new HyperLogLog(14).addAll(new HyperLogLog(10));
+    }
+
+    @Test
+    public void testHipEstimator() {
+        Random random = new Random(25);
+        int size = 100000;
+        double hipSquares = 0;
+        double classicSquares = 0;
+        int trials = 30;
+        for (int t = 0; t < trials; t++) {
+            HyperLogLog hip = HyperLogLog.withHipEstimator(10);
+            HyperLogLog classic = new HyperLogLog(10);
+            for (int i = 0; i < size; i++) {
+                long hash = random.nextLong();
+                assertEquals(classic.offerHashed(hash), hip.offerHashed(hash));
+            }
+            assertArrayEquals(classic.registerSet().bits(), hip.registerSet().bits());
+            double err = (hip.cardinality() - size) / (double) size;
+            hipSquares += err * err;
+            err = (classic.cardinality() - size) / (double) size;
+            classicSquares += err * err;
+        }
+        double hipError = Math.sqrt(hipSquares / trials);
+        System.out.println("HIP error " + hipError + ", classic " + Math.sqrt(classicSquares / trials));
+        assertTrue(hipError < Math.sqrt(classicSquares / trials));
+        assertTrue(hipError < 1.3 * 0.83 / Math.sqrt(1 << 10));
+    }
+
+    @Test
+    public void testHipFallsBackAfterMerge() throws CardinalityMergeException {
+        HyperLogLog hip = HyperLogLog.withHipEstimator(10);
+        HyperLogLog other = new HyperLogLog(10);
+        for (int i = 0; i < 5000; i++) {
+            hip.offer(i);
+            other.offer(i + 2500);
+        }
+        assertTrue(hip.isHip());
+
+        HyperLogLog expected = (HyperLogLog) other.merge(hip);
+        assertFalse(expected.isHip());
+        hip.addAll(other);
+        assertFalse(hip.isHip());
+        assertEquals(expected.cardinality(), hip.cardinality());
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestHyperLogLogArena {
+
+    @Test
+    public void testMatchesHyperLogLog() {
+        HyperLogLogArena arena = new HyperLogLogArena(10, 3);
+        HyperLogLog[] expected = new HyperLogLog[10];
+        int[] slots = new int[expected.length];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = new HyperLogLog(10);
+            slots[i] = arena.allocate();
+        }
+        assertEquals(expected.length, arena.size());
+        assertEquals(12, arena.capacity());
+
+        Random random = new Random(21);
+        for (int i = 0; i < 200000; i++) {
+            int k = random.nextInt(expected.length);
+            if (i % 2 == 0) {
+                long hash = random.nextLong();
+                assertEquals(expected[k].offerHashed(hash), arena.offerHashed(slots[k], hash));
+            } else {
+                assertEquals(expected[k].offer(i), arena.offer(slots[k], i));
+            }
+        }
+
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].cardinality(), arena.cardinality(slots[i]));
+            assertArrayEquals(expected[i].registerSet().bits(), arena.snapshot(slots[i]).registerSet().bits());
+        }
+    }
+
+    @Test
+    public void testMerge() throws CardinalityMergeException {
+        HyperLogLogArena arena = new HyperLogLogArena(10);
+        HyperLogLog a = new HyperLogLog(10);
+        HyperLogLog b = new HyperLogLog(10);
+        int slotA = arena.allocate();
+        int slotB = arena.allocate();
+        for (int i = 0; i < 5000; i++) {
+            a.offer(i);
+            arena.offer(slotA, i);
+            b.offer(i + 3000);
+            arena.offer(slotB, i + 3000);
+        }
+
+        long cardinalityB = arena.cardinality(slotB);
+        arena.merge(slotA, slotB);
+        HyperLogLog expected = (HyperLogLog) a.merge(b);
+        assertEquals(expected.cardinality(), arena.cardinality(slotA));
+        assertEquals(cardinalityB, arena.cardinality(slotB));
+
+        int slotC = arena.allocate();
+        arena.addAll(slotC, a);
+        arena.addAll(slotC, b);
+        assertArrayEquals(expected.registerSet().bits(), arena.snapshot(slotC).registerSet().bits());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testAddAllDifferentSize() throws CardinalityMergeException {
+        HyperLogLogArena arena = new HyperLogLogArena(10);
+        arena.addAll(arena.allocate(), new HyperLogLog(11));
+    }
+
+    @Test
+    public void testFreeRecyclesSlots() {
+        HyperLogLogArena arena = new HyperLogLogArena(8, 2);
+        int first = arena.allocate();
+        int second = arena.allocate();
+        for (int i = 0; i < 1000; i++) {
+            arena.offer(first, i);
+            arena.offer(second, i);
+        }
+
+        arena.free(first);
+        assertEquals(1, arena.size());
+        assertEquals(first, arena.allocate());
+        assertEquals(0, arena.cardinality(first));
+        assertTrue(arena.cardinality(second) > 0);
+        assertEquals(2, arena.capacity());
+
+        assertEquals(2, arena.allocate());
+        assertEquals(4, arena.capacity());
+        assertFalse(arena.offerHashed(first, 0L) && arena.offerHashed(first, 0L));
+    }
+
+    @Test
+    public void testDoubleFree() {
+        HyperLogLogArena arena = new HyperLogLogArena(8);
+        int slot = arena.allocate();
+        arena.free(slot);
+        try {
+            arena.free(slot);
+            fail("expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals(0, arena.size());
+        }
+        assertEquals(slot, arena.allocate());
+        assertEquals(1, arena.allocate());
+        arena.free(slot);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testUnallocatedSlot() {
+        new HyperLogLogArena(8).cardinality(0);
+    }
+}
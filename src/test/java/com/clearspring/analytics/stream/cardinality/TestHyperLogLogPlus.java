@@ -18,18 +18,25 @@ package com.clearspring.analytics.stream.cardinality;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
 
 import com.clearspring.analytics.TestUtils;
 import com.clearspring.analytics.util.Varint;
+import com.google.common.io.Files;
 
 import org.apache.commons.lang3.RandomStringUtils;
 
@@ -39,8 +46,10 @@ import org.slf4j.LoggerFactory;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class TestHyperLogLogPlus {
@@ -523,4 +532,338 @@ public class TestHyperLogLogPlus {
         // test against old serialization
         assertArrayEquals(new byte[]{-1, -1, -1, -2, 14, 25, 1, 4, 25, -27, -1, -1, 15, -101, -128, -128, -16, 7, -27, -1, -1, -97, 8}, hll.getBytes());
     }
+
+    @Test
+    public void testEstimateBiasMatchesFullScan() {
+        Random random = new Random(7);
+        for (int p = 4; p <= 18; p++) {
+            double[] estimates = HyperLogLogPlus.rawEstimateData[p - 4];
+            double max = estimates[estimates.length - 1] * 1.1;
+            for (int i = 0; i < 2000; i++) {
+                double estimate = random.nextDouble() * max;
+                assertEquals("p=" + p + " estimate=" + estimate,
+                             estimateBiasByFullScan(estimate, p), HyperLogLogPlus.getEstimateBias(estimate, p), 1e-9);
+            }
+        }
+        assertEquals(0, HyperLogLogPlus.getEstimateBias(1000, 19), 0);
+    }
+
+    /**
+     * Reference implementation that sorts the distance to every raw estimate.
+     */
+    private static double estimateBiasByFullScan(double estimate, int p) {
+        double[] estimates = HyperLogLogPlus.rawEstimateData[p - 4];
+        SortedMap<Double, Integer> distances = new TreeMap<Double, Integer>();
+        for (int i = 0; i < estimates.length; i++) {
+            distances.put(Math.pow(estimate - estimates[i], 2), i);
+        }
+        double biasTotal = 0;
+        int neighbors = 0;
+        for (Integer index : distances.values()) {
+            biasTotal += HyperLogLogPlus.biasData[p - 4][index];
+            if (++neighbors >= 6) {
+                break;
+            }
+        }
+        return biasTotal / neighbors;
+    }
+
+    @Test
+    public void testOfferHashedBatchSparse() {
+        Random random = new Random(3);
+        long[] hashes = new long[3000];
+        for (int i = 0; i < hashes.length; i++) {
+            // repeat some hashes so the batch holds duplicates
+            hashes[i] = (i % 7 == 0 && i > 0) ? hashes[i - 1] : random.nextLong();
+        }
+
+        HyperLogLogPlus single = new HyperLogLogPlus(14, 25);
+        HyperLogLogPlus batched = new HyperLogLogPlus(14, 25);
+        for (int i = 0; i < 1000; i++) {
+            single.offerHashed(hashes[i]);
+        }
+        batched.offerHashed(hashes, 0, 500);
+        batched.offerHashed(hashes, 500, 500);
+
+        assertEquals(HyperLogLogPlus.Format.SPARSE, batched.format);
+        assertEquals(single, batched);
+        assertEquals(single.cardinality(), batched.cardinality());
+    }
+
+    @Test
+    public void testOfferHashedBatchConvertsToNormal() {
+        Random random = new Random(5);
+        long[] hashes = new long[20000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+
+        HyperLogLogPlus single = new HyperLogLogPlus(10, 20);
+        for (long hash : hashes) {
+            single.offerHashed(hash);
+        }
+        HyperLogLogPlus batched = new HyperLogLogPlus(10, 20);
+        batched.offerHashed(hashes, 0, hashes.length);
+
+        assertEquals(HyperLogLogPlus.Format.NORMAL, batched.format);
+        assertArrayEquals(single.getRegisterSet().bits(), batched.getRegisterSet().bits());
+        assertEquals(single.cardinality(), batched.cardinality());
+    }
+
+    @Test
+    public void testRadixSort() {
+        Random random = new Random(17);
+        for (int length : new int[]{0, 1, 2, 100, 5000}) {
+            int[] values = new int[length + 3];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (i % 3 == 0) ? random.nextInt(1000) - 500 : random.nextInt();
+            }
+            int[] expected = Arrays.copyOf(values, length);
+            Arrays.sort(expected);
+
+            HyperLogLogPlus.radixSort(values, new int[length], length);
+            assertArrayEquals(expected, Arrays.copyOf(values, length));
+        }
+    }
+
+    @Test
+    public void testMapUpdateAndFlush() throws IOException, CardinalityMergeException {
+        HyperLogLogPlus expected = new HyperLogLogPlus(12);
+        File file = File.createTempFile("hllp", ".bin");
+        file.deleteOnExit();
+        Files.write(expected.getBytes(), file);
+
+        HyperLogLogPlus mapped = HyperLogLogPlus.Builder.map(file);
+        HyperLogLogPlus sparse = new HyperLogLogPlus(12, 25);
+        for (int i = 0; i < 20000; i++) {
+            expected.offer(i);
+            mapped.offer(i);
+            sparse.offer("s" + (i % 100));
+        }
+        expected.addAll(sparse);
+        mapped.addAll(sparse);
+        mapped.flush();
+
+        assertEquals(expected.cardinality(), mapped.cardinality());
+        assertArrayEquals(expected.getBytes(), Files.toByteArray(file));
+        assertEquals(expected, HyperLogLogPlus.Builder.build(Files.toByteArray(file)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrapSparse() throws IOException {
+        HyperLogLogPlus sparse = new HyperLogLogPlus(12, 25);
+        sparse.offer("a");
+        HyperLogLogPlus.Builder.wrap(ByteBuffer.wrap(sparse.getBytes()));
+    }
+
+    @Test
+    public void testCompactRegisters() throws IOException, CardinalityMergeException {
+        HyperLogLogPlus packed = new HyperLogLogPlus(14, 25);
+        HyperLogLogPlus compact = HyperLogLogPlus.withCompactRegisters(14, 25);
+        for (int i = 0; i < 200000; i++) {
+            packed.offer(i);
+            compact.offer(i);
+        }
+        assertEquals(packed.cardinality(), compact.cardinality());
+        assertTrue(compact.getBytes().length < packed.getBytes().length * 0.8);
+        assertEquals(packed, compact);
+
+        HyperLogLogPlus read = HyperLogLogPlus.Builder.build(compact.getBytes());
+        assertEquals(compact, read);
+        assertEquals(packed.cardinality(), read.cardinality());
+
+        HyperLogLogPlus merged = (HyperLogLogPlus) compact.merge(packed);
+        assertArrayEquals(compact.getBytes(), merged.getBytes());
+    }
+
+    @Test(expected = IOException.class)
+    public void testViewCompact() throws IOException {
+        HyperLogLogPlus compact = HyperLogLogPlus.withCompactRegisters(10, 0);
+        compact.offer("a");
+        new HyperLogLogPlusView(ByteBuffer.wrap(compact.getBytes()));
+    }
+
+    @Test
+    public void testWriteToReadFrom() throws IOException {
+        HyperLogLogPlus sparse = new HyperLogLogPlus(14, 25);
+        HyperLogLogPlus normal = new HyperLogLogPlus(14, 25);
+        HyperLogLogPlus compact = HyperLogLogPlus.withCompactRegisters(14, 0);
+        for (int i = 0; i < 100000; i++) {
+            if (i < 500) {
+                sparse.offer(i);
+            }
+            normal.offer(i);
+            compact.offer(i);
+        }
+        HyperLogLogPlus[] estimators = {sparse, normal, compact};
+
+        int total = 0;
+        for (HyperLogLogPlus estimator : estimators) {
+            assertEquals(estimator.getBytes().length, estimator.serializedSize());
+            total += estimator.serializedSize();
+        }
+        // back to back in a direct buffer, then read in turn from a heap copy and the buffer itself
+        ByteBuffer direct = ByteBuffer.allocateDirect(total);
+        for (HyperLogLogPlus estimator : estimators) {
+            estimator.writeTo(direct);
+        }
+        assertEquals(0, direct.remaining());
+        direct.flip();
+        byte[] bytes = new byte[total];
+        direct.duplicate().get(bytes);
+        ByteBuffer heap = ByteBuffer.wrap(bytes);
+
+        int offset = 0;
+        for (HyperLogLogPlus estimator : estimators) {
+            byte[] expected = estimator.getBytes();
+            assertArrayEquals(expected, Arrays.copyOfRange(bytes, offset, offset + expected.length));
+            offset += expected.length;
+            assertEquals(estimator, HyperLogLogPlus.readFrom(heap));
+            assertEquals(estimator, HyperLogLogPlus.readFrom(direct));
+        }
+        assertEquals(0, heap.remaining());
+        assertEquals(0, direct.remaining());
+    }
+
+    @Test
+    public void testWriteToTooSmall() throws IOException {
+        HyperLogLogPlus hll = new HyperLogLogPlus(10, 25);
+        hll.offer("a");
+        ByteBuffer buffer = ByteBuffer.allocate(hll.serializedSize() - 1);
+        try {
+            hll.writeTo(buffer);
+            fail("expected an overflow");
+        } catch (BufferOverflowException e) {
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void testReadFromTruncated() throws IOException {
+        HyperLogLogPlus hll = new HyperLogLogPlus(10, 25);
+        for (int i = 0; i < 50; i++) {
+            hll.offer(i);
+        }
+        byte[] bytes = hll.getBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+        try {
+            HyperLogLogPlus.readFrom(buffer);
+            fail("expected an IOException");
+        } catch (IOException e) {
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void testReadFromTruncatedRegisters() {
+        // a p = 30 header announcing registers the buffer does not hold
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        buffer.putInt(-2);
+        Varint.writeUnsignedVarInt(30, buffer);
+        Varint.writeUnsignedVarInt(0, buffer);
+        Varint.writeUnsignedVarInt(0, buffer);
+        Varint.writeUnsignedVarInt(RegisterSet.getSizeForCount(1 << 30) * 4, buffer);
+        buffer.flip();
+        try {
+            HyperLogLogPlus.readFrom(buffer);
+            fail("expected an IOException");
+        } catch (IOException e) {
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void testFoldNormal() {
+        HyperLogLogPlus high = new HyperLogLogPlus(14);
+        HyperLogLogPlus low = new HyperLogLogPlus(10);
+        for (int i = 0; i < 100000; i++) {
+            high.offer(i);
+            low.offer(i);
+        }
+        HyperLogLogPlus folded = high.fold(10);
+        assertArrayEquals(low.getRegisterSet().bits(), folded.getRegisterSet().bits());
+        assertEquals(low.cardinality(), folded.cardinality());
+    }
+
+    @Test
+    public void testFoldSparse() throws IOException {
+        HyperLogLogPlus high = new HyperLogLogPlus(14, 25);
+        HyperLogLogPlus low = new HyperLogLogPlus(10, 25);
+        Random random = new Random(24);
+        for (int i = 0; i < 500; i++) {
+            long hash = random.nextLong();
+            high.offerHashed(hash);
+            low.offerHashed(hash);
+        }
+        // run lengths kept at p = 14 that either move into the index or grow at p = 10
+        for (long hash : new long[]{0x0010000000000000L, 0x0000000200000000L}) {
+            high.offerHashed(hash);
+            low.offerHashed(hash);
+        }
+
+        HyperLogLogPlus folded = high.fold(10);
+        assertEquals(HyperLogLogPlus.Format.SPARSE, folded.format);
+        assertArrayEquals(low.getBytes(), folded.getBytes());
+
+        // more entries than the sparse threshold at p = 10
+        for (int i = 0; i < 2000; i++) {
+            long hash = random.nextLong();
+            high.offerHashed(hash);
+            low.offerHashed(hash);
+        }
+        folded = high.fold(10);
+        assertEquals(HyperLogLogPlus.Format.NORMAL, folded.format);
+        assertEquals(HyperLogLogPlus.Format.NORMAL, low.format);
+        assertArrayEquals(low.getRegisterSet().bits(), folded.getRegisterSet().bits());
+    }
+
+    @Test
+    public void testMergeFoldsToLowerPrecision() throws CardinalityMergeException {
+        HyperLogLogPlus cold = new HyperLogLogPlus(12, 25);
+        HyperLogLogPlus hot = new HyperLogLogPlus(16, 25);
+        HyperLogLogPlus expected = new HyperLogLogPlus(12, 25);
+        for (int i = 0; i < 20000; i++) {
+            cold.offer(i);
+            hot.offer(i + 10000);
+            expected.offer(i);
+            expected.offer(i + 10000);
+        }
+
+        HyperLogLogPlus merged = (HyperLogLogPlus) hot.merge(cold);
+        assertEquals(12, merged.getP());
+        assertEquals(expected.cardinality(), merged.cardinality());
+        assertArrayEquals(expected.getRegisterSet().bits(), merged.getRegisterSet().bits());
+    }
+
+    @Test
+    public void testHipEstimator() throws CardinalityMergeException {
+        HyperLogLogPlus hip = HyperLogLogPlus.withHipEstimator(10, 25);
+        HyperLogLogPlus classic = new HyperLogLogPlus(10, 25);
+        Random random = new Random(26);
+        for (int i = 0; i < 500; i++) {
+            long hash = random.nextLong();
+            hip.offerHashed(hash);
+            classic.offerHashed(hash);
+        }
+        assertFalse(hip.isHip());
+        assertEquals(classic.cardinality(), hip.cardinality());
+
+        long[] hashes = new long[200000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        hip.offerHashed(hashes, 0, hashes.length / 2);
+        classic.offerHashed(hashes, 0, hashes.length / 2);
+        for (int i = hashes.length / 2; i < hashes.length; i++) {
+            hip.offerHashed(hashes[i]);
+            classic.offerHashed(hashes[i]);
+        }
+        assertTrue(hip.isHip());
+        assertArrayEquals(classic.getRegisterSet().bits(), hip.getRegisterSet().bits());
+        assertEquals(200500, hip.cardinality(), 200500 * 4 * 0.83 / Math.sqrt(1 << 10));
+
+        hip.addAll(new HyperLogLogPlus(10, 25));
+        assertFalse(hip.isHip());
+        assertEquals(classic.cardinality(), hip.cardinality());
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestHyperLogLogPlusView {
+
+    private static HyperLogLogPlus sparse(int offset, int count) {
+        HyperLogLogPlus hllp = new HyperLogLogPlus(14, 25);
+        for (int i = offset; i < offset + count; i++) {
+            hllp.offer("item" + i);
+        }
+        return hllp;
+    }
+
+    private static HyperLogLogPlus normal(int offset, int count) {
+        HyperLogLogPlus hllp = new HyperLogLogPlus(14);
+        for (int i = offset; i < offset + count; i++) {
+            hllp.offer("item" + i);
+        }
+        return hllp;
+    }
+
+    /**
+     * Views the estimator's bytes at a non-zero position to check that offsets are honoured.
+     */
+    private static HyperLogLogPlusView view(HyperLogLogPlus hllp) throws IOException {
+        byte[] bytes = hllp.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 10);
+        buffer.position(7);
+        buffer.put(bytes);
+        buffer.position(7);
+        return new HyperLogLogPlusView(buffer);
+    }
+
+    @Test
+    public void testCardinality() throws IOException {
+        for (HyperLogLogPlus hllp : new HyperLogLogPlus[]{sparse(0, 500), normal(0, 500), normal(0, 200000)}) {
+            HyperLogLogPlusView view = view(hllp);
+            assertEquals(hllp.format, view.format);
+            assertEquals(hllp.cardinality(), view.cardinality());
+            assertArrayEquals(hllp.getBytes(), view.getBytes());
+        }
+    }
+
+    @Test
+    public void testAddAllMatchesDecodedSource() throws IOException, CardinalityMergeException {
+        HyperLogLogPlus[] sources = {sparse(0, 800), normal(300, 5000)};
+        for (HyperLogLogPlus source : sources) {
+            HyperLogLogPlus[] targets = {sparse(500, 1000), normal(100, 3000), sparse(0, 11000)};
+            for (HyperLogLogPlus target : targets) {
+                HyperLogLogPlus expected = HyperLogLogPlus.Builder.build(target.getBytes());
+                expected.addAll(HyperLogLogPlus.Builder.build(source.getBytes()));
+
+                target.addAll(view(source));
+                assertEquals(expected, target);
+                assertEquals(expected.cardinality(), target.cardinality());
+            }
+        }
+    }
+
+    @Test
+    public void testMerge() throws IOException, CardinalityMergeException {
+        HyperLogLogPlus a = sparse(0, 1000);
+        HyperLogLogPlus b = sparse(500, 1000);
+        HyperLogLogPlus c = sparse(20000, 1000);
+
+        ICardinality expected = a.merge(b, c);
+        assertEquals(expected, view(a).merge(view(b), c));
+        assertEquals(expected, a.merge(view(b), view(c)));
+        assertEquals(2500, view(a).merge(view(b), view(c)).cardinality(), 25);
+    }
+
+    @Test(expected = HyperLogLogPlus.HyperLogLogPlusMergeException.class)
+    public void testAddAllLowerPrecision() throws IOException, CardinalityMergeException {
+        HyperLogLogPlus low = new HyperLogLogPlus(12);
+        low.offer("a");
+        new HyperLogLogPlus(14).addAll(view(low));
+    }
+
+    @Test
+    public void testMergeFoldsToLowestPrecision() throws IOException, CardinalityMergeException {
+        HyperLogLogPlus low = new HyperLogLogPlus(12, 25);
+        for (int i = 0; i < 3000; i++) {
+            low.offer("item" + (i + 20000));
+        }
+        for (HyperLogLogPlus high : new HyperLogLogPlus[]{sparse(0, 500), normal(0, 5000)}) {
+            ICardinality expected = high.merge(low);
+            assertEquals(12, ((HyperLogLogPlus) expected).getP());
+            assertEquals(expected, high.merge(view(low)));
+            assertEquals(expected, view(high).merge(low));
+            assertEquals(expected, view(high).merge(view(low)));
+
+            HyperLogLogPlus target = HyperLogLogPlus.Builder.build(low.getBytes());
+            target.addAll(view(high));
+            assertEquals(expected, target);
+        }
+    }
+
+    @Test(expected = HyperLogLogPlus.HyperLogLogPlusMergeException.class)
+    public void testMergeDifferentSparsePrecisions() throws IOException, CardinalityMergeException {
+        HyperLogLogPlus hllp = new HyperLogLogPlus(14, 20);
+        hllp.offer("a");
+        hllp.addAll(view(sparse(0, 10)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() throws IOException {
+        view(normal(0, 10)).offer("a");
+    }
+}
@@ -18,6 +18,7 @@ package com.clearspring.analytics.stream.cardinality;
 
 import java.util.Arrays;
 
+import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.stream.cardinality.LinearCounting.Builder;
 import com.clearspring.analytics.stream.cardinality.LinearCounting.LinearCountingMergeException;
 
@@ -154,4 +155,71 @@ public class TestLinearCounting {
         long baselineEstimate = baseline.cardinality();
         assertEquals(baselineEstimate, mergedEstimate);
     }
+
+    @Test
+    public void testOfferHashedBatch() {
+        LinearCounting single = new LinearCounting(64);
+        LinearCounting batched = new LinearCounting(64);
+        long[] hashes = new long[400];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = MurmurHash.hash64(i);
+            single.offerHashed(hashes[i]);
+        }
+
+        assertTrue(batched.offerHashed(hashes, 0, hashes.length));
+        assertArrayEquals(single.getBytes(), batched.getBytes());
+        assertEquals(single.cardinality(), batched.cardinality());
+
+        LinearCounting offered = new LinearCounting(64);
+        LinearCounting hashed = new LinearCounting(64);
+        for (int i = 0; i < 400; i++) {
+            offered.offer(i);
+            hashed.offerHashed(MurmurHash.hash(i));
+        }
+        assertArrayEquals(offered.getBytes(), hashed.getBytes());
+    }
+
+    @Test
+    public void testWordBitmap() throws LinearCountingMergeException {
+        LinearCounting bytes = new LinearCounting(100);
+        LinearCounting words = LinearCounting.withWordBitmap(100);
+        for (int i = 0; i < 500; i++) {
+            assertEquals(bytes.offer(i), words.offer(i));
+        }
+        assertEquals(bytes.getCount(), words.getCount());
+        assertEquals(bytes.sizeof(), words.sizeof());
+        assertArrayEquals(bytes.getBytes(), words.getBytes());
+        assertEquals(bytes.cardinality(), words.cardinality());
+
+        long[] hashes = new long[500];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = MurmurHash.hash64(i + 500);
+        }
+        assertTrue(bytes.offerHashed(hashes, 0, hashes.length));
+        assertTrue(words.offerHashed(hashes, 0, hashes.length));
+        assertArrayEquals(bytes.getBytes(), words.getBytes());
+        assertEquals(bytes.getCount(), new LinearCounting(words.getBytes()).getCount());
+    }
+
+    @Test
+    public void testMergeWordBitmaps() throws LinearCountingMergeException {
+        LinearCounting[] bytes = new LinearCounting[4];
+        LinearCounting[] words = new LinearCounting[4];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = new LinearCounting(1000);
+            words[i] = new Builder(1000, true).build();
+            for (int j = 0; j < 1000; j++) {
+                bytes[i].offer(i * 1000 + j);
+                words[i].offer(i * 1000 + j);
+            }
+        }
+        LinearCounting expected = LinearCounting.mergeEstimators(bytes);
+        LinearCounting merged = LinearCounting.mergeEstimators(words);
+        assertArrayEquals(expected.getBytes(), merged.getBytes());
+        assertEquals(expected.cardinality(), merged.cardinality());
+
+        LinearCounting mixed = (LinearCounting) bytes[0].merge(words[1], bytes[2], words[3]);
+        assertArrayEquals(expected.getBytes(), mixed.getBytes());
+        assertEquals(expected.getCount(), mixed.getCount());
+    }
 }
@@ -20,6 +20,8 @@ import java.io.IOException;
 
 import java.util.Arrays;
 
+import com.clearspring.analytics.hash.MurmurHash;
+
 import com.google.common.base.Charsets;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
@@ -27,6 +29,7 @@ import com.google.common.hash.Hashing;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -135,4 +138,34 @@ public class TestLogLog {
         assertTrue("g128 estimate bigger than expected", g128Estimate >= cardinality - (2 * se));
         assertTrue("g128 estimate smaller than expected", g128Estimate <= cardinality + (2 * se));
     }
+
+    @Test
+    public void testOfferHashedLong() {
+        LogLog logLog = new LogLog(10);
+        long[] hashes = new long[100000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = MurmurHash.hash64(i);
+            logLog.offerHashed(hashes[i]);
+        }
+        double err = Math.abs(logLog.cardinality() - hashes.length) / (double) hashes.length;
+        assertTrue(err < .1);
+
+        LogLog batched = new LogLog(10);
+        assertTrue(batched.offerHashed(hashes, 0, hashes.length));
+        assertArrayEquals(logLog.getBytes(), batched.getBytes());
+    }
+
+    @Test
+    public void testOfferOverloads() {
+        LogLog objects = new LogLog(10);
+        LogLog overloads = new LogLog(10);
+        for (int i = 0; i < 1000; i++) {
+            objects.offer((Object) (long) i);
+            overloads.offer((long) i);
+            byte[] bytes = Integer.toString(i).getBytes();
+            objects.offer((Object) bytes);
+            overloads.offer(bytes);
+        }
+        assertArrayEquals(objects.getBytes(), overloads.getBytes());
+    }
 }
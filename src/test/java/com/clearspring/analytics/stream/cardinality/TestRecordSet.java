@@ -18,8 +18,11 @@ package com.clearspring.analytics.stream.cardinality;
 
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Random;
 import java.util.TreeSet;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -120,5 +123,85 @@ public class TestRecordSet {
     }
     */
 
+    @Test
+    public void testOfferMatchesTreeSets() {
+        Random random = new Random(17);
+        RecordSet rs = new RecordSet(50, 80);
+        TreeSet<Long> records = new TreeSet<Long>();
+        TreeSet<Long> pseudos = new TreeSet<Long>();
+        for (int i = 0; i < 20000; i++) {
+            long value = random.nextInt(5000);
+            assertEquals(offer(records, pseudos, 50, 80, value), rs.offer(value));
+        }
+        assertEquals(records, rs.records());
+        assertEquals(records.size() + pseudos.size(), rs.currentSize());
+        assertEquals((long) pseudos.last(), rs.maxValue());
+        for (Long pseudo : pseudos) {
+            assertTrue(rs.contains(pseudo));
+        }
+    }
+
+    @Test
+    public void testMergeSmallest() {
+        RecordSet rs = new RecordSet(100, 100);
+        RecordSet other = new RecordSet(100, 100);
+        RecordSet offered = new RecordSet(100, 100);
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            long value = random.nextInt(100000);
+            rs.offer(value);
+            offered.offer(value);
+            other.offer(random.nextInt(100000));
+        }
+        rs.offer(other.sortedRecords()[10]);
+        offered.offer(other.sortedRecords()[10]);
+        for (long record : other.sortedRecords()) {
+            offered.offer(record);
+        }
+        rs.merge(other);
+        assertArrayEquals(offered.sortedRecords(), rs.sortedRecords());
+        assertEquals(100, rs.currentSize());
+        assertEquals(offered.maxValue(), rs.maxValue());
+    }
 
+    @Test
+    public void testMergeKeepsPseudoRecords() {
+        RecordSet rs = new RecordSet(4, 0, 6, new TreeSet<Long>(Arrays.asList(1L, 3L, 5L, 7L)),
+                new TreeSet<Long>(Arrays.asList(9L, 11L)));
+        RecordSet other = new RecordSet(4, 0, 6, new TreeSet<Long>(Arrays.asList(2L, 9L, 10L, 20L)),
+                new TreeSet<Long>());
+        rs.merge(other);
+        assertEquals(new TreeSet<Long>(Arrays.asList(1L, 2L, 3L, 5L)), rs.records());
+        assertEquals(6, rs.currentSize());
+        assertTrue(rs.contains(7));
+        assertTrue(rs.contains(9));
+        assertTrue(!rs.contains(10));
+        assertTrue(!rs.contains(11));
+        assertEquals(9, rs.maxValue());
+    }
+
+    /**
+     * The replacement rules of {@link RecordSet#offer(long)} on tree sets.
+     */
+    private static boolean offer(TreeSet<Long> records, TreeSet<Long> pseudos, int threshold, int maxSize, long value) {
+        if (records.contains(value) || pseudos.contains(value)) {
+            return false;
+        }
+        boolean affected = false;
+        if (records.size() < threshold || value < records.last()) {
+            records.add(value);
+            affected = true;
+        } else if (!pseudos.isEmpty() && value < pseudos.last()) {
+            pseudos.add(value);
+            pseudos.remove(pseudos.last());
+            affected = true;
+        }
+        if (records.size() > threshold) {
+            pseudos.add(records.pollLast());
+        }
+        if (records.size() + pseudos.size() > maxSize) {
+            pseudos.pollLast();
+        }
+        return affected;
+    }
 }
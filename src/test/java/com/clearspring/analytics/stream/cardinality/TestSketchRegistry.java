@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSketchRegistry {
+
+    private static final SketchRegistry.Decoder<HyperLogLog> DECODER = new SketchRegistry.Decoder<HyperLogLog>() {
+        @Override
+        public HyperLogLog decode(byte[] bytes) throws IOException {
+            return HyperLogLog.Builder.build(bytes);
+        }
+    };
+
+    private File spillFile;
+
+    @Before
+    public void createSpillFile() throws IOException {
+        spillFile = File.createTempFile("sketches", ".spill");
+    }
+
+    @After
+    public void deleteSpillFile() {
+        spillFile.delete();
+    }
+
+    @Test
+    public void testEvictsAndReloads() throws IOException, CardinalityMergeException {
+        HyperLogLog.Builder builder = HyperLogLog.Builder.withLog2m(10);
+        long budget = 8 * (builder.sizeof() + SketchRegistry.ENTRY_OVERHEAD);
+        SketchRegistry<String, HyperLogLog> registry =
+                new SketchRegistry<String, HyperLogLog>(builder, DECODER, budget, spillFile);
+
+        Map<String, HyperLogLog> expected = new HashMap<String, HyperLogLog>();
+        Random random = new Random(9);
+        for (int i = 0; i < 20000; i++) {
+            String key = "campaign" + random.nextInt(50);
+            long hash = random.nextLong();
+            registry.offerHashed(key, hash);
+            if (!expected.containsKey(key)) {
+                expected.put(key, builder.build());
+            }
+            expected.get(key).offerHashed(hash);
+            assertTrue(registry.retainedBytes() <= budget);
+        }
+        assertTrue(spillFile.length() > 0);
+        assertEquals(50, registry.size());
+
+        for (Map.Entry<String, HyperLogLog> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getValue().getBytes(), registry.get(entry.getKey()).getBytes());
+            assertTrue(registry.retainedBytes() <= budget);
+        }
+        assertNull(registry.get("unknown"));
+        assertEquals(0, registry.cardinality("unknown"));
+        registry.close();
+    }
+
+    @Test
+    public void testFlushMergesSpilledParts() throws IOException, CardinalityMergeException {
+        HyperLogLog.Builder builder = HyperLogLog.Builder.withLog2m(8);
+        long budget = 2 * (builder.sizeof() + SketchRegistry.ENTRY_OVERHEAD);
+        SketchRegistry<Integer, HyperLogLog> registry =
+                new SketchRegistry<Integer, HyperLogLog>(builder, DECODER, budget, spillFile);
+
+        HyperLogLog[] expected = new HyperLogLog[10];
+        for (int round = 0; round < 5; round++) {
+            for (int key = 0; key < expected.length; key++) {
+                if (expected[key] == null) {
+                    expected[key] = builder.build();
+                }
+                for (int i = 0; i < 100; i++) {
+                    registry.offer(key, round * 1000 + key * 100000 + i);
+                    expected[key].offer(round * 1000 + key * 100000 + i);
+                }
+            }
+        }
+
+        long spilledLength = spillFile.length();
+        registry.flush();
+        assertEquals(0, registry.retainedBytes());
+        assertTrue(spillFile.length() < spilledLength);
+
+        for (int key = 0; key < expected.length; key++) {
+            assertEquals(expected[key].cardinality(), registry.cardinality(key));
+        }
+        registry.close();
+    }
+
+    @Test
+    public void testWeighsSparseHyperLogLogPlusByItsEntries() throws IOException {
+        SketchRegistry<String, HyperLogLogPlus> registry = new SketchRegistry<String, HyperLogLogPlus>(
+                new HyperLogLogPlus.Builder(14, 25), null, Long.MAX_VALUE, spillFile);
+
+        HyperLogLogPlus sparse = new HyperLogLogPlus(14, 25);
+        HyperLogLogPlus dense = new HyperLogLogPlus(14);
+        for (int i = 0; i < 100; i++) {
+            sparse.offer(i);
+            dense.offer(i);
+            registry.offer("key", i);
+        }
+        assertTrue(registry.weigh(sparse) < registry.weigh(dense) / 10);
+        assertEquals(registry.weigh(sparse), registry.retainedBytes());
+        registry.close();
+    }
+}
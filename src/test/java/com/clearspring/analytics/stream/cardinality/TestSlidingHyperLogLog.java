@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.clearspring.analytics.TestUtils;
+import com.clearspring.analytics.hash.MurmurHash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSlidingHyperLogLog {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    /**
+     * 100 minutes of events, user ids drawn from a range that moves up by 200 a minute.
+     */
+    private static long[][] events() {
+        Random random = new Random(7);
+        long[][] events = new long[100 * 1000][];
+        for (int i = 0; i < events.length; i++) {
+            long minute = i / 1000;
+            long user = minute * 200 + random.nextInt(2000);
+            events[i] = new long[]{MurmurHash.hash64(user), minute * MINUTE + random.nextInt((int) MINUTE)};
+        }
+        return events;
+    }
+
+    @Test
+    public void testMatchesHyperLogLogPlusOverWindow() {
+        long[][] events = events();
+        SlidingHyperLogLog sliding = new SlidingHyperLogLog(12, 60 * MINUTE);
+        for (long[] event : events) {
+            sliding.offerHashed(event[0], event[1]);
+        }
+        long latest = sliding.latestTimestamp();
+        for (long window : new long[]{1, MINUTE, 5 * MINUTE, 15 * MINUTE, 60 * MINUTE}) {
+            HyperLogLogPlus expected = new HyperLogLogPlus(12);
+            for (long[] event : events) {
+                if (event[1] > latest - window) {
+                    expected.offerHashed(event[0]);
+                }
+            }
+            assertEquals(expected.cardinality(), sliding.cardinality(window));
+        }
+        assertEquals(sliding.cardinality(60 * MINUTE), sliding.cardinality());
+    }
+
+    @Test
+    public void testOutOfOrder() throws IOException {
+        long[][] events = events();
+        SlidingHyperLogLog ordered = new SlidingHyperLogLog(10, 30 * MINUTE);
+        for (long[] event : events) {
+            ordered.offerHashed(event[0], event[1]);
+        }
+
+        // shuffle within each 5 minute block so nothing arrives after it has expired
+        List<long[]> shuffled = new ArrayList<long[]>();
+        Random random = new Random(3);
+        SlidingHyperLogLog unordered = new SlidingHyperLogLog(10, 30 * MINUTE);
+        for (int block = 0; block < events.length; block += 5000) {
+            shuffled.clear();
+            for (int i = block; i < block + 5000; i++) {
+                shuffled.add(events[i]);
+            }
+            Collections.shuffle(shuffled, random);
+            for (long[] event : shuffled) {
+                unordered.offerHashed(event[0], event[1]);
+            }
+        }
+        for (long window : new long[]{MINUTE, 10 * MINUTE, 30 * MINUTE}) {
+            assertEquals(ordered.cardinality(window), unordered.cardinality(window));
+        }
+    }
+
+    @Test
+    public void testExpiredOfferIgnored() {
+        SlidingHyperLogLog sliding = new SlidingHyperLogLog(10, MINUTE);
+        assertTrue(sliding.offerHashed(MurmurHash.hash64("a"), 10 * MINUTE));
+        assertFalse(sliding.offerHashed(MurmurHash.hash64("b"), 9 * MINUTE));
+        assertFalse(sliding.offerHashed(MurmurHash.hash64("a"), 10 * MINUTE));
+        assertEquals(1, sliding.cardinality(MINUTE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowTooLong() {
+        new SlidingHyperLogLog(10, MINUTE).cardinality(MINUTE + 1);
+    }
+
+    @Test
+    public void testSerialization() throws IOException, ClassNotFoundException {
+        SlidingHyperLogLog sliding = new SlidingHyperLogLog(10, 30 * MINUTE);
+        for (long[] event : events()) {
+            sliding.offerHashed(event[0], event[1]);
+        }
+        SlidingHyperLogLog read = SlidingHyperLogLog.Builder.build(sliding.getBytes());
+        assertArrayEquals(sliding.getBytes(), read.getBytes());
+        assertEquals(sliding.cardinality(5 * MINUTE), read.cardinality(5 * MINUTE));
+        assertEquals(sliding.sizeof(), read.sizeof());
+
+        SlidingHyperLogLog deserialized = (SlidingHyperLogLog) TestUtils.deserialize(TestUtils.serialize(sliding));
+        assertEquals(sliding.cardinality(), deserialized.cardinality());
+    }
+
+    @Test
+    public void testMerge() throws CardinalityMergeException {
+        long[][] events = events();
+        SlidingHyperLogLog all = new SlidingHyperLogLog(10, 30 * MINUTE);
+        SlidingHyperLogLog even = new SlidingHyperLogLog(10, 30 * MINUTE);
+        SlidingHyperLogLog odd = new SlidingHyperLogLog(10, 30 * MINUTE);
+        for (int i = 0; i < events.length; i++) {
+            all.offerHashed(events[i][0], events[i][1]);
+            (i % 2 == 0 ? even : odd).offerHashed(events[i][0], events[i][1]);
+        }
+        SlidingHyperLogLog merged = (SlidingHyperLogLog) even.merge(odd);
+        for (long window : new long[]{MINUTE, 10 * MINUTE, 30 * MINUTE}) {
+            assertEquals(all.cardinality(window), merged.cardinality(window));
+        }
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testMergeDifferentPrecision() throws CardinalityMergeException {
+        new SlidingHyperLogLog(10, MINUTE).merge(new SlidingHyperLogLog(11, MINUTE));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestTieredCardinality {
+
+    private static TieredCardinality fill(int from, int to) {
+        TieredCardinality tiered = new TieredCardinality(0.01, 1 << 20);
+        for (int i = from; i < to; i++) {
+            tiered.offer(i);
+        }
+        return tiered;
+    }
+
+    @Test
+    public void testPrecision() {
+        assertEquals(14, TieredCardinality.precision(0.01, 1 << 20));
+        assertEquals(12, TieredCardinality.precision(0.01, 4096));
+        assertEquals(4, TieredCardinality.precision(0.5, 1 << 20));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBudgetTooSmall() {
+        new TieredCardinality(0.01, 8);
+    }
+
+    @Test
+    public void testTiers() {
+        TieredCardinality tiered = new TieredCardinality(0.01, 1 << 20);
+        int dense = new TieredCardinality.Builder(0.01, 1 << 20).sizeof();
+        int i = 0;
+        for (; i < 500; i++) {
+            tiered.offer(i);
+            assertTrue(tiered.sizeof() <= dense);
+        }
+        assertTrue(tiered.isExact());
+        assertEquals(500, tiered.cardinality());
+
+        for (; tiered.isExact(); i++) {
+            tiered.offer(i);
+        }
+        assertFalse(tiered.isDense());
+        for (; !tiered.isDense(); i++) {
+            tiered.offer(i);
+            assertTrue(tiered.sizeof() <= dense);
+        }
+        // sparse gives way to dense well before the sparse set threshold
+        assertTrue(i < 0.75 * (1 << 14) / 2);
+
+        for (; i < 100000; i++) {
+            tiered.offer(i);
+        }
+        assertEquals(dense, tiered.sizeof());
+        assertEquals(100000, tiered.cardinality(), 100000 * 0.03);
+    }
+
+    @Test
+    public void testOfferHashed() {
+        TieredCardinality offered = fill(0, 20000);
+        TieredCardinality hashed = new TieredCardinality(0.01, 1 << 20);
+        long[] hashes = new long[20000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = com.clearspring.analytics.hash.MurmurHash.hash64(i);
+        }
+        assertTrue(hashed.offerHashed(hashes, 0, hashes.length));
+        assertEquals(offered.cardinality(), hashed.cardinality());
+    }
+
+    @Test
+    public void testMergeAcrossTiers() throws CardinalityMergeException {
+        TieredCardinality small = fill(0, 100);
+        TieredCardinality smallToo = fill(50, 200);
+        TieredCardinality medium = fill(0, 2000);
+        TieredCardinality large = fill(0, 100000);
+        assertTrue(small.isExact());
+        assertFalse(medium.isExact() || medium.isDense());
+        assertTrue(large.isDense());
+
+        TieredCardinality exact = (TieredCardinality) small.merge(smallToo);
+        assertTrue(exact.isExact());
+        assertEquals(200, exact.cardinality());
+
+        TieredCardinality sparse = (TieredCardinality) small.merge(medium);
+        assertFalse(sparse.isExact() || sparse.isDense());
+        assertEquals(medium.cardinality(), sparse.cardinality());
+        sparse = (TieredCardinality) medium.merge(small, smallToo);
+        assertFalse(sparse.isDense());
+        assertEquals(medium.cardinality(), sparse.cardinality());
+
+        TieredCardinality dense = (TieredCardinality) small.merge(medium, large);
+        assertTrue(dense.isDense());
+        assertEquals(large.cardinality(), dense.cardinality());
+
+        // inputs are left as they were
+        assertTrue(small.isExact());
+        assertEquals(100, small.cardinality());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testMergeDifferentPrecision() throws CardinalityMergeException {
+        fill(0, 10).merge(new TieredCardinality(0.1, 1 << 20));
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        for (int n : new int[]{0, 100, 2000, 100000}) {
+            TieredCardinality tiered = fill(0, n);
+            TieredCardinality read = TieredCardinality.Builder.build(tiered.getBytes());
+            assertEquals(tiered.isExact(), read.isExact());
+            assertEquals(tiered.isDense(), read.isDense());
+            assertEquals(tiered.cardinality(), read.cardinality());
+            if (!tiered.isDense()) {
+                assertArrayEquals(tiered.getBytes(), read.getBytes());
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        byte[] bytes = fill(0, 100).getBytes();
+        TieredCardinality.Builder.build(java.util.Arrays.copyOf(bytes, bytes.length - 8));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTimeSeriesCardinalityStore {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    private static long utc(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+
+    private static final long START = utc(2015, 1, 1, 0, 0);
+    private static final long END = utc(2016, 1, 1, 0, 0);
+
+    /**
+     * A few values every hour of 2015, from a population that drifts over the year.
+     */
+    private static TimeSeriesCardinalityStore fill() {
+        TimeSeriesCardinalityStore store = new TimeSeriesCardinalityStore(new HyperLogLogPlus.Builder(10, 0));
+        for (long t = START; t < END; t += HOUR) {
+            for (int i = 0; i < 4; i++) {
+                store.offer(t + i * 7 * 60 * 1000L, value(t, i));
+            }
+        }
+        return store;
+    }
+
+    private static String value(long t, int i) {
+        return "user" + ((t - START) / HOUR / 24 * 3 + i * 11) % 5000;
+    }
+
+    private static long expected(long from, long to) {
+        HyperLogLogPlus hllp = new HyperLogLogPlus(10);
+        for (long t = START; t < END; t += HOUR) {
+            for (int i = 0; i < 4; i++) {
+                long timestamp = t + i * 7 * 60 * 1000L;
+                if (timestamp >= from && timestamp < to) {
+                    hllp.offer(value(t, i));
+                }
+            }
+        }
+        return hllp.cardinality();
+    }
+
+    @Test
+    public void testRollups() throws CardinalityMergeException {
+        TimeSeriesCardinalityStore store = fill();
+        store.seal(END);
+        assertEquals(12, store.size(TimeSeriesCardinalityStore.Granularity.MONTH));
+        assertEquals(365, store.size(TimeSeriesCardinalityStore.Granularity.DAY));
+        assertEquals(365 * 24, store.size(TimeSeriesCardinalityStore.Granularity.HOUR));
+
+        assertEquals(12, store.cover(START, END).size());
+        assertEquals(expected(START, END), store.cardinality(START, END));
+    }
+
+    @Test
+    public void testRaggedRange() throws CardinalityMergeException {
+        TimeSeriesCardinalityStore store = fill();
+        store.seal(END);
+        long from = utc(2015, 3, 3, 5, 30);
+        long to = utc(2015, 11, 17, 14, 10);
+        // 18 hours and 28 days to the end of March, 7 months, 16 days, 14 hours and the two
+        // minutes holding values in the first ten minutes of 14:00 on November 17
+        assertEquals(18 + 28 + 7 + 16 + 14 + 2, store.cover(from, to).size());
+        assertEquals(expected(from, to), store.cardinality(from, to));
+    }
+
+    @Test
+    public void testUnsealed() throws CardinalityMergeException {
+        TimeSeriesCardinalityStore store = fill();
+        long from = utc(2015, 6, 1, 0, 0);
+        long to = utc(2015, 6, 3, 0, 0);
+        assertEquals(expected(from, to), store.cardinality(from, to));
+
+        // only the first half of the year rolled up
+        store.seal(utc(2015, 7, 1, 0, 0));
+        assertEquals(6, store.size(TimeSeriesCardinalityStore.Granularity.MONTH));
+        assertEquals(expected(START, END), store.cardinality(START, END));
+    }
+
+    @Test
+    public void testLateValues() throws CardinalityMergeException {
+        TimeSeriesCardinalityStore store = fill();
+        store.seal(END);
+        long late = utc(2015, 4, 10, 8, 30);
+        for (int i = 0; i < 100; i++) {
+            store.offer(late, "late" + i);
+        }
+        HyperLogLogPlus expected = new HyperLogLogPlus(10);
+        for (int i = 0; i < 100; i++) {
+            expected.offer("late" + i);
+        }
+        assertEquals(expected.cardinality(), store.cardinality(late, late + 1));
+
+        long from = utc(2015, 4, 1, 0, 0);
+        long to = utc(2015, 5, 1, 0, 0);
+        assertEquals(1, store.cover(from, to).size());
+        assertTrue(store.cardinality(from, to) > expected(from, to));
+    }
+
+    @Test
+    public void testEmptyRange() throws CardinalityMergeException {
+        TimeSeriesCardinalityStore store = fill();
+        assertEquals(0, store.cardinality(END, END + 24 * HOUR));
+        assertEquals(0, store.cover(Long.MIN_VALUE, START).size());
+    }
+
+    /**
+     * One new value a minute from start for the given number of hours, sealed two days later.
+     */
+    private static TimeSeriesCardinalityStore fillMinutes(TimeZone zone, long start, int hours)
+            throws CardinalityMergeException {
+        TimeSeriesCardinalityStore store = new TimeSeriesCardinalityStore(new HyperLogLogPlus.Builder(14, 0), zone);
+        for (int i = 0; i < hours * 60; i++) {
+            store.offer(start + i * 60 * 1000L, "user" + i);
+        }
+        store.seal(start + 48 * HOUR);
+        return store;
+    }
+
+    private static long exact(int count) {
+        HyperLogLogPlus hllp = new HyperLogLogPlus(14);
+        for (int i = 0; i < count; i++) {
+            hllp.offer("user" + i);
+        }
+        return hllp.cardinality();
+    }
+
+    @Test
+    public void testClocksGoBack() throws CardinalityMergeException {
+        // 1:00 to 2:00 in New York happens twice on November 1, 2026, from 05:00 and 06:00 UTC
+        long start = utc(2026, 11, 1, 3, 0);
+        TimeSeriesCardinalityStore store = fillMinutes(TimeZone.getTimeZone("America/New_York"), start, 6);
+
+        List<Long> hours = new ArrayList<Long>();
+        for (int i = 0; i < 6; i++) {
+            hours.add(start + i * HOUR);
+        }
+        assertEquals(hours, new ArrayList<Long>(store.estimators(TimeSeriesCardinalityStore.Granularity.HOUR).keySet()));
+        assertEquals(Arrays.asList(utc(2026, 10, 31, 4, 0), utc(2026, 11, 1, 4, 0)),
+                     new ArrayList<Long>(store.estimators(TimeSeriesCardinalityStore.Granularity.DAY).keySet()));
+        assertEquals(exact(360), store.cardinality(0, Long.MAX_VALUE));
+        assertEquals(exact(360), store.cardinality(start, start + 6 * HOUR));
+    }
+
+    @Test
+    public void testClocksGoForward() throws CardinalityMergeException {
+        // 2:00 to 3:00 does not happen in New York on March 8, 2026, 07:00 UTC is 3:00
+        long start = utc(2026, 3, 8, 5, 0);
+        TimeSeriesCardinalityStore store = fillMinutes(TimeZone.getTimeZone("America/New_York"), start, 5);
+
+        List<Long> hours = new ArrayList<Long>();
+        for (int i = 0; i < 5; i++) {
+            hours.add(start + i * HOUR);
+        }
+        assertEquals(hours, new ArrayList<Long>(store.estimators(TimeSeriesCardinalityStore.Granularity.HOUR).keySet()));
+        assertEquals(Arrays.asList(start),
+                     new ArrayList<Long>(store.estimators(TimeSeriesCardinalityStore.Granularity.DAY).keySet()));
+        assertEquals(exact(300), store.cardinality(0, Long.MAX_VALUE));
+
+        // midnight did not happen in Sao Paulo on November 4, 2018, the day started at 01:00
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("America/Sao_Paulo"));
+        long day = TimeSeriesCardinalityStore.Granularity.DAY.start(calendar, utc(2018, 11, 4, 12, 0));
+        assertEquals(utc(2018, 11, 4, 3, 0), day);
+        assertEquals(utc(2018, 11, 5, 2, 0), TimeSeriesCardinalityStore.Granularity.DAY.next(calendar, day));
+    }
+}
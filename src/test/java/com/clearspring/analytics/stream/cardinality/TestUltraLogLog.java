@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestUltraLogLog {
+
+    @Test
+    public void testSmallCardinalities() {
+        UltraLogLog ultraLogLog = new UltraLogLog(12);
+        assertEquals(0, ultraLogLog.cardinality());
+        for (int i = 0; i < 10; i++) {
+            ultraLogLog.offer(i);
+        }
+        assertEquals(10, ultraLogLog.cardinality());
+        assertFalse(ultraLogLog.offer(3));
+    }
+
+    @Test
+    public void testAccuracy() {
+        Random random = new Random(31);
+        int p = 12;
+        int size = 100000;
+        double ultraSquares = 0;
+        double hllSquares = 0;
+        int trials = 20;
+        for (int t = 0; t < trials; t++) {
+            UltraLogLog ultraLogLog = new UltraLogLog(p);
+            HyperLogLog hyperLogLog = new HyperLogLog(p);
+            for (int i = 0; i < size; i++) {
+                long hash = random.nextLong();
+                ultraLogLog.offerHashed(hash);
+                hyperLogLog.offerHashed(hash);
+            }
+            double err = (ultraLogLog.cardinality() - size) / (double) size;
+            ultraSquares += err * err;
+            err = (hyperLogLog.cardinality() - size) / (double) size;
+            hllSquares += err * err;
+        }
+        double ultraError = Math.sqrt(ultraSquares / trials);
+        System.out.println("UltraLogLog error " + ultraError + ", HyperLogLog " + Math.sqrt(hllSquares / trials));
+        assertTrue(ultraError < 1.5 * 0.78 / Math.sqrt(1 << p));
+    }
+
+    @Test
+    public void testPackUnpack() {
+        for (int b = 3; b < 64; b++) {
+            for (int history = 0; history < 4; history++) {
+                byte register = (byte) ((b << 2) | history);
+                assertEquals(register, UltraLogLog.pack(UltraLogLog.unpack(register)));
+            }
+        }
+        assertEquals(0, UltraLogLog.unpack((byte) 0));
+    }
+
+    @Test
+    public void testMerge() throws CardinalityMergeException, IOException {
+        UltraLogLog a = new UltraLogLog(10);
+        UltraLogLog b = new UltraLogLog(10);
+        UltraLogLog all = new UltraLogLog(10);
+        for (int i = 0; i < 50000; i++) {
+            a.offer(i);
+            b.offer(i + 25000);
+            all.offer(i);
+            all.offer(i + 25000);
+        }
+
+        UltraLogLog merged = (UltraLogLog) a.merge(b);
+        assertArrayEquals(all.getBytes(), merged.getBytes());
+        assertEquals(all.cardinality(), merged.cardinality());
+        assertEquals(50000, a.cardinality(), 50000 * 0.1);
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testMergeDifferentSizes() throws CardinalityMergeException {
+        new UltraLogLog(10).merge(new UltraLogLog(11));
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        UltraLogLog ultraLogLog = new UltraLogLog(8);
+        for (int i = 0; i < 3000; i++) {
+            ultraLogLog.offer(i);
+        }
+        UltraLogLog read = UltraLogLog.Builder.build(ultraLogLog.getBytes());
+        assertEquals(ultraLogLog.cardinality(), read.cardinality());
+        assertArrayEquals(ultraLogLog.getBytes(), read.getBytes());
+        assertEquals(256, new UltraLogLog.Builder(8).sizeof());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidBytes() throws IOException {
+        byte[] bytes = new UltraLogLog(8).getBytes();
+        bytes[2] = 5;
+        UltraLogLog.Builder.build(bytes);
+    }
+
+    @Test
+    public void testFromHyperLogLog() throws CardinalityMergeException, IOException {
+        HyperLogLog hyperLogLog = new HyperLogLog(12);
+        UltraLogLog offered = new UltraLogLog(12);
+        Random random = new Random(32);
+        for (int i = 0; i < 100000; i++) {
+            long hash = random.nextLong();
+            hyperLogLog.offerHashed(hash);
+            offered.offerHashed(hash);
+        }
+
+        UltraLogLog converted = UltraLogLog.fromHyperLogLog(hyperLogLog);
+        assertEquals(hyperLogLog.cardinality(), converted.cardinality(), 100000 * 0.05);
+        for (int i = 0; i < 100000; i++) {
+            long hash = random.nextLong();
+            converted.offerHashed(hash);
+            offered.offerHashed(hash);
+        }
+        assertEquals(200000, converted.cardinality(), 200000 * 0.05);
+
+        // merged with the converted estimator the history is unknown, and the largest update values agree
+        UltraLogLog merged = (UltraLogLog) offered.merge(converted);
+        assertEquals(converted.cardinality(), merged.cardinality());
+        assertEquals(converted.cardinality(), UltraLogLog.Builder.build(merged.getBytes()).cardinality());
+    }
+}
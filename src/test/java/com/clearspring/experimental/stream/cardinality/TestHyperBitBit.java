@@ -16,10 +16,16 @@
 
 package com.clearspring.experimental.stream.cardinality;
 
+import java.io.IOException;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.clearspring.analytics.stream.cardinality.HyperLogLog;
 import com.clearspring.analytics.stream.cardinality.TestICardinality;
 
 import org.junit.Test;
 import org.junit.Ignore;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 
@@ -105,4 +111,56 @@ public class TestHyperBitBit {
         System.out.println("This value should be less than 0.2: " + err);
         assertTrue(err < 0.1);
     }
+
+    @Test
+    public void testSerialization() throws IOException {
+        HyperBitBit hyperBitBit = new HyperBitBit();
+        for (int i = 0; i < 100000; i++) {
+            hyperBitBit.offer(i);
+        }
+        byte[] bytes = hyperBitBit.getBytes();
+        assertEquals(HyperBitBit.BYTES, bytes.length);
+        assertEquals(HyperBitBit.BYTES, hyperBitBit.sizeof());
+
+        HyperBitBit read = new HyperBitBit(bytes);
+        assertEquals(hyperBitBit.cardinality(), read.cardinality());
+        assertArrayEquals(bytes, read.getBytes());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadTruncated() throws IOException {
+        new HyperBitBit(new byte[HyperBitBit.BYTES - 1]);
+    }
+
+    @Test
+    public void testMerge() throws CardinalityMergeException, IOException {
+        HyperBitBit baseline = new HyperBitBit();
+        HyperBitBit[] parts = new HyperBitBit[4];
+        for (int p = 0; p < parts.length; p++) {
+            parts[p] = new HyperBitBit();
+            for (int i = 0; i < 250000; i++) {
+                parts[p].offer(p * 250000 + i);
+                baseline.offer(p * 250000 + i);
+            }
+        }
+        HyperBitBit merged = (HyperBitBit) parts[0].merge(parts[1], parts[2], parts[3]);
+        assertEquals(baseline.lgN, merged.lgN);
+
+        // merging with an empty estimator or with itself changes nothing
+        assertArrayEquals(parts[0].getBytes(), ((HyperBitBit) parts[0].merge(new HyperBitBit())).getBytes());
+        assertArrayEquals(parts[0].getBytes(), ((HyperBitBit) parts[0].merge(parts[0])).getBytes());
+
+        // an estimator two or more levels lower has no bits for the higher level
+        HyperBitBit small = new HyperBitBit();
+        for (int i = 0; i < 1000; i++) {
+            small.offer(-i);
+        }
+        HyperBitBit large = (HyperBitBit) merged.merge(small);
+        assertArrayEquals(merged.getBytes(), large.getBytes());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void testMergeOtherClass() throws CardinalityMergeException {
+        new HyperBitBit().merge(new HyperLogLog(10));
+    }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.clearspring.experimental.stream.cardinality;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.clearspring.analytics.hash.MurmurHash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestHyperBitBitArray {
+
+    @Test
+    public void testSlotsMatchEstimators() throws IOException {
+        HyperBitBitArray array = new HyperBitBitArray(8);
+        HyperBitBit[] estimators = new HyperBitBit[8];
+        for (int slot = 0; slot < estimators.length; slot++) {
+            estimators[slot] = new HyperBitBit();
+        }
+        Random random = new Random(5);
+        for (int i = 0; i < 200000; i++) {
+            int slot = random.nextInt(8);
+            long hash = MurmurHash.hash64(i % (slot + 1) * 100000 + i);
+            assertEquals(estimators[slot].offerHashed(hash), array.offerHashed(slot, hash));
+        }
+        for (int slot = 0; slot < estimators.length; slot++) {
+            assertEquals(estimators[slot].cardinality(), array.cardinality(slot));
+            assertArrayEquals(estimators[slot].getBytes(), array.get(slot).getBytes());
+        }
+    }
+
+    @Test
+    public void testAddAll() throws IOException {
+        HyperBitBitArray a = new HyperBitBitArray(3);
+        HyperBitBitArray b = new HyperBitBitArray(3);
+        HyperBitBit[] expected = new HyperBitBit[3];
+        for (int slot = 0; slot < 3; slot++) {
+            HyperBitBit x = new HyperBitBit();
+            HyperBitBit y = new HyperBitBit();
+            // slot 1 gets estimators at different levels
+            int n = slot == 1 ? 500 : 50000;
+            for (int i = 0; i < 50000; i++) {
+                x.offer(i);
+                if (i < n) {
+                    y.offer(-i);
+                }
+            }
+            a.set(slot, x);
+            b.set(slot, y);
+            x.addAll(y);
+            expected[slot] = x;
+        }
+        a.addAll(b);
+        for (int slot = 0; slot < 3; slot++) {
+            assertArrayEquals(expected[slot].getBytes(), a.get(slot).getBytes());
+        }
+
+        HyperBitBit extra = new HyperBitBit();
+        extra.offer("extra");
+        a.addAll(0, extra);
+        expected[0].addAll(extra);
+        assertArrayEquals(expected[0].getBytes(), a.get(0).getBytes());
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        HyperBitBitArray array = new HyperBitBitArray(100);
+        for (int i = 0; i < 100000; i++) {
+            array.offer(i % 100, i);
+        }
+        byte[] bytes = array.getBytes();
+        assertEquals(4 + 100 * HyperBitBit.BYTES, bytes.length);
+        HyperBitBitArray read = HyperBitBitArray.readFrom(bytes);
+        assertEquals(100, read.size());
+        assertArrayEquals(bytes, read.getBytes());
+        assertArrayEquals(array.get(42).getBytes(), read.get(42).getBytes());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadTruncated() throws IOException {
+        byte[] bytes = new HyperBitBitArray(10).getBytes();
+        HyperBitBitArray.readFrom(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+}
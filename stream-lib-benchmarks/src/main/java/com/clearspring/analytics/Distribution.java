@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.clearspring.analytics.hash.MurmurHash;
+
+/**
+ * Input key distributions shared by the benchmark suites.
+ * <p/>
+ * Every distribution draws keys from the range [0, distinct) so that the
+ * number of unique elements a sketch sees is bounded by {@code distinct}
+ * regardless of how many keys are generated.
+ */
+public enum Distribution {
+
+    /**
+     * Every key in the range is equally likely.
+     */
+    UNIFORM {
+        @Override
+        public long[] keys(int size, int distinct, Random random) {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = (long) (random.nextDouble() * distinct);
+            }
+            return keys;
+        }
+    },
+
+    /**
+     * Key of rank k is drawn with probability proportional to 1/k, which
+     * is close to what most click and visitor streams look like.
+     */
+    ZIPFIAN {
+        @Override
+        public long[] keys(int size, int distinct, Random random) {
+            double[] cdf = new double[distinct];
+            double sum = 0;
+            for (int k = 0; k < distinct; k++) {
+                sum += 1.0 / (k + 1);
+                cdf[k] = sum;
+            }
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                int idx = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                keys[i] = idx >= 0 ? idx : Math.min(-idx - 1, distinct - 1);
+            }
+            return keys;
+        }
+    },
+
+    /**
+     * Uniform keys delivered in ascending order, as produced by a scan
+     * over a sorted column.
+     */
+    SORTED {
+        @Override
+        public long[] keys(int size, int distinct, Random random) {
+            long[] keys = UNIFORM.keys(size, distinct, random);
+            Arrays.sort(keys);
+            return keys;
+        }
+    };
+
+    /**
+     * Number of elements generated for each benchmark batch.
+     */
+    public static final int BATCH_SIZE = 4096;
+
+    public abstract long[] keys(int size, int distinct, Random random);
+
+    public long[] keys(int size, int distinct) {
+        return keys(size, distinct, new Random(42));
+    }
+
+    /**
+     * @return the keys boxed once up front, so offer(Object) benchmarks
+     * don't measure the boxing allocation
+     */
+    public Object[] boxedKeys(int size, int distinct) {
+        long[] keys = keys(size, distinct);
+        Object[] boxed = new Object[size];
+        for (int i = 0; i < size; i++) {
+            boxed[i] = keys[i];
+        }
+        return boxed;
+    }
+
+    public String[] stringKeys(int size, int distinct) {
+        long[] keys = keys(size, distinct);
+        String[] strings = new String[size];
+        for (int i = 0; i < size; i++) {
+            strings[i] = Long.toString(keys[i]);
+        }
+        return strings;
+    }
+
+    /**
+     * @return 64 bit murmur hashes of the keys, for the offerHashed paths
+     */
+    public long[] hashedKeys(int size, int distinct) {
+        long[] keys = keys(size, distinct);
+        for (int i = 0; i < size; i++) {
+            keys[i] = MurmurHash.hash64(keys[i]);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * offer and peek for {@link ConcurrentStreamSummary}, parameterized by the
+ * number of tracked counters.
+ * <p/>
+ * A single summary is shared by every benchmark thread; offerContended
+ * runs with four threads and the thread count of the other methods can
+ * be raised with -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentStreamSummaryBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    int capacity;
+
+    @Param
+    Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    int distinct;
+
+    Object[] keys;
+    ConcurrentStreamSummary<Object> summary;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        keys = distribution.boxedKeys(Distribution.BATCH_SIZE, distinct);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        summary = new ConcurrentStreamSummary<Object>(capacity);
+        for (Object key : keys) {
+            summary.offer(key);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void offer(Blackhole bh) {
+        for (Object key : keys) {
+            bh.consume(summary.offer(key));
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void offerContended(Blackhole bh) {
+        for (Object key : keys) {
+            bh.consume(summary.offer(key));
+        }
+    }
+
+    @Benchmark
+    public List<Object> peek() {
+        return summary.peek(10);
+    }
+}
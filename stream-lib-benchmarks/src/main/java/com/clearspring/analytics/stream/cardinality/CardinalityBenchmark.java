@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * offer, cardinality and merge for every {@link ICardinality} implementation.
+ * <p/>
+ * The filled estimators used by cardinality() and merge() have seen
+ * {@link #FILL_SIZE} keys of the chosen distribution, bounded by
+ * {@code distinct} unique values, so a small {@code distinct} keeps
+ * HLLP_SPARSE in sparse mode while a large one pushes it to normal mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CardinalityBenchmark {
+
+    static final int FILL_SIZE = 1 << 18;
+
+    @Param
+    CardinalitySketch sketch;
+
+    @Param({"10", "14", "16"})
+    int precision;
+
+    @Param
+    Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    int distinct;
+
+    Object[] keys;
+    ICardinality estimator;
+    ICardinality filled;
+    ICardinality other;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        keys = distribution.boxedKeys(Distribution.BATCH_SIZE, distinct);
+        filled = sketch.create(precision, distribution.boxedKeys(FILL_SIZE, distinct));
+        Object[] otherKeys = distribution.boxedKeys(FILL_SIZE, distinct);
+        for (int i = 0; i < otherKeys.length; i++) {
+            otherKeys[i] = (Long) otherKeys[i] + distinct / 2;
+        }
+        other = sketch.create(precision, otherKeys);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        estimator = sketch.create(precision);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void offer(Blackhole bh) {
+        for (Object key : keys) {
+            bh.consume(estimator.offer(key));
+        }
+    }
+
+    @Benchmark
+    public long cardinality() {
+        return filled.cardinality();
+    }
+
+    @Benchmark
+    public ICardinality merge() throws CardinalityMergeException {
+        return filled.merge(other);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merging many small estimators sequentially with merge(ICardinality...) versus in
+ * parallel with {@link CardinalityMerger}, parameterized by the pool size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CardinalityMergerBenchmark {
+
+    /**
+     * Keys offered to each estimator.
+     */
+    static final int KEYS_PER_ESTIMATOR = 100;
+
+    @Param({"HLL", "HLLP_SPARSE", "HLLP_NORMAL", "HLL_COMPACT", "HLLP_COMPACT", "LC", "LC_WORDS"})
+    CardinalitySketch sketch;
+
+    @Param({"12"})
+    int precision;
+
+    @Param({"1000", "20000"})
+    int estimators;
+
+    @Param({"1", "4", "16"})
+    int parallelism;
+
+    List<ICardinality> all;
+    ICardinality first;
+    ICardinality[] rest;
+    ForkJoinPool pool;
+    CardinalityMerger merger;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long[] keys = Distribution.UNIFORM.keys(estimators * KEYS_PER_ESTIMATOR, estimators * KEYS_PER_ESTIMATOR);
+        ICardinality[] filled = new ICardinality[estimators];
+        for (int i = 0; i < estimators; i++) {
+            filled[i] = sketch.create(precision);
+            for (int j = 0; j < KEYS_PER_ESTIMATOR; j++) {
+                filled[i].offer(keys[i * KEYS_PER_ESTIMATOR + j]);
+            }
+        }
+        all = Arrays.asList(filled);
+        first = filled[0];
+        rest = Arrays.copyOfRange(filled, 1, estimators);
+        pool = new ForkJoinPool(parallelism);
+        merger = new CardinalityMerger(pool);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public ICardinality sequential() throws CardinalityMergeException {
+        return first.merge(rest);
+    }
+
+    @Benchmark
+    public ICardinality parallel() throws CardinalityMergeException {
+        return merger.merge(all);
+    }
+}
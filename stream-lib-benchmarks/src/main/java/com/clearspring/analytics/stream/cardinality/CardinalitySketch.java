@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+
+/**
+ * The {@link ICardinality} implementations covered by the benchmarks, with
+ * a single precision knob mapped onto each constructor.
+ */
+public enum CardinalitySketch {
+
+    HLL {
+        @Override
+        public ICardinality create(int precision) {
+            return new HyperLogLog(precision);
+        }
+
+        @Override
+        public ICardinality build(byte[] bytes) throws IOException {
+            return HyperLogLog.Builder.build(bytes);
+        }
+    },
+
+    /**
+     * HyperLogLogPlus with a sparse precision of 25, starting in sparse mode.
+     */
+    HLLP_SPARSE {
+        @Override
+        public ICardinality create(int precision) {
+            return new HyperLogLogPlus(precision, 25);
+        }
+
+        @Override
+        public ICardinality build(byte[] bytes) throws IOException {
+            return HyperLogLogPlus.Builder.build(bytes);
+        }
+    },
+
+    /**
+     * HyperLogLogPlus with the sparse representation disabled.
+     */
+    HLLP_NORMAL {
+        @Override
+        public ICardinality create(int precision) {
+            return new HyperLogLogPlus(precision);
+        }
+
+        @Override
+        public ICardinality build(byte[] bytes) throws IOException {
+            return HyperLogLogPlus.Builder.build(bytes);
+        }
+    },
+
+    /**
+     * HyperLogLog with 4 bit registers, see {@link RegisterSet#compact(int)}.
+     */
+    HLL_COMPACT {
+        @Override
+        public ICardinality create(int precision) {
+            return HyperLogLog.withCompactRegisters(precision);
+        }
+
+        @Override
+        public ICardinality build(byte[] bytes) throws IOException {
+            return HyperLogLog.Builder.build(bytes);
+        }
+    },
+
+    /**
+     * HyperLogLogPlus with the sparse representation disabled and 4 bit registers.
+     */
+    HLLP_COMPACT {
+        @Override
+        public ICardinality create(int precision) {
+            return HyperLogLogPlus.withCompactRegisters(precision, 0);
+        }
+
+        @Override
+        public ICardinality build(byte[] bytes) throws IOException {
+            return HyperLogLogPlus.Builder.build(bytes);
+        }
+    },
+
+    /**
+     * LinearCounting with a bitmap of 2^precision bytes.
+     */
+    LC {
+        @Override
+        public ICardinality create(int precision) {
+            return new LinearCounting(1 << precision);
+        }
+
+        @Override
+        public ICardinality build(byte[] bytes) {
+            return new LinearCounting(bytes);
+        }
+    },
+
+    /**
+     * LinearCounting with a bitmap of 2^precision bytes kept in longs.
+     */
+    LC_WORDS {
+        @Override
+        public ICardinality create(int precision) {
+            return LinearCounting.withWordBitmap(1 << precision);
+        }
+
+        @Override
+        public ICardinality build(byte[] bytes) {
+            return new LinearCounting(bytes);
+        }
+    },
+
+    /**
+     * TieredCardinality with a budget of the dense registers at the given precision.
+     */
+    TIERED {
+        @Override
+        public ICardinality create(int precision) {
+            return new TieredCardinality(1.04 / Math.sqrt(1 << precision), 4 * RegisterSet.getSizeForCount(1 << precision));
+        }
+
+        @Override
+        public ICardinality build(byte[] bytes) throws IOException {
+            return TieredCardinality.Builder.build(bytes);
+        }
+    },
+
+    ULL {
+        @Override
+        public ICardinality create(int precision) {
+            return new UltraLogLog(precision);
+        }
+
+        @Override
+        public ICardinality build(byte[] bytes) throws IOException {
+            return UltraLogLog.Builder.build(bytes);
+        }
+    },
+
+    AC {
+        @Override
+        public ICardinality create(int precision) {
+            return new AdaptiveCounting(precision);
+        }
+
+        @Override
+        public ICardinality build(byte[] bytes) {
+            return new AdaptiveCounting(bytes);
+        }
+    },
+
+    /**
+     * AdaKMV keeping the 2^precision smallest hashes.
+     */
+    ADAKMV {
+        @Override
+        public ICardinality create(int precision) {
+            return new AdaKMV(1 << precision);
+        }
+
+        @Override
+        public ICardinality build(byte[] bytes) {
+            throw new UnsupportedOperationException("AdaKMV cannot be deserialized");
+        }
+    };
+
+    public abstract ICardinality create(int precision);
+
+    public abstract ICardinality build(byte[] bytes) throws IOException;
+
+    /**
+     * @return a new estimator that has been offered every key
+     */
+    public ICardinality create(int precision, Object[] keys) {
+        ICardinality estimator = create(precision);
+        for (Object key : keys) {
+            estimator.offer(key);
+        }
+        return estimator;
+    }
+}
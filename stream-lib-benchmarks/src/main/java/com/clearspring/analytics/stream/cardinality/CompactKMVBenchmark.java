@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Set operations on two {@link CompactKMV} samples of half overlapping streams, and
+ * the union done by re-offering one AdaKMV's records to another.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompactKMVBenchmark {
+
+    @Param({"10", "14"})
+    int precision;
+
+    @Param({"1000000"})
+    int distinct;
+
+    AdaKMV adaA;
+    AdaKMV adaB;
+    CompactKMV a;
+    CompactKMV b;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long[] hashes = Distribution.UNIFORM.hashedKeys(distinct, distinct);
+        adaA = new AdaKMV(1 << precision);
+        adaB = new AdaKMV(1 << precision);
+        adaA.offerHashed(hashes, 0, distinct * 2 / 3);
+        adaB.offerHashed(hashes, distinct / 3, distinct - distinct / 3);
+        a = adaA.compact();
+        b = adaB.compact();
+    }
+
+    @Benchmark
+    public CompactKMV union() {
+        return CompactKMV.union(a, b);
+    }
+
+    @Benchmark
+    public CompactKMV intersect() {
+        return CompactKMV.intersect(a, b);
+    }
+
+    @Benchmark
+    public CompactKMV aNotB() {
+        return CompactKMV.aNotB(a, b);
+    }
+
+    @Benchmark
+    public ICardinality adaKmvMerge() throws CardinalityMergeException {
+        return adaA.merge(adaB);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * offerHashed(long) on a single estimator shared by every benchmark thread,
+ * comparing {@link ConcurrentHyperLogLog} with a HyperLogLog guarded by a lock.
+ * <p/>
+ * Run with -t 1, 2, 4, 8, 16 to see how ingestion scales with the number of
+ * threads; the default Zipfian keys make a few registers hot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentHyperLogLogBenchmark {
+
+    @Param({"10", "14", "16"})
+    int precision;
+
+    @Param({"ZIPFIAN"})
+    Distribution distribution;
+
+    @Param({"1000000"})
+    int distinct;
+
+    long[] hashes;
+    ConcurrentHyperLogLog concurrent;
+    HyperLogLog locked;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        hashes = distribution.hashedKeys(Distribution.BATCH_SIZE, distinct);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        concurrent = new ConcurrentHyperLogLog(precision);
+        locked = new HyperLogLog(precision);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void offerHashed(Blackhole bh) {
+        for (long hash : hashes) {
+            bh.consume(concurrent.offerHashed(hash));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void offerHashedLocked(Blackhole bh) {
+        for (long hash : hashes) {
+            synchronized (locked) {
+                bh.consume(locked.offerHashed(hash));
+            }
+        }
+    }
+
+    @Benchmark
+    public long cardinality() {
+        return concurrent.cardinality();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-key HyperLogLog counters at p = 10 offered hashes for random keys, held as an array of
+ * estimators versus a single off-heap {@link HyperLogLogArena}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HyperLogLogArenaBenchmark {
+
+    @Param({"1000", "1000000"})
+    int keys;
+
+    long[] hashes;
+    int[] slots;
+    HyperLogLog[] estimators;
+    HyperLogLogArena arena;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        hashes = Distribution.UNIFORM.hashedKeys(Distribution.BATCH_SIZE, Integer.MAX_VALUE);
+        long[] keyIds = Distribution.UNIFORM.keys(Distribution.BATCH_SIZE, keys);
+        slots = new int[keyIds.length];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = (int) keyIds[i];
+        }
+        estimators = new HyperLogLog[keys];
+        for (int i = 0; i < keys; i++) {
+            estimators[i] = new HyperLogLog(10);
+        }
+        arena = new HyperLogLogArena(10);
+        for (int i = 0; i < keys; i++) {
+            arena.allocate();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public boolean estimators() {
+        boolean modified = false;
+        for (int i = 0; i < hashes.length; i++) {
+            modified |= estimators[slots[i]].offerHashed(hashes[i]);
+        }
+        return modified;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public boolean arena() {
+        boolean modified = false;
+        for (int i = 0; i < hashes.length; i++) {
+            modified |= arena.offerHashed(slots[i], hashes[i]);
+        }
+        return modified;
+    }
+}
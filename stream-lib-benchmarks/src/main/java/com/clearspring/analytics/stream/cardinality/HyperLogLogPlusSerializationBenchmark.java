@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checkpointing HyperLogLogPlus: getBytes() and the DataInput decoder versus writing into and
+ * reading from a reused direct buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HyperLogLogPlusSerializationBenchmark {
+
+    @Param({"HLLP_SPARSE", "HLLP_NORMAL", "HLLP_COMPACT"})
+    CardinalitySketch sketch;
+
+    @Param({"10", "14", "16"})
+    int precision;
+
+    @Param
+    Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    int distinct;
+
+    HyperLogLogPlus filled;
+    byte[] bytes;
+    ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        filled = (HyperLogLogPlus) sketch.create(precision, distribution.boxedKeys(CardinalityBenchmark.FILL_SIZE, distinct));
+        bytes = filled.getBytes();
+        buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+    }
+
+    @Benchmark
+    public byte[] getBytes() throws IOException {
+        return filled.getBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer writeTo() {
+        buffer.clear();
+        filled.writeTo(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public HyperLogLogPlus buildFromStream() throws IOException {
+        return HyperLogLogPlus.Builder.build(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    @Benchmark
+    public HyperLogLogPlus readFromHeap() throws IOException {
+        return HyperLogLogPlus.readFrom(ByteBuffer.wrap(bytes));
+    }
+
+    @Benchmark
+    public HyperLogLogPlus readFromDirect() throws IOException {
+        buffer.rewind();
+        return HyperLogLogPlus.readFrom(buffer);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * offerHashed(long) for the estimators that accept pre-hashed values, one
+ * hash per call and as a single batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OfferHashedBenchmark {
+
+    @Param({"HLL", "HLLP_SPARSE", "HLLP_NORMAL", "ADAKMV", "LC", "LC_WORDS", "AC", "TIERED", "ULL"})
+    CardinalitySketch sketch;
+
+    @Param({"10", "14", "16"})
+    int precision;
+
+    @Param
+    Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    int distinct;
+
+    long[] hashes;
+    ICardinality estimator;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        hashes = distribution.hashedKeys(Distribution.BATCH_SIZE, distinct);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        estimator = sketch.create(precision);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void offerHashed(Blackhole bh) {
+        for (long hash : hashes) {
+            bh.consume(estimator.offerHashed(hash));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public boolean offerHashedBatch() {
+        return estimator.offerHashed(hashes, 0, hashes.length);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * getBytes() and the matching deserializer for the estimators that have one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"HLL", "HLLP_SPARSE", "HLLP_NORMAL", "HLL_COMPACT", "HLLP_COMPACT", "LC", "AC", "ULL"})
+    CardinalitySketch sketch;
+
+    @Param({"10", "14", "16"})
+    int precision;
+
+    @Param
+    Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    int distinct;
+
+    ICardinality filled;
+    byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        filled = sketch.create(precision, distribution.boxedKeys(CardinalityBenchmark.FILL_SIZE, distinct));
+        bytes = filled.getBytes();
+    }
+
+    @Benchmark
+    public byte[] getBytes() throws IOException {
+        return filled.getBytes();
+    }
+
+    @Benchmark
+    public ICardinality build() throws IOException {
+        return sketch.build(bytes);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.cardinality;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Distinct counts over the last N minutes of an hour of events: a ring of per-minute
+ * HyperLogLogPlus merged on each query versus a single {@link SlidingHyperLogLog}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SlidingHyperLogLogBenchmark {
+
+    private static final int MINUTES = 60;
+    private static final long MINUTE = 60 * 1000L;
+
+    @Param({"10", "14"})
+    int precision;
+
+    @Param({"5", "60"})
+    int windowMinutes;
+
+    @Param
+    Distribution distribution;
+
+    @Param({"1000000"})
+    int distinct;
+
+    HyperLogLogPlus[] ring;
+    SlidingHyperLogLog sliding;
+    long[] hashes;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        hashes = distribution.hashedKeys(CardinalityBenchmark.FILL_SIZE, distinct);
+        ring = new HyperLogLogPlus[MINUTES];
+        for (int i = 0; i < MINUTES; i++) {
+            ring[i] = new HyperLogLogPlus(precision);
+        }
+        sliding = new SlidingHyperLogLog(precision, MINUTES * MINUTE);
+        for (int i = 0; i < hashes.length; i++) {
+            long timestamp = (long) i * MINUTES * MINUTE / hashes.length;
+            ring[(int) (timestamp / MINUTE)].offerHashed(hashes[i]);
+            sliding.offerHashed(hashes[i], timestamp);
+        }
+    }
+
+    @Benchmark
+    public long ringCardinality() throws CardinalityMergeException {
+        HyperLogLogPlus[] window = new HyperLogLogPlus[windowMinutes - 1];
+        System.arraycopy(ring, MINUTES - windowMinutes, window, 0, window.length);
+        return ring[MINUTES - 1].merge(window).cardinality();
+    }
+
+    @Benchmark
+    public long slidingCardinality() {
+        return sliding.cardinality(windowMinutes * MINUTE);
+    }
+
+    @Benchmark
+    public boolean slidingOffer() {
+        long hash = hashes[next++ & (hashes.length - 1)];
+        return sliding.offerHashed(hash, sliding.latestTimestamp());
+    }
+}
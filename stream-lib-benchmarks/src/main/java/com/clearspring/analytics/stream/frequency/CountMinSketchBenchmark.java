@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.frequency;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * add, estimateCount, merge and serialization of {@link CountMinSketch},
+ * parameterized by the relative error (and therefore the table width).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountMinSketchBenchmark {
+
+    @Param({"0.001", "0.0001"})
+    double eps;
+
+    @Param
+    Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    int distinct;
+
+    long[] keys;
+    CountMinSketch sketch;
+    CountMinSketch filled;
+    CountMinSketch other;
+    byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        keys = distribution.keys(Distribution.BATCH_SIZE, distinct);
+        filled = new CountMinSketch(eps, 0.99, 1);
+        other = new CountMinSketch(eps, 0.99, 1);
+        for (long key : keys) {
+            filled.add(key, 1);
+            other.add(key + distinct / 2, 1);
+        }
+        bytes = CountMinSketch.serialize(filled);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        sketch = new CountMinSketch(eps, 0.99, 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void add() {
+        for (long key : keys) {
+            sketch.add(key, 1);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void estimateCount(Blackhole bh) {
+        for (long key : keys) {
+            bh.consume(filled.estimateCount(key));
+        }
+    }
+
+    @Benchmark
+    public CountMinSketch merge() throws FrequencyMergeException {
+        return CountMinSketch.merge(filled, other);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return CountMinSketch.serialize(filled);
+    }
+
+    @Benchmark
+    public CountMinSketch deserialize() {
+        return CountMinSketch.deserialize(bytes);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.membership;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * add, isPresent and serialization of {@link BloomFilter}, parameterized
+ * by the number of elements the filter is sized for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BloomFilterBenchmark {
+
+    @Param({"10000", "1000000"})
+    int capacity;
+
+    @Param
+    Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    int distinct;
+
+    String[] keys;
+    BloomFilter filter;
+    BloomFilter filled;
+    byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        keys = distribution.stringKeys(Distribution.BATCH_SIZE, distinct);
+        filled = new BloomFilter(capacity, 0.01);
+        for (String key : keys) {
+            filled.add(key);
+        }
+        bytes = BloomFilter.serialize(filled);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        filter = new BloomFilter(capacity, 0.01);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void add() {
+        for (String key : keys) {
+            filter.add(key);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void isPresent(Blackhole bh) {
+        for (String key : keys) {
+            bh.consume(filled.isPresent(key));
+        }
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return BloomFilter.serialize(filled);
+    }
+
+    @Benchmark
+    public BloomFilter deserialize() {
+        return BloomFilter.deserialize(bytes);
+    }
+}
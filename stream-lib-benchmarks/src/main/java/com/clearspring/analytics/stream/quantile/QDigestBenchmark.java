@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.quantile;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * offer, getQuantile, union and serialization of {@link QDigest},
+ * parameterized by the compression factor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QDigestBenchmark {
+
+    @Param({"64", "1024"})
+    double compressionFactor;
+
+    @Param
+    Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    int distinct;
+
+    long[] keys;
+    QDigest digest;
+    QDigest filled;
+    QDigest other;
+    byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        keys = distribution.keys(Distribution.BATCH_SIZE, distinct);
+        filled = new QDigest(compressionFactor);
+        other = new QDigest(compressionFactor);
+        for (long key : keys) {
+            filled.offer(key);
+            other.offer(key + distinct / 2);
+        }
+        bytes = QDigest.serialize(filled);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        digest = new QDigest(compressionFactor);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void offer() {
+        for (long key : keys) {
+            digest.offer(key);
+        }
+    }
+
+    @Benchmark
+    public long getQuantile() {
+        return filled.getQuantile(0.99);
+    }
+
+    @Benchmark
+    public QDigest unionOf() {
+        return QDigest.unionOf(filled, other);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return QDigest.serialize(filled);
+    }
+
+    @Benchmark
+    public QDigest deserialize() {
+        return QDigest.deserialize(bytes);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 Clearspring Technologies, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.clearspring.analytics.stream.quantile;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.TimeUnit;
+
+import com.clearspring.analytics.Distribution;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * add, quantile and a serialization round trip of {@link TDigest}, parameterized by
+ * the compression.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TDigestBenchmark {
+
+    @Param({"100", "1000"})
+    double compression;
+
+    @Param
+    Distribution distribution;
+
+    @Param({"1000", "1000000"})
+    int distinct;
+
+    double[] values;
+    TDigest digest;
+    TDigest filled;
+    ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        long[] keys = distribution.keys(Distribution.BATCH_SIZE, distinct);
+        values = new double[keys.length];
+        filled = new TDigest(compression);
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = keys[i];
+            filled.add(values[i]);
+        }
+        buffer = ByteBuffer.allocate(filled.byteSize());
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() {
+        digest = new TDigest(compression);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Distribution.BATCH_SIZE)
+    public void add() {
+        for (double value : values) {
+            digest.add(value);
+        }
+    }
+
+    @Benchmark
+    public double quantile() {
+        return filled.quantile(0.99);
+    }
+
+    @Benchmark
+    public TDigest roundTrip() {
+        buffer.clear();
+        filled.asBytes(buffer);
+        buffer.flip();
+        return TDigest.fromBytes(buffer);
+    }
+}